@@ -0,0 +1,147 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares plain calls with advised calls of the {@link Fixtures} methods. The benchmarks are named after the fixture
+ * they call: plain, trivial (advised with an advice that only calls the method) or stateful (advised with an advice
+ * that counts the calls), followed by the shape of the method.
+ *
+ * The arguments are kept in fields, so that the JIT cannot fold the calls into constants.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdvisedCallBenchmark {
+
+    private Fixtures fixtures;
+    private int a;
+    private int b;
+    private int c;
+    private Object o;
+
+    @Setup
+    public void setup() {
+        fixtures = new Fixtures();
+        a = 1;
+        b = 2;
+        c = 3;
+        o = new Object();
+    }
+
+    @Benchmark
+    public int plain0() {
+        return fixtures.plain0();
+    }
+
+    @Benchmark
+    public int trivial0() {
+        return fixtures.trivial0();
+    }
+
+    @Benchmark
+    public int stateful0() {
+        return fixtures.stateful0();
+    }
+
+    @Benchmark
+    public int plain1() {
+        return fixtures.plain1(a);
+    }
+
+    @Benchmark
+    public int trivial1() {
+        return fixtures.trivial1(a);
+    }
+
+    @Benchmark
+    public int stateful1() {
+        return fixtures.stateful1(a);
+    }
+
+    @Benchmark
+    public int plain3() {
+        return fixtures.plain3(a, b, c);
+    }
+
+    @Benchmark
+    public int trivial3() {
+        return fixtures.trivial3(a, b, c);
+    }
+
+    @Benchmark
+    public int stateful3() {
+        return fixtures.stateful3(a, b, c);
+    }
+
+    @Benchmark
+    public Object plainObject1() {
+        return fixtures.plainObject1(o);
+    }
+
+    @Benchmark
+    public Object trivialObject1() {
+        return fixtures.trivialObject1(o);
+    }
+
+    @Benchmark
+    public Object statefulObject1() {
+        return fixtures.statefulObject1(o);
+    }
+
+    @Benchmark
+    public int plainStatic1() {
+        return Fixtures.plainStatic1(a);
+    }
+
+    @Benchmark
+    public int trivialStatic1() {
+        return Fixtures.trivialStatic1(a);
+    }
+
+    @Benchmark
+    public int statefulStatic1() {
+        return Fixtures.statefulStatic1(a);
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.benchmarks;
+
+/**
+ * Chains of calls through eight distinct methods, each calling the next one. Each chain comes in three versions: a
+ * plain one, one advised with {@link Trivial}, where the calls of all the methods go through the same advice class, and
+ * one advised with {@link Specialized}, where each method has its own copy of that class.
+ **/
+public class CallChains {
+
+    public int plainChain0(int a) {
+        return a + 1;
+    }
+
+    public int plainChain1(int a) {
+        return plainChain0(a) + 1;
+    }
+
+    public int plainChain2(int a) {
+        return plainChain1(a) + 1;
+    }
+
+    public int plainChain3(int a) {
+        return plainChain2(a) + 1;
+    }
+
+    public int plainChain4(int a) {
+        return plainChain3(a) + 1;
+    }
+
+    public int plainChain5(int a) {
+        return plainChain4(a) + 1;
+    }
+
+    public int plainChain6(int a) {
+        return plainChain5(a) + 1;
+    }
+
+    public int plainChain7(int a) {
+        return plainChain6(a) + 1;
+    }
+
+    @Trivial
+    public int trivialChain0(int a) {
+        return a + 1;
+    }
+
+    @Trivial
+    public int trivialChain1(int a) {
+        return trivialChain0(a) + 1;
+    }
+
+    @Trivial
+    public int trivialChain2(int a) {
+        return trivialChain1(a) + 1;
+    }
+
+    @Trivial
+    public int trivialChain3(int a) {
+        return trivialChain2(a) + 1;
+    }
+
+    @Trivial
+    public int trivialChain4(int a) {
+        return trivialChain3(a) + 1;
+    }
+
+    @Trivial
+    public int trivialChain5(int a) {
+        return trivialChain4(a) + 1;
+    }
+
+    @Trivial
+    public int trivialChain6(int a) {
+        return trivialChain5(a) + 1;
+    }
+
+    @Trivial
+    public int trivialChain7(int a) {
+        return trivialChain6(a) + 1;
+    }
+
+    @Specialized
+    public int specializedChain0(int a) {
+        return a + 1;
+    }
+
+    @Specialized
+    public int specializedChain1(int a) {
+        return specializedChain0(a) + 1;
+    }
+
+    @Specialized
+    public int specializedChain2(int a) {
+        return specializedChain1(a) + 1;
+    }
+
+    @Specialized
+    public int specializedChain3(int a) {
+        return specializedChain2(a) + 1;
+    }
+
+    @Specialized
+    public int specializedChain4(int a) {
+        return specializedChain3(a) + 1;
+    }
+
+    @Specialized
+    public int specializedChain5(int a) {
+        return specializedChain4(a) + 1;
+    }
+
+    @Specialized
+    public int specializedChain6(int a) {
+        return specializedChain5(a) + 1;
+    }
+
+    @Specialized
+    public int specializedChain7(int a) {
+        return specializedChain6(a) + 1;
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.benchmarks;
+
+/**
+ * The methods called by the benchmarks. Each method comes in three versions: a plain one, one advised with
+ * {@link Trivial} and one advised with {@link Stateful}, all with the same body. A few also have a version advised
+ * with {@link Metered}.
+ **/
+public class Fixtures {
+
+    int value = 1;
+
+    // Instance methods returning int, with 0, 1 and 3 arguments
+
+    public int plain0() {
+        return value;
+    }
+
+    @Trivial
+    public int trivial0() {
+        return value;
+    }
+
+    @Stateful
+    public int stateful0() {
+        return value;
+    }
+
+    public int plain1(int a) {
+        return value + a;
+    }
+
+    @Trivial
+    public int trivial1(int a) {
+        return value + a;
+    }
+
+    @Stateful
+    public int stateful1(int a) {
+        return value + a;
+    }
+
+    public int plain3(int a, int b, int c) {
+        return value + a + b + c;
+    }
+
+    @Trivial
+    public int trivial3(int a, int b, int c) {
+        return value + a + b + c;
+    }
+
+    @Stateful
+    public int stateful3(int a, int b, int c) {
+        return value + a + b + c;
+    }
+
+    // Instance methods returning an object
+
+    public Object plainObject1(Object o) {
+        return o;
+    }
+
+    @Trivial
+    public Object trivialObject1(Object o) {
+        return o;
+    }
+
+    @Stateful
+    public Object statefulObject1(Object o) {
+        return o;
+    }
+
+    // Static methods returning int
+
+    public static int plainStatic1(int a) {
+        return a + 1;
+    }
+
+    @Trivial
+    public static int trivialStatic1(int a) {
+        return a + 1;
+    }
+
+    @Stateful
+    public static int statefulStatic1(int a) {
+        return a + 1;
+    }
+
+    @Metered
+    public static int meteredStatic1(int a) {
+        return a + 1;
+    }
+
+}
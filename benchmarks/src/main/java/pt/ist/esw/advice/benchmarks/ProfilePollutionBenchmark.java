@@ -0,0 +1,87 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how the JIT inlines a deep chain of advised calls, see {@link CallChains}. In the trivial chain, the call
+ * sites inside the shared advice class see the callables of all the methods in the chain, so they are megamorphic and
+ * the advised methods are not inlined into them. In the specialized chain, each method has its own copy of the advice
+ * class, so each call site sees a single callable, which is inlined.
+ *
+ * The advice is kept from being inlined into the advised methods, as the advices of real applications often are for
+ * being too large. Otherwise the JIT would see the exact type of the callable at each call site, and would not need
+ * the profile.
+ *
+ * Run with <code>-jvmArgsAppend -XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining</code> to see the inlining decisions.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-XX:CompileCommand=quiet",
+        "-XX:CompileCommand=dontinline,pt.ist.esw.advice.benchmarks.TrivialAdviceFactory$TrivialAdvice*::*" })
+public class ProfilePollutionBenchmark {
+
+    private CallChains chains;
+    private int a;
+
+    @Setup
+    public void setup() {
+        chains = new CallChains();
+        a = 1;
+    }
+
+    @Benchmark
+    public int plainChain() {
+        return chains.plainChain7(a);
+    }
+
+    @Benchmark
+    public int trivialChain() {
+        return chains.trivialChain7(a);
+    }
+
+    @Benchmark
+    public int specializedChain() {
+        return chains.specializedChain7(a);
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.benchmarks;
+
+import java.util.concurrent.Callable;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+import pt.ist.esw.advice.IntAdvice;
+import pt.ist.esw.advice.IntCallable;
+
+/**
+ * Creates an advice that keeps per-method state, counting the calls and the failures of the advised method, as a
+ * typical monitoring advice would.
+ **/
+public final class StatefulAdviceFactory extends AdviceFactory<Stateful> {
+
+    static final class StatefulAdvice implements IntAdvice {
+        long calls;
+        long failures;
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            calls++;
+            try {
+                return method.call();
+            } catch (Exception e) {
+                failures++;
+                throw e;
+            }
+        }
+
+        @Override
+        public int performInt(IntCallable method) throws Exception {
+            calls++;
+            try {
+                return method.callInt();
+            } catch (Exception e) {
+                failures++;
+                throw e;
+            }
+        }
+    }
+
+    private StatefulAdviceFactory() {
+    }
+
+    private final static StatefulAdviceFactory instance = new StatefulAdviceFactory();
+
+    public static AdviceFactory<Stateful> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Advice newAdvice(Stateful annotation) {
+        return new StatefulAdvice();
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.benchmarks;
+
+import java.util.concurrent.Callable;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+import pt.ist.esw.advice.DoubleAdvice;
+import pt.ist.esw.advice.DoubleCallable;
+import pt.ist.esw.advice.IntAdvice;
+import pt.ist.esw.advice.IntCallable;
+import pt.ist.esw.advice.LongAdvice;
+import pt.ist.esw.advice.LongCallable;
+
+/**
+ * Creates an advice that just calls the advised method, which measures the cost of the advising machinery alone.
+ **/
+public final class TrivialAdviceFactory extends AdviceFactory<Trivial> {
+
+    static final class TrivialAdvice implements IntAdvice, LongAdvice, DoubleAdvice {
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            return method.call();
+        }
+
+        @Override
+        public int performInt(IntCallable method) throws Exception {
+            return method.callInt();
+        }
+
+        @Override
+        public long performLong(LongCallable method) throws Exception {
+            return method.callLong();
+        }
+
+        @Override
+        public double performDouble(DoubleCallable method) throws Exception {
+            return method.callDouble();
+        }
+    }
+
+    private TrivialAdviceFactory() {
+    }
+
+    private final static TrivialAdviceFactory instance = new TrivialAdviceFactory();
+
+    public static AdviceFactory<Trivial> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Advice newAdvice(Trivial annotation) {
+        return new TrivialAdvice();
+    }
+
+}
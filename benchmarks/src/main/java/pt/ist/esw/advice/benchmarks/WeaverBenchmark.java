@@ -0,0 +1,286 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.benchmarks;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import pt.ist.esw.advice.ProcessAnnotations;
+import pt.ist.esw.advice.ProcessAnnotations.ProgramArgs;
+
+/**
+ * Measures how ProcessAnnotations scales with the size of the code base. Each run generates a synthetic tree of class
+ * files, some of whose methods are advised with {@link Trivial}, weaves it, and reports the classes and megabytes
+ * woven per second, the peak heap used and the time spent in garbage collection. Generating the tree is not measured.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar pt.ist.esw.advice.benchmarks.WeaverBenchmark [options]
+ * </pre>
+ *
+ * Options, with their defaults:
+ * <ul>
+ * <li>-classes 1000: number of classes in the tree, spread over packages of 100 classes</li>
+ * <li>-methods 10: methods per class</li>
+ * <li>-advised 0.2: share of the methods that are advised</li>
+ * <li>-arity 2: arguments per method, alternating int and Object</li>
+ * <li>-size 20: extra instructions per method body, to vary the size of the classes</li>
+ * <li>-runs 3: number of runs, each over a freshly generated tree</li>
+ * <li>-j 1: weaving threads</li>
+ * <li>-i: keep a weaving index, and weave each tree a second time to measure the run that finds it up to date</li>
+ * <li>-r, -g, -s: passed on to ProcessAnnotations</li>
+ * </ul>
+ **/
+public final class WeaverBenchmark {
+    private static final String ANNOTATION_DESC = Type.getDescriptor(Trivial.class);
+    private static final int CLASSES_PER_PACKAGE = 100;
+
+    private int classes = 1000;
+    private int methods = 10;
+    private double advised = 0.2;
+    private int arity = 2;
+    private int size = 20;
+    private int runs = 3;
+    private int parallelism = 1;
+    private boolean index;
+    private boolean reuseCallables;
+    private boolean dispatchCallables;
+    private boolean specializeAdvice;
+
+    private WeaverBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        WeaverBenchmark benchmark = new WeaverBenchmark();
+        for (int pos = 0; pos < args.length; pos++) {
+            String option = args[pos];
+            if (option.equals("-i")) {
+                benchmark.index = true;
+            } else if (option.equals("-r")) {
+                benchmark.reuseCallables = true;
+            } else if (option.equals("-g")) {
+                benchmark.dispatchCallables = true;
+            } else if (option.equals("-s")) {
+                benchmark.specializeAdvice = true;
+            } else if (pos + 1 < args.length) {
+                String value = args[++pos];
+                if (option.equals("-classes")) {
+                    benchmark.classes = Integer.parseInt(value);
+                } else if (option.equals("-methods")) {
+                    benchmark.methods = Integer.parseInt(value);
+                } else if (option.equals("-advised")) {
+                    benchmark.advised = Double.parseDouble(value);
+                } else if (option.equals("-arity")) {
+                    benchmark.arity = Integer.parseInt(value);
+                } else if (option.equals("-size")) {
+                    benchmark.size = Integer.parseInt(value);
+                } else if (option.equals("-runs")) {
+                    benchmark.runs = Integer.parseInt(value);
+                } else if (option.equals("-j")) {
+                    benchmark.parallelism = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } else {
+                throw new IllegalArgumentException("Option " + option + " requires argument");
+            }
+        }
+        benchmark.run();
+    }
+
+    private void run() throws IOException {
+        System.out.printf("classes=%d methods=%d advised=%.2f arity=%d size=%d threads=%d%n", classes, methods,
+                advised, arity, size, parallelism);
+        System.out.printf("%-6s %10s %12s %10s %12s %10s %10s%n", "run", "time (ms)", "classes/s", "MB/s",
+                "peak heap MB", "GC ms", "GC count");
+        for (int run = 1; run <= runs; run++) {
+            File root = Files.createTempDirectory("advice-weaver-benchmark").toFile();
+            try {
+                long bytes = generateTree(root, run);
+                File indexFile = index ? new File(root, "advice.idx") : null;
+                measure(Integer.toString(run), root, indexFile, bytes);
+                if (index) {
+                    measure(run + "-idx", root, indexFile, bytes);
+                }
+            } finally {
+                delete(root);
+            }
+        }
+    }
+
+    /** Weaves the tree once, printing one line of results **/
+    private void measure(String run, File root, File indexFile, long bytes) {
+        ProgramArgs args = new ProgramArgs(Trivial.class, null, root).setParallelism(parallelism);
+        args.setIndexFile(indexFile).setReuseCallables(reuseCallables).setDispatchCallables(dispatchCallables)
+                .setSpecializeAdvice(specializeAdvice);
+
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long gcTime = getGcTime();
+        long gcCount = getGcCount();
+        long start = System.nanoTime();
+
+        new ProcessAnnotations(args).process();
+
+        long elapsed = System.nanoTime() - start;
+        gcTime = getGcTime() - gcTime;
+        gcCount = getGcCount() - gcCount;
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("%-6s %10.0f %12.0f %10.1f %12.1f %10d %10d%n", run, elapsed / 1e6, classes / seconds,
+                bytes / seconds / (1024 * 1024), peakHeap / (1024.0 * 1024), gcTime, gcCount);
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    /** Writes the class files of the tree, returning their total size **/
+    private long generateTree(File root, long seed) throws IOException {
+        Random random = new Random(seed);
+        long bytes = 0;
+        for (int i = 0; i < classes; i++) {
+            String packageName = "synthetic/p" + (i / CLASSES_PER_PACKAGE);
+            String className = packageName + "/C" + i;
+            byte[] classFile = generateClass(className, random);
+            File dir = new File(root, packageName);
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Could not create directory " + dir);
+            }
+            OutputStream out = new FileOutputStream(new File(dir, "C" + i + ".class"));
+            try {
+                out.write(classFile);
+            } finally {
+                out.close();
+            }
+            bytes += classFile.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Generates a class with the given number of methods, each one summing its int arguments and the hash codes of its
+     * Object arguments, padded with extra arithmetic. Method bodies have no branches, so that the weaver never needs to
+     * look up the synthetic classes to compute frames.
+     **/
+    private byte[] generateClass(String className, Random random) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, className, null, "java/lang/Object", null);
+
+        MethodVisitor ctor = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        ctor.visitCode();
+        ctor.visitVarInsn(ALOAD, 0);
+        ctor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        ctor.visitInsn(RETURN);
+        ctor.visitMaxs(0, 0);
+        ctor.visitEnd();
+
+        StringBuilder desc = new StringBuilder("(");
+        for (int a = 0; a < arity; a++) {
+            desc.append(a % 2 == 0 ? "I" : "Ljava/lang/Object;");
+        }
+        desc.append(")I");
+
+        for (int m = 0; m < methods; m++) {
+            boolean isStatic = m % 3 == 0;
+            MethodVisitor mv =
+                    cw.visitMethod(ACC_PUBLIC | (isStatic ? ACC_STATIC : 0), "m" + m, desc.toString(), null, null);
+            if (random.nextDouble() < advised) {
+                mv.visitAnnotation(ANNOTATION_DESC, false).visitEnd();
+            }
+            mv.visitCode();
+            mv.visitLdcInsn(m);
+            int local = isStatic ? 0 : 1;
+            for (int a = 0; a < arity; a++) {
+                if (a % 2 == 0) {
+                    mv.visitVarInsn(ILOAD, local);
+                } else {
+                    mv.visitVarInsn(ALOAD, local);
+                    mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "hashCode", "(Ljava/lang/Object;)I", false);
+                }
+                mv.visitInsn(IADD);
+                local++;
+            }
+            for (int s = 0; s < size; s++) {
+                mv.visitLdcInsn(random.nextInt());
+                mv.visitInsn(s % 2 == 0 ? IXOR : IADD);
+            }
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("WARNING: Couldn't delete " + file.getPath());
+        }
+    }
+
+}
@@ -0,0 +1,357 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Java agent that applies the same transformation as {@link ProcessAnnotations} when classes are loaded, instead of
+ * post-processing the compiled classes. Usage:
+ *
+ * <pre>
+ * -javaagent:advice-program.jar=-a,&lt;annotation-class&gt;[,-f,&lt;advice-factory-class&gt;][,-a,...][,-c,&lt;cache-dir&gt;][,-r][,-l][,-d][,-m][,-g][,-s]
+ * </pre>
+ *
+ * The agent jar, the advice runtime and ASM must be on the classpath. The callable classes generated for each woven
+ * class are defined in memory, in the class loader of the woven class. If the annotation instance class was not
+ * generated with GenerateAnnotationInstance, it is generated in memory as well and defined in the system class
+ * loader.
+ *
+ * When a cache directory is given, the woven bytecode (along with the generated callables) is stored there, keyed by
+ * a hash of the original class and of the annotation and factory, so that later runs skip the ASM work for classes
+ * that did not change.
+ *
+ * Classes are defined through {@link ClassLoader}'s protected defineClass method, so on Java 9 and later the JVM
+ * must also be given <code>--add-opens java.base/java.lang=ALL-UNNAMED</code>.
+ **/
+public final class AdviceAgent implements ClassFileTransformer {
+    private static final int CACHE_MAGIC = 0xAD1CECAC;
+    private static final int CACHE_VERSION = 2;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /** Cached result for classes that refer to the annotation but have no advised methods **/
+    private static final byte[] NOT_WOVEN = new byte[0];
+
+    private static volatile Method defineClass;
+
+    final ProcessAnnotations processor;
+    final File cacheDir;
+    private final byte[] cacheKeyPrefix;
+
+    AdviceAgent(ProcessAnnotations processor, File cacheDir) {
+        initDefineClass();
+        this.processor = processor;
+        this.cacheDir = cacheDir;
+        this.cacheKeyPrefix =
+                (CACHE_VERSION + " " + processor.getConfiguration() + '\n').getBytes(Charset.forName("UTF-8"));
+    }
+
+    public static void premain(String agentArgs, Instrumentation inst) throws Exception {
+        inst.addTransformer(newAgent(agentArgs));
+    }
+
+    /** Creates the agent for the given agent arguments, as described in the documentation of this class **/
+    @SuppressWarnings("unchecked")
+    static AdviceAgent newAgent(String agentArgs) throws Exception {
+        ProcessAnnotations.ProgramArgs programArgs = new ProcessAnnotations.ProgramArgs();
+        File cacheDir = null;
+
+        String[] args =
+                agentArgs != null && !agentArgs.trim().isEmpty() ? agentArgs.trim().split("\\s*,\\s*") : new String[0];
+        for (int pos = 0; pos < args.length; pos++) {
+            String option = args[pos];
+            if (option.equals("-r")) {
+                programArgs.setReuseCallables(true);
+                continue;
+            } else if (option.equals("-d")) {
+                programArgs.setInvokeDynamic(true);
+                continue;
+            } else if (option.equals("-l")) {
+                programArgs.setLazyAdvice(true);
+                continue;
+            } else if (option.equals("-m")) {
+                programArgs.setManagedAdvice(true);
+                continue;
+            } else if (option.equals("-g")) {
+                programArgs.setDispatchCallables(true);
+                continue;
+            } else if (option.equals("-s")) {
+                programArgs.setSpecializeAdvice(true);
+                continue;
+            }
+            if (++pos >= args.length) {
+                throw new IllegalArgumentException("AdviceAgent: option " + option + " requires argument");
+            }
+            if (option.equals("-a")) {
+                programArgs.addAnnotation(Class.forName(args[pos]).asSubclass(Annotation.class), null);
+            } else if (option.equals("-f")) {
+                // As for ProcessAnnotations, the factory applies to the annotation given just before it
+                int last = programArgs.annotationClasses.size() - 1;
+                if (last < 0 || programArgs.annotationFactoryClasses.get(last) != null) {
+                    throw new IllegalArgumentException("AdviceAgent: option -f must follow the -a option of the "
+                            + "annotation it applies to");
+                }
+                programArgs.annotationFactoryClasses.set(last,
+                        (Class<AdviceFactory<?>>) Class.forName(args[pos]).asSubclass(AdviceFactory.class));
+            } else if (option.equals("-c")) {
+                cacheDir = new File(args[pos]);
+            } else {
+                throw new IllegalArgumentException("AdviceAgent: unknown option " + option);
+            }
+        }
+        if (programArgs.annotationClasses.isEmpty()) {
+            throw new IllegalArgumentException("AdviceAgent: annotation class is not specified. Syntax: "
+                    + "-javaagent:<jar>=-a,<annotation-class>[,-f,<advice-factory-class>][,-a,...][,-c,<cache-dir>]"
+                    + "[,-r][,-l][,-d][,-m][,-g][,-s]");
+        }
+        if ((programArgs.invokeDynamic || programArgs.managedAdvice)
+                && (programArgs.reuseCallables || programArgs.lazyAdvice)) {
+            throw new IllegalArgumentException("AdviceAgent: options -d and -m cannot be combined with -r or -l");
+        }
+        if (programArgs.dispatchCallables
+                && (programArgs.reuseCallables || programArgs.lazyAdvice || programArgs.invokeDynamic
+                        || programArgs.managedAdvice)) {
+            throw new IllegalArgumentException("AdviceAgent: option -g cannot be combined with -r, -l, -d or -m");
+        }
+
+        initDefineClass();
+
+        // Generate the annotation instance classes, unless GenerateAnnotationInstance was already run for them
+        Map<Class<? extends Annotation>, byte[]> annotationInstances =
+                new HashMap<Class<? extends Annotation>, byte[]>();
+        for (Class<? extends Annotation> annotationClass : programArgs.annotationClasses) {
+            String annotationInstance = GenerateAnnotationInstance.getAnnotationInstanceName(annotationClass);
+            if (ClassLoader.getSystemResource(annotationInstance + ".class") == null) {
+                byte[] annotationInstanceBytecode = new GenerateAnnotationInstance(annotationClass, null).generate();
+                defineClass(ClassLoader.getSystemClassLoader(), annotationInstance, annotationInstanceBytecode, null);
+                annotationInstances.put(annotationClass, annotationInstanceBytecode);
+            }
+        }
+
+        ProcessAnnotations processor = new ProcessAnnotations(programArgs, annotationInstances);
+        if (cacheDir != null && !cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create required directory: " + cacheDir);
+        }
+        return new AdviceAgent(processor, cacheDir);
+    }
+
+    private static synchronized void initDefineClass() {
+        if (defineClass != null) {
+            return;
+        }
+        try {
+            Method method =
+                    ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class,
+                            int.class, ProtectionDomain.class);
+            method.setAccessible(true);
+            defineClass = method;
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("AdviceAgent: cannot define classes; "
+                    + "run the JVM with --add-opens java.base/java.lang=ALL-UNNAMED", e);
+        }
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // Classes from the bootstrap class loader are never woven, and neither are classes being redefined, as
+        // redefinition cannot add methods or fields
+        if (loader == null || classBeingRedefined != null) {
+            return null;
+        }
+
+        try {
+            // The constant pool scan is cheaper than hashing the class for the cache lookup
+            if (!processor.referencesAnnotation(classfileBuffer)) {
+                return null;
+            }
+
+            Map<String, byte[]> generatedClasses = new LinkedHashMap<String, byte[]>();
+            byte[] wovenBytecode = null;
+            String cacheKey = null;
+            if (cacheDir != null) {
+                cacheKey = getCacheKey(classfileBuffer);
+                wovenBytecode = readCache(cacheKey, generatedClasses);
+            }
+            if (wovenBytecode == null) {
+                generatedClasses.clear();
+                // Classes are resolved by the loader of the woven class, to compute stack map frames. The hierarchy is
+                // not kept, as it would keep the loader alive.
+                wovenBytecode = processor.weaveClass(classfileBuffer, generatedClasses, new ClassHierarchy(loader));
+                if (cacheKey != null) {
+                    writeCache(cacheKey, wovenBytecode != null ? wovenBytecode : NOT_WOVEN, generatedClasses);
+                }
+            }
+            if (wovenBytecode == null || wovenBytecode == NOT_WOVEN) {
+                return null;
+            }
+
+            // The callables only refer to the woven class, which is resolved lazily, so they can be defined first
+            for (Map.Entry<String, byte[]> generated : generatedClasses.entrySet()) {
+                defineClass(loader, generated.getKey(), generated.getValue(), protectionDomain);
+            }
+            return wovenBytecode;
+        } catch (Throwable t) {
+            // Exceptions thrown by transformers are silently ignored by the JVM, so at least report them
+            System.err.println("AdviceAgent: error weaving class " + className);
+            t.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void defineClass(ClassLoader loader, String internalName, byte[] bytecode,
+            ProtectionDomain protectionDomain) throws IllegalAccessException, InvocationTargetException {
+        defineClass.invoke(loader, internalName.replace('/', '.'), bytecode, 0, bytecode.length, protectionDomain);
+    }
+
+    private String getCacheKey(byte[] bytecode) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(cacheKeyPrefix);
+        byte[] hash = digest.digest(bytecode);
+        char[] key = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            key[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            key[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+        return new String(key);
+    }
+
+    /**
+     * Reads the woven bytecode of a class from the cache.
+     *
+     * @return The woven bytecode, {@link #NOT_WOVEN} if the class has no advised methods, or null if the class is not
+     *         in the cache
+     **/
+    private byte[] readCache(String cacheKey, Map<String, byte[]> generatedClasses) {
+        File cacheFile = new File(cacheDir, cacheKey);
+        if (!cacheFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != CACHE_MAGIC) {
+                return null;
+            }
+            int length = in.readInt();
+            if (length == 0) {
+                return NOT_WOVEN;
+            }
+            byte[] wovenBytecode = new byte[length];
+            in.readFully(wovenBytecode);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] bytecode = new byte[in.readInt()];
+                in.readFully(bytecode);
+                generatedClasses.put(name, bytecode);
+            }
+            return wovenBytecode;
+        } catch (IOException e) {
+            System.err.println("AdviceAgent: ignoring unreadable cache entry " + cacheFile.getPath() + ": " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the woven bytecode of a class to the cache. The entry is written to a temporary file and then renamed, so
+     * that JVMs sharing the cache never read partially written entries.
+     **/
+    private void writeCache(String cacheKey, byte[] wovenBytecode, Map<String, byte[]> generatedClasses) {
+        File cacheFile = new File(cacheDir, cacheKey);
+        DataOutputStream out = null;
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(cacheKey, ".tmp", cacheDir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(wovenBytecode.length);
+            out.write(wovenBytecode);
+            out.writeInt(generatedClasses.size());
+            for (Map.Entry<String, byte[]> generated : generatedClasses.entrySet()) {
+                out.writeUTF(generated.getKey());
+                out.writeInt(generated.getValue().length);
+                out.write(generated.getValue());
+            }
+            out.close();
+            out = null;
+            try {
+                Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmpFile = null;
+        } catch (IOException e) {
+            // The cache is just an optimization
+            System.err.println("AdviceAgent: couldn't write cache entry " + cacheFile.getPath() + ": " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (tmpFile != null && !tmpFile.delete()) {
+                System.err.println("AdviceAgent: couldn't delete temporary file " + tmpFile.getPath());
+            }
+        }
+    }
+}
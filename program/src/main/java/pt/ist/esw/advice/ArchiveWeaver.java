@@ -0,0 +1,533 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Weaves the class files inside a JAR or ZIP archive, replacing the archive with the woven one.
+ *
+ * Entries are streamed from the input to the output archive one at a time, so memory use depends on the size of the
+ * largest class file and not on the size of the archive. Only class files are decompressed, to look for advised
+ * methods; every entry that is not woven (including class files without advised methods) is copied with its original
+ * compressed data, without being recompressed. Woven classes are recompressed, and the callable classes generated for
+ * them are added as new entries next to them. The callables generated for a class by previous runs are dropped when
+ * the class was compiled again, and kept when it is being woven with the annotations of another run.
+ *
+ * The classes of the archive are looked up in the archive itself, and then in the weaving classpath, when computing
+ * stack map frames, so the archive does not need to be in the classpath.
+ *
+ * ZIP64 archives are not supported. Archives in which no class was woven are left untouched.
+ **/
+final class ArchiveWeaver {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int VERSION_DEFLATED = 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset CP437 = Charset.forName("IBM437");
+
+    /** An entry of the central directory of the input archive **/
+    private static final class CentralEntry {
+        byte[] header;
+        byte[] rawName;
+        byte[] extra;
+        byte[] comment;
+        String name;
+        long next;
+
+        int flags() {
+            return u16(header, 8);
+        }
+
+        int method() {
+            return u16(header, 10);
+        }
+
+        long compressedSize() {
+            return u32(header, 20);
+        }
+
+        long size() {
+            return u32(header, 24);
+        }
+
+        long localHeaderOffset() {
+            return u32(header, 42);
+        }
+    }
+
+    /** Output archive, which keeps track of the current offset and of the central directory being built **/
+    private static final class ArchiveOutput {
+        private final OutputStream out;
+        private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+        private long offset;
+        private int entryCount;
+
+        ArchiveOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            offset += len;
+        }
+
+        /** Adds a central directory record, pointing at the local header written at the given offset **/
+        void addCentralEntry(byte[] header, byte[] rawName, byte[] extra, byte[] comment, long localHeaderOffset)
+                throws IOException {
+            byte[] record = header.clone();
+            putU32(record, 42, localHeaderOffset);
+            centralDirectory.write(record);
+            centralDirectory.write(rawName);
+            centralDirectory.write(extra);
+            centralDirectory.write(comment);
+            entryCount++;
+        }
+
+        void finish(byte[] archiveComment) throws IOException {
+            if (entryCount > 0xFFFF || offset > 0xFFFFFFFFL) {
+                throw new IOException("Woven archive would need ZIP64 extensions, which are not supported");
+            }
+            long centralDirectoryOffset = offset;
+            write(centralDirectory.toByteArray());
+            byte[] end = new byte[END_SIZE];
+            putU32(end, 0, END_SIGNATURE);
+            putU16(end, 8, entryCount);
+            putU16(end, 10, entryCount);
+            putU32(end, 12, centralDirectory.size());
+            putU32(end, 16, centralDirectoryOffset);
+            putU16(end, 20, archiveComment.length);
+            write(end);
+            write(archiveComment);
+            out.close();
+        }
+    }
+
+    private final ProcessAnnotations processor;
+
+    ArchiveWeaver(ProcessAnnotations processor) {
+        this.processor = processor;
+    }
+
+    /**
+     * Weaves the given archive in place.
+     *
+     * @return true if at least one class was woven, and thus the archive was rewritten
+     **/
+    boolean weave(File archive) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(archive, "r");
+        URLClassLoader archiveLoader = null;
+        File tmpFile = null;
+        OutputStream os = null;
+        try {
+            // Locate and read the end of central directory record
+            long endOffset = findEnd(in);
+            byte[] end = new byte[END_SIZE];
+            in.seek(endOffset);
+            in.readFully(end);
+            int entryCount = u16(end, 10);
+            long centralDirectoryOffset = u32(end, 16);
+            if (entryCount == 0xFFFF || centralDirectoryOffset == 0xFFFFFFFFL) {
+                throw new IOException("ZIP64 archives are not supported");
+            }
+            byte[] archiveComment = new byte[u16(end, 20)];
+            in.readFully(archiveComment);
+
+            // The names of all entries are needed up front, to recognize callables generated by a previous run
+            Set<String> names = new HashSet<String>();
+            for (long pos = centralDirectoryOffset, i = 0; i < entryCount; i++) {
+                CentralEntry entry = readCentralEntry(in, pos);
+                names.add(entry.name);
+                pos = entry.next;
+            }
+
+            // Only used to find class files, never to load classes
+            archiveLoader = new URLClassLoader(new URL[] { archive.toURI().toURL() },
+                    Thread.currentThread().getContextClassLoader());
+            ClassHierarchy hierarchy = new ClassHierarchy(archiveLoader);
+
+            tmpFile = File.createTempFile(archive.getName(), ".tmp", archive.getAbsoluteFile().getParentFile());
+            os = new BufferedOutputStream(new FileOutputStream(tmpFile));
+            ArchiveOutput out = new ArchiveOutput(os);
+            Set<String> wovenNames = new HashSet<String>();
+            // Woven classes that no run had woven before, whose previously generated callables are stale
+            Set<String> recompiledNames = new HashSet<String>();
+            Set<String> generatedNames = new HashSet<String>();
+            boolean signed = false;
+
+            // First pass: copy or weave every entry, except for previously generated callables
+            for (long pos = centralDirectoryOffset, i = 0; i < entryCount; i++) {
+                CentralEntry entry = readCentralEntry(in, pos);
+                pos = entry.next;
+                if (entry.name.startsWith("META-INF/") && entry.name.endsWith(".SF")) {
+                    signed = true;
+                }
+                if (isGeneratedCallable(entry.name, names)) {
+                    continue;
+                }
+                if (entry.name.toLowerCase().endsWith(".class")) {
+                    if (weaveEntry(in, entry, out, hierarchy, recompiledNames, generatedNames)) {
+                        wovenNames.add(entry.name);
+                    }
+                } else {
+                    copyEntry(in, entry, out, null);
+                }
+            }
+            // Second pass: copy the previously generated callables, unless their class was compiled again, in which
+            // case they are stale, or this run generated them again. Classes woven by another run keep its callables.
+            for (long pos = centralDirectoryOffset, i = 0; i < entryCount; i++) {
+                CentralEntry entry = readCentralEntry(in, pos);
+                pos = entry.next;
+                if (isGeneratedCallable(entry.name, names) && !recompiledNames.contains(getHostName(entry.name))
+                        && !generatedNames.contains(entry.name)) {
+                    copyEntry(in, entry, out, null);
+                }
+            }
+
+            out.finish(archiveComment);
+            os = null;
+            in.close();
+            in = null;
+            archiveLoader.close();
+            archiveLoader = null;
+
+            if (wovenNames.isEmpty()) {
+                return false;
+            }
+            if (signed) {
+                System.err.println("WARNING: Woven archive " + archive.getPath()
+                        + " was signed; its signature is no longer valid");
+            }
+            try {
+                Files.move(tmpFile.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmpFile = null;
+            return true;
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (archiveLoader != null) {
+                try {
+                    archiveLoader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (tmpFile != null && !tmpFile.delete()) {
+                System.err.println("WARNING: Couldn't delete temporary file " + tmpFile.getPath());
+            }
+        }
+    }
+
+    /**
+     * Weaves a class file entry, or copies it if it has no advised methods.
+     *
+     * @param recompiledNames Receives the name of the entry if it is woven and no run had woven it before
+     * @param generatedNames Receives the names of the entries of the callable classes generated for it
+     * @return true if the entry was woven
+     **/
+    private boolean weaveEntry(RandomAccessFile in, CentralEntry entry, ArchiveOutput out, ClassHierarchy hierarchy,
+            Set<String> recompiledNames, Set<String> generatedNames) throws IOException {
+        int method = entry.method();
+        if ((method != METHOD_STORED && method != METHOD_DEFLATED) || (entry.flags() & FLAG_ENCRYPTED) != 0) {
+            System.err.println("WARNING: Not weaving " + entry.name + ", which is encrypted or uses unsupported"
+                    + " compression method " + method);
+            copyEntry(in, entry, out, null);
+            return false;
+        }
+
+        byte[] compressed = new byte[(int) entry.compressedSize()];
+        in.seek(getDataOffset(in, entry));
+        in.readFully(compressed);
+        byte[] bytecode = method == METHOD_STORED ? compressed : inflate(compressed, (int) entry.size(), entry.name);
+
+        Map<String, byte[]> generatedClasses = new LinkedHashMap<String, byte[]>();
+        byte[] wovenBytecode = processor.weaveClass(bytecode, generatedClasses, hierarchy);
+        if (wovenBytecode == null) {
+            copyEntry(in, entry, out, compressed);
+            return false;
+        }
+
+        writeDeflatedEntry(entry, entry.name, entry.rawName, wovenBytecode, out);
+        if (!ProcessAnnotations.isWoven(bytecode)) {
+            recompiledNames.add(entry.name);
+        }
+        // Callable classes go in the same directory (package) as the class that uses them
+        String directory = entry.name.substring(0, entry.name.lastIndexOf('/') + 1);
+        for (Map.Entry<String, byte[]> generated : generatedClasses.entrySet()) {
+            String className = generated.getKey();
+            String name = directory + className.substring(className.lastIndexOf('/') + 1) + ".class";
+            writeDeflatedEntry(entry, name, name.getBytes((entry.flags() & FLAG_UTF8) != 0 ? UTF8 : CP437),
+                    generated.getValue(), out);
+            generatedNames.add(name);
+        }
+        return true;
+    }
+
+    /**
+     * Copies an entry without decompressing it. The local header is rewritten from the central directory record, so
+     * that no data descriptor is needed after the data.
+     *
+     * @param compressed The compressed data of the entry, if it was already read, or null to stream it from the input
+     **/
+    private static void copyEntry(RandomAccessFile in, CentralEntry entry, ArchiveOutput out, byte[] compressed)
+            throws IOException {
+        long dataOffset = getDataOffset(in, entry);
+        long localExtraOffset = entry.localHeaderOffset() + LOCAL_HEADER_SIZE + entry.rawName.length;
+        byte[] localExtra = new byte[(int) (dataOffset - localExtraOffset)];
+        in.seek(localExtraOffset);
+        in.readFully(localExtra);
+
+        byte[] header = entry.header.clone();
+        putU16(header, 8, entry.flags() & ~FLAG_DATA_DESCRIPTOR);
+        long localHeaderOffset = out.offset;
+        writeLocalHeader(header, entry.rawName, localExtra, out);
+
+        if (compressed != null) {
+            out.write(compressed);
+        } else {
+            in.seek(dataOffset);
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = entry.compressedSize();
+            while (remaining > 0) {
+                int len = (int) Math.min(buffer.length, remaining);
+                in.readFully(buffer, 0, len);
+                out.write(buffer, 0, len);
+                remaining -= len;
+            }
+        }
+        out.addCentralEntry(header, entry.rawName, entry.extra, entry.comment, localHeaderOffset);
+    }
+
+    /** Writes a new deflated entry, taking the flags and modification time from the given template entry **/
+    private static void writeDeflatedEntry(CentralEntry template, String name, byte[] rawName, byte[] data,
+            ArchiveOutput out) throws IOException {
+        byte[] compressed = deflate(data);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        byte[] header = new byte[CENTRAL_HEADER_SIZE];
+        putU32(header, 0, CENTRAL_HEADER_SIGNATURE);
+        putU16(header, 4, Math.max(u16(template.header, 4), VERSION_DEFLATED));
+        putU16(header, 6, VERSION_DEFLATED);
+        putU16(header, 8, template.flags() & FLAG_UTF8);
+        putU16(header, 10, METHOD_DEFLATED);
+        System.arraycopy(template.header, 12, header, 12, 4); // modification time and date
+        putU32(header, 16, crc.getValue());
+        putU32(header, 20, compressed.length);
+        putU32(header, 24, data.length);
+        putU16(header, 28, rawName.length);
+
+        long localHeaderOffset = out.offset;
+        writeLocalHeader(header, rawName, new byte[0], out);
+        out.write(compressed);
+        out.addCentralEntry(header, rawName, new byte[0], new byte[0], localHeaderOffset);
+    }
+
+    /** Writes a local file header with the same fields as the given central directory header **/
+    private static void writeLocalHeader(byte[] centralHeader, byte[] rawName, byte[] extra, ArchiveOutput out)
+            throws IOException {
+        byte[] local = new byte[LOCAL_HEADER_SIZE];
+        putU32(local, 0, LOCAL_HEADER_SIGNATURE);
+        // version needed, flags, method, time, date, crc, compressed and uncompressed sizes
+        System.arraycopy(centralHeader, 6, local, 4, 22);
+        putU16(local, 26, rawName.length);
+        putU16(local, 28, extra.length);
+        out.write(local);
+        out.write(rawName);
+        out.write(extra);
+    }
+
+    private static boolean isGeneratedCallable(String name, Set<String> names) {
+        return name.indexOf("$callable$") > 0 && name.endsWith(".class") && names.contains(getHostName(name));
+    }
+
+    /** Returns the name of the class file entry for which the given callable class entry was generated **/
+    private static String getHostName(String callableName) {
+        return callableName.substring(0, callableName.indexOf("$callable$")) + ".class";
+    }
+
+    private static long findEnd(RandomAccessFile in) throws IOException {
+        long length = in.length();
+        int searchLength = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+        byte[] tail = new byte[searchLength];
+        in.seek(length - searchLength);
+        in.readFully(tail);
+        for (int pos = searchLength - END_SIZE; pos >= 0; pos--) {
+            if (u32(tail, pos) == END_SIGNATURE && pos + END_SIZE + u16(tail, pos + 20) == searchLength) {
+                return length - searchLength + pos;
+            }
+        }
+        throw new IOException("Not a ZIP archive (end of central directory not found)");
+    }
+
+    private static CentralEntry readCentralEntry(RandomAccessFile in, long pos) throws IOException {
+        CentralEntry entry = new CentralEntry();
+        entry.header = new byte[CENTRAL_HEADER_SIZE];
+        in.seek(pos);
+        in.readFully(entry.header);
+        if (u32(entry.header, 0) != CENTRAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid central directory entry at offset " + pos);
+        }
+        entry.rawName = new byte[u16(entry.header, 28)];
+        entry.extra = new byte[u16(entry.header, 30)];
+        entry.comment = new byte[u16(entry.header, 32)];
+        in.readFully(entry.rawName);
+        in.readFully(entry.extra);
+        in.readFully(entry.comment);
+        entry.name = new String(entry.rawName, (entry.flags() & FLAG_UTF8) != 0 ? UTF8 : CP437);
+        entry.next = pos + CENTRAL_HEADER_SIZE + entry.rawName.length + entry.extra.length + entry.comment.length;
+        if (entry.compressedSize() == 0xFFFFFFFFL || entry.size() == 0xFFFFFFFFL
+                || entry.localHeaderOffset() == 0xFFFFFFFFL) {
+            throw new IOException("ZIP64 archives are not supported");
+        }
+        return entry;
+    }
+
+    private static long getDataOffset(RandomAccessFile in, CentralEntry entry) throws IOException {
+        byte[] local = new byte[LOCAL_HEADER_SIZE];
+        in.seek(entry.localHeaderOffset());
+        in.readFully(local);
+        if (u32(local, 0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for entry " + entry.name);
+        }
+        return entry.localHeaderOffset() + LOCAL_HEADER_SIZE + u16(local, 26) + u16(local, 28);
+    }
+
+    private static byte[] inflate(byte[] compressed, int size, String name) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            // With nowrap, the inflater may need an extra dummy byte after the compressed data
+            byte[] input = new byte[compressed.length + 1];
+            System.arraycopy(compressed, 0, input, 0, compressed.length);
+            inflater.setInput(input);
+            byte[] data = new byte[size];
+            int pos = 0;
+            while (pos < size && !inflater.finished()) {
+                int len = inflater.inflate(data, pos, size - pos);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                pos += len;
+            }
+            if (pos != size) {
+                throw new IOException("Truncated data for entry " + name);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data for entry " + name, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[8 * 1024];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buffer);
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int u16(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8;
+    }
+
+    private static long u32(byte[] b, int off) {
+        return (u16(b, off) | (long) u16(b, off + 2) << 16) & 0xFFFFFFFFL;
+    }
+
+    private static void putU16(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putU32(byte[] b, int off, long value) {
+        putU16(b, off, (int) (value & 0xFFFF));
+        putU16(b, off + 2, (int) (value >>> 16));
+    }
+}
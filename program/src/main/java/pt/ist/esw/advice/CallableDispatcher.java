@@ -0,0 +1,490 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/**
+ * Generates the single callable class that dispatches the calls of all the advised methods of a host class, used
+ * instead of one callable class per advised method when {@link ProcessAnnotations.ProgramArgs#setDispatchCallables}
+ * is set.
+ *
+ * For the host class Xpto with advised methods long add(Object o, int i) and int size(), both advised with
+ * a.b.Annot, we generate:
+ *
+ * <pre>
+ * final class Xpto$callable$a_b_Annot implements Callable, IntCallable, LongCallable {
+ *     final int method;
+ *     final int i0;
+ *     final Object a0, a1;
+ *
+ *     Xpto$callable$a_b_Annot(int method, Object a0, Object a1, int i0) { ... }
+ *     Xpto$callable$a_b_Annot(int method, Object a0) { ... }
+ *
+ *     public Object call() {
+ *         switch (method) {
+ *         case 0: return Long.valueOf(Xpto.advised$add((Xpto) a0, a1, i0));
+ *         case 1: return Integer.valueOf(Xpto.advised$size((Xpto) a0));
+ *         }
+ *     }
+ *
+ *     public long callLong() {
+ *         switch (method) {
+ *         case 0: return Xpto.advised$add((Xpto) a0, a1, i0);
+ *         }
+ *     }
+ *     ...
+ * }
+ * </pre>
+ *
+ * The dispatcher is named after the first annotation that the run weaves into the host class, as another run may
+ * weave other annotations into the same class, with a dispatcher of its own.
+ *
+ * Arguments are kept in fields shared by all the methods, one per argument of each kind (int, long, float, double or
+ * reference), so there are only as many fields as needed by the advised method with most arguments of each kind. As
+ * with the per-method callables, two instances are equal when they call the same method with equal arguments.
+ *
+ * Instances are not safe for use by concurrent weaving tasks; there is one per woven host class.
+ **/
+final class CallableDispatcher {
+    private static final String OBJECT = "java/lang/Object";
+    private static final String METHOD_FIELD = "method";
+
+    /** Field name prefix and descriptor of each kind of field that holds arguments **/
+    private static final String[][] KINDS = { { "i", "I" }, { "j", "J" }, { "f", "F" }, { "d", "D" },
+            { "a", "Ljava/lang/Object;" } };
+    private static final int REFERENCE = 4;
+
+    private static final class DispatchedMethod {
+        final String name;
+        final String desc;
+
+        DispatchedMethod(String name, String desc) {
+            this.name = name;
+            this.desc = desc;
+        }
+    }
+
+    private final String hostClass;
+    private final boolean hostIsInterface;
+    private final String name;
+    private final List<DispatchedMethod> methods = new ArrayList<DispatchedMethod>();
+    private final int[] fieldCounts = new int[KINDS.length];
+
+    /**
+     * @param hostClass The internal name of the class whose advised methods are dispatched
+     * @param nameSuffix Appended to the name of the dispatcher class, to tell apart the dispatchers generated for the
+     *            same host class by different runs
+     **/
+    CallableDispatcher(String hostClass, String nameSuffix, boolean hostIsInterface, ClassHierarchy hierarchy) {
+        this.hostClass = hostClass;
+        this.hostIsInterface = hostIsInterface;
+        this.name = hostClass + "$callable$" + nameSuffix;
+        hierarchy.define(name, OBJECT, false);
+    }
+
+    /** Returns the internal name of the dispatcher class **/
+    String getName() {
+        return name;
+    }
+
+    /** Returns true if no methods were added, in which case the dispatcher class need not be generated **/
+    boolean isEmpty() {
+        return methods.isEmpty();
+    }
+
+    /**
+     * Adds an advised method, returning the index the method is dispatched by.
+     *
+     * @param methodName The name of the static method of the host class that is called
+     * @param methodDesc Its descriptor
+     **/
+    int add(String methodName, String methodDesc) {
+        int[] counts = new int[KINDS.length];
+        for (Type t : Type.getArgumentTypes(methodDesc)) {
+            counts[getKind(t)]++;
+        }
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            fieldCounts[kind] = Math.max(fieldCounts[kind], counts[kind]);
+        }
+        methods.add(new DispatchedMethod(methodName, methodDesc));
+        return methods.size() - 1;
+    }
+
+    /**
+     * Generates code that creates an instance for the call of the method with the given index, whose arguments are in
+     * the first local variables, and leaves it on the stack.
+     **/
+    void newInstance(MethodVisitor mv, int index) {
+        String methodDesc = methods.get(index).desc;
+        mv.visitTypeInsn(NEW, name);
+        mv.visitInsn(DUP);
+        pushInt(mv, index);
+        int pos = 0;
+        for (Type t : Type.getArgumentTypes(methodDesc)) {
+            mv.visitVarInsn(t.getOpcode(ILOAD), pos);
+            pos += t.getSize();
+        }
+        mv.visitMethodInsn(INVOKESPECIAL, name, "<init>", getConstructorDesc(methodDesc), false);
+    }
+
+    /**
+     * Returns the bytecode of the dispatcher class.
+     *
+     * @param hostVersion The class file version of the host class. The dispatcher has the same version, but at least
+     *            Java 6, as its frames are computed.
+     **/
+    byte[] generate(int hostVersion, ClassHierarchy hierarchy) {
+        List<String> interfaces = new ArrayList<String>();
+        interfaces.add("java/util/concurrent/Callable");
+        for (String specialization : new String[] { "Int", "Long", "Double" }) {
+            if (!getMethods(specialization).isEmpty()) {
+                interfaces.add(getCallableInterface(specialization));
+            }
+        }
+
+        int version = (hostVersion & 0xFFFF) < V1_6 ? V1_6 : hostVersion;
+        ClassWriter cw = hierarchy.newClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(version, ACC_FINAL | ACC_SYNTHETIC, name, null, OBJECT, interfaces.toArray(new String[0]));
+        cw.visitSource("Advice Library Automatically Generated Class", null);
+
+        cw.visitField(ACC_PRIVATE | ACC_FINAL, METHOD_FIELD, "I", null, null);
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            for (int i = 0; i < fieldCounts[kind]; i++) {
+                cw.visitField(ACC_PRIVATE | ACC_FINAL, KINDS[kind][0] + i, KINDS[kind][1], null, null);
+            }
+        }
+
+        List<String> constructors = new ArrayList<String>();
+        for (DispatchedMethod method : methods) {
+            String ctorDesc = getConstructorDesc(method.desc);
+            if (!constructors.contains(ctorDesc)) {
+                constructors.add(ctorDesc);
+                generateConstructor(cw, ctorDesc);
+            }
+        }
+
+        // Create call method, boxing the results of the methods that return primitives
+        {
+            List<Integer> all = new ArrayList<Integer>();
+            for (int i = 0; i < methods.size(); i++) {
+                all.add(i);
+            }
+            generateCall(cw, "call", Type.getType(Object.class), all);
+        }
+
+        // Create the specialized call methods, each dispatching only the methods with its return type
+        for (String specialization : new String[] { "Int", "Long", "Double" }) {
+            List<Integer> specialized = getMethods(specialization);
+            if (!specialized.isEmpty()) {
+                generateCall(cw, "call" + specialization,
+                        Type.getReturnType(methods.get(specialized.get(0)).desc), specialized);
+            }
+        }
+
+        generateEquality(cw);
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private void generateConstructor(ClassWriter cw, String ctorDesc) {
+        MethodVisitor mv = cw.visitMethod(0, "<init>", ctorDesc, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, OBJECT, "<init>", "()V", false);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitFieldInsn(PUTFIELD, name, METHOD_FIELD, "I");
+        Type[] arguments = Type.getArgumentTypes(ctorDesc);
+        int[] next = new int[KINDS.length];
+        int localsPos = 2;
+        // The first argument is the method index
+        for (int i = 1; i < arguments.length; i++) {
+            Type t = arguments[i];
+            int kind = getKind(t);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(t.getOpcode(ILOAD), localsPos);
+            mv.visitFieldInsn(PUTFIELD, name, KINDS[kind][0] + next[kind]++, KINDS[kind][1]);
+            localsPos += t.getSize();
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Generates a call method that switches on the method index to the given methods, either returning their result as
+     * is or, if the return type is Object, boxed.
+     **/
+    private void generateCall(ClassWriter cw, String callName, Type returnType, List<Integer> indexes) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, callName, "()" + returnType.getDescriptor(), null,
+                new String[] { "java/lang/Exception" });
+        mv.visitCode();
+        Label unknown = new Label();
+        Label[] labels = new Label[indexes.size()];
+        int[] keys = new int[indexes.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = new Label();
+            keys[i] = indexes.get(i);
+        }
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, name, METHOD_FIELD, "I");
+        if (keys[keys.length - 1] - keys[0] == keys.length - 1) {
+            mv.visitTableSwitchInsn(keys[0], keys[keys.length - 1], unknown, labels);
+        } else {
+            mv.visitLookupSwitchInsn(unknown, keys, labels);
+        }
+
+        for (int i = 0; i < labels.length; i++) {
+            DispatchedMethod method = methods.get(keys[i]);
+            mv.visitLabel(labels[i]);
+            int[] next = new int[KINDS.length];
+            for (Type t : Type.getArgumentTypes(method.desc)) {
+                int kind = getKind(t);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, name, KINDS[kind][0] + next[kind]++, KINDS[kind][1]);
+                if (kind == REFERENCE && !t.getInternalName().equals(OBJECT)) {
+                    mv.visitTypeInsn(CHECKCAST, t.getInternalName());
+                }
+            }
+            mv.visitMethodInsn(INVOKESTATIC, hostClass, method.name, method.desc, hostIsInterface);
+            if (returnType.getSort() == Type.OBJECT) {
+                Type methodReturnType = Type.getReturnType(method.desc);
+                if (methodReturnType.equals(Type.VOID_TYPE)) {
+                    mv.visitInsn(ACONST_NULL);
+                } else if (methodReturnType.getSort() != Type.OBJECT && methodReturnType.getSort() != Type.ARRAY) {
+                    box(mv, methodReturnType);
+                }
+            }
+            mv.visitInsn(returnType.getOpcode(IRETURN));
+        }
+
+        // Not reachable, as instances are only created with the index of a dispatched method
+        mv.visitLabel(unknown);
+        mv.visitTypeInsn(NEW, "java/lang/IllegalStateException");
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn("Unknown advised method");
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V", false);
+        mv.visitInsn(ATHROW);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Generates equals and hashCode methods comparing the method index and all argument fields, unused fields being
+     * always zero or null. Primitives are compared by value (floats and doubles by their bits), and objects with their
+     * own equals and hashCode. Arrays are compared by identity.
+     **/
+    private void generateEquality(ClassWriter cw) {
+        // Create equals method
+        {
+            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "equals", "(Ljava/lang/Object;)Z", null, null);
+            mv.visitCode();
+            Label notEqual = new Label();
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitTypeInsn(INSTANCEOF, name);
+            mv.visitJumpInsn(IFEQ, notEqual);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitTypeInsn(CHECKCAST, name);
+            mv.visitVarInsn(ASTORE, 2);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, name, METHOD_FIELD, "I");
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitFieldInsn(GETFIELD, name, METHOD_FIELD, "I");
+            mv.visitJumpInsn(IF_ICMPNE, notEqual);
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                for (int i = 0; i < fieldCounts[kind]; i++) {
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitFieldInsn(GETFIELD, name, KINDS[kind][0] + i, KINDS[kind][1]);
+                    toComparable(mv, kind);
+                    mv.visitVarInsn(ALOAD, 2);
+                    mv.visitFieldInsn(GETFIELD, name, KINDS[kind][0] + i, KINDS[kind][1]);
+                    toComparable(mv, kind);
+                    switch (KINDS[kind][1].charAt(0)) {
+                    case 'L':
+                        mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "equals",
+                                "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+                        mv.visitJumpInsn(IFEQ, notEqual);
+                        break;
+                    case 'J':
+                    case 'D':
+                        mv.visitInsn(LCMP);
+                        mv.visitJumpInsn(IFNE, notEqual);
+                        break;
+                    default:
+                        mv.visitJumpInsn(IF_ICMPNE, notEqual);
+                    }
+                }
+            }
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(notEqual);
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        // Create hashCode method, combining the method index and the hashes of the fields as Arrays.hashCode does
+        {
+            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "hashCode", "()I", null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, name, METHOD_FIELD, "I");
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                for (int i = 0; i < fieldCounts[kind]; i++) {
+                    mv.visitIntInsn(BIPUSH, 31);
+                    mv.visitInsn(IMUL);
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitFieldInsn(GETFIELD, name, KINDS[kind][0] + i, KINDS[kind][1]);
+                    switch (KINDS[kind][1].charAt(0)) {
+                    case 'L':
+                        mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "hashCode", "(Ljava/lang/Object;)I",
+                                false);
+                        break;
+                    case 'J':
+                        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "hashCode", "(J)I", false);
+                        break;
+                    case 'F':
+                        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "hashCode", "(F)I", false);
+                        break;
+                    case 'D':
+                        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "hashCode", "(D)I", false);
+                        break;
+                    default:
+                        // int is its own hash
+                    }
+                    mv.visitInsn(IADD);
+                }
+            }
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+
+    /** Returns the indexes of the methods whose return type has the given specialization **/
+    private List<Integer> getMethods(String specialization) {
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0; i < methods.size(); i++) {
+            Type returnType = Type.getReturnType(methods.get(i).desc);
+            if (returnType.getSort() != Type.OBJECT && returnType.getClassName().equalsIgnoreCase(specialization)) {
+                indexes.add(i);
+            }
+        }
+        return indexes;
+    }
+
+    private static String getCallableInterface(String specialization) {
+        return "pt/ist/esw/advice/" + specialization + "Callable";
+    }
+
+    private static String getConstructorDesc(String methodDesc) {
+        StringBuilder ctorDesc = new StringBuilder("(I");
+        for (Type t : Type.getArgumentTypes(methodDesc)) {
+            ctorDesc.append(KINDS[getKind(t)][1]);
+        }
+        return ctorDesc.append(")V").toString();
+    }
+
+    /** Returns the kind of field that holds an argument of the given type; booleans, bytes, chars and shorts are ints **/
+    private static int getKind(Type t) {
+        switch (t.getSort()) {
+        case Type.LONG:
+            return 1;
+        case Type.FLOAT:
+            return 2;
+        case Type.DOUBLE:
+            return 3;
+        case Type.OBJECT:
+        case Type.ARRAY:
+            return REFERENCE;
+        default:
+            return 0;
+        }
+    }
+
+    private static void toComparable(MethodVisitor mv, int kind) {
+        if (KINDS[kind][1].equals("F")) {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToIntBits", "(F)I", false);
+        } else if (KINDS[kind][1].equals("D")) {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToLongBits", "(D)J", false);
+        }
+    }
+
+    private static void box(MethodVisitor mv, Type primitiveType) {
+        String wrapper;
+        switch (primitiveType.getSort()) {
+        case Type.BOOLEAN:
+            wrapper = "java/lang/Boolean";
+            break;
+        case Type.BYTE:
+            wrapper = "java/lang/Byte";
+            break;
+        case Type.CHAR:
+            wrapper = "java/lang/Character";
+            break;
+        case Type.SHORT:
+            wrapper = "java/lang/Short";
+            break;
+        case Type.INT:
+            wrapper = "java/lang/Integer";
+            break;
+        case Type.LONG:
+            wrapper = "java/lang/Long";
+            break;
+        case Type.FLOAT:
+            wrapper = "java/lang/Float";
+            break;
+        default:
+            wrapper = "java/lang/Double";
+        }
+        mv.visitMethodInsn(INVOKESTATIC, wrapper, "valueOf", "(" + primitiveType.getDescriptor() + ")L" + wrapper + ";",
+                false);
+    }
+
+    private static void pushInt(MethodVisitor mv, int value) {
+        if (value <= 5) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else if (value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Answers the questions about the class hierarchy that ASM asks when computing stack map frames, by reading the
+ * headers of class files found as resources of a class loader, rather than by loading the classes as
+ * {@link ClassWriter#getCommonSuperClass(String, String)} does by default. Weaving thus never initializes, or even
+ * defines, application classes, and works for classes that could not be loaded by the weaver.
+ *
+ * The superclass of each class is read once, and then kept. Classes that are generated while weaving, and thus not yet
+ * found as resources, are added with {@link #define(String, String, boolean)}.
+ *
+ * Instances are safe for use by concurrent weaving tasks.
+ **/
+final class ClassHierarchy {
+    private static final String OBJECT = "java/lang/Object";
+
+    private static final class ClassInfo {
+        final String superName;
+        final boolean isInterface;
+
+        ClassInfo(String superName, boolean isInterface) {
+            this.superName = superName;
+            this.isInterface = isInterface;
+        }
+    }
+
+    private final ClassLoader loader;
+    private final ConcurrentMap<String, ClassInfo> classes = new ConcurrentHashMap<String, ClassInfo>();
+
+    ClassHierarchy(ClassLoader loader) {
+        this.loader = loader;
+    }
+
+    /** Returns a ClassWriter that resolves common superclasses through this hierarchy **/
+    ClassWriter newClassWriter(int flags) {
+        return new ClassWriter(flags) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return ClassHierarchy.this.getCommonSuperClass(type1, type2);
+            }
+        };
+    }
+
+    /**
+     * Returns a ClassWriter that resolves common superclasses through this hierarchy, and that copies the constant pool
+     * of the given class, along with the methods that are passed to it unchanged, without parsing them
+     **/
+    ClassWriter newClassWriter(ClassReader classReader, int flags) {
+        return new ClassWriter(classReader, flags) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return ClassHierarchy.this.getCommonSuperClass(type1, type2);
+            }
+        };
+    }
+
+    /** Adds a class that is not (yet) found by the class loader, such as a class generated while weaving **/
+    void define(String name, String superName, boolean isInterface) {
+        classes.put(name, new ClassInfo(superName, isInterface));
+    }
+
+    /**
+     * Returns the internal name of the closest common superclass of two classes. As in ASM, the common superclass of
+     * an interface and any other type is Object, which the verifier accepts wherever an interface is expected.
+     **/
+    String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+        if (getClassInfo(type1).isInterface || getClassInfo(type2).isInterface) {
+            return OBJECT;
+        }
+        for (String super1 = type1; super1 != null; super1 = getClassInfo(super1).superName) {
+            for (String super2 = type2; super2 != null; super2 = getClassInfo(super2).superName) {
+                if (super1.equals(super2)) {
+                    return super1;
+                }
+            }
+        }
+        return OBJECT;
+    }
+
+    private ClassInfo getClassInfo(String name) {
+        ClassInfo info = classes.get(name);
+        if (info == null) {
+            info = readClassInfo(name);
+            classes.putIfAbsent(name, info);
+        }
+        return info;
+    }
+
+    private ClassInfo readClassInfo(String name) {
+        if (name.equals(OBJECT)) {
+            return new ClassInfo(null, false);
+        }
+        InputStream is = loader.getResourceAsStream(name + ".class");
+        if (is == null) {
+            throw new RuntimeException("Couldn't find class " + name.replace('/', '.')
+                    + ", needed to compute stack map frames. Is it in the classpath used for weaving?");
+        }
+        try {
+            ClassReader cr = new ClassReader(is);
+            return new ClassInfo(cr.getSuperName(), (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading class " + name.replace('/', '.'), e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
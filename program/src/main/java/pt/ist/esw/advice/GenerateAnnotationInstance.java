@@ -37,12 +37,21 @@ import java.lang.annotation.Annotation;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
 
+/**
+ * Generates the XxxInstance classes that implement annotation interfaces, whose instances are passed to the advice
+ * factories. Instances honor the {@link Annotation} contract for equals, hashCode and toString, so that factories can
+ * use them as keys, e.g., to share one advice among all methods with the same annotation values. The hash code is
+ * computed once, in the constructor, and kept in a synthetic field.
+ **/
 public final class GenerateAnnotationInstance {
+    private static final String HASH_CODE_FIELD = "hashCode$";
+
     private final String annotation;
     private final String annotationInstance;
 
@@ -57,28 +66,63 @@ public final class GenerateAnnotationInstance {
     }
 
     public static void main(String[] args) throws IOException, ClassNotFoundException {
-        if (args.length != 2) {
-            System.err.println("Syntax: GenerateAnnotationInstance <annotation-class> <save-path>");
+        if (args.length < 2) {
+            System.err.println("Syntax: GenerateAnnotationInstance <annotation-class> [<annotation-class> ...] <save-path>");
             System.exit(-1);
         }
-        Class<? extends Annotation> annotationClass = Class.forName(args[0]).asSubclass(Annotation.class);
-        new GenerateAnnotationInstance(annotationClass, new File(args[1])).start();
+        File buildDir = new File(args[args.length - 1]);
+        for (int i = 0; i < args.length - 1; i++) {
+            Class<? extends Annotation> annotationClass = Class.forName(args[i]).asSubclass(Annotation.class);
+            new GenerateAnnotationInstance(annotationClass, buildDir).start();
+        }
     }
 
     public void start() throws IOException {
+        byte[] bytecode = generate();
+
+        // Write Class
+        FileOutputStream fos = null;
+        try {
+            String instancePath = annotationInstance.substring(0, annotationInstance.lastIndexOf('/')+1).replace('/', separatorChar);
+            File parentDir = new File(buildDir, instancePath);
+            if (!parentDir.exists() && !parentDir.mkdirs()) {
+                throw new IOException("Could not create required directory: " + parentDir);
+            }
+
+            File f = new File(parentDir, annotationClass.getSimpleName() + "Instance.class");
+            fos = new FileOutputStream(f);
+            fos.write(bytecode);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /** Generates the bytecode of the annotation instance class, without writing it. **/
+    public byte[] generate() throws IOException {
         InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(annotation + ".class");
         ClassReader cr = new ClassReader(is);
         ClassNode cNode = new ClassNode();
         cr.accept(cNode, 0);
 
-        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-        cw.visit(V1_6, ACC_PUBLIC | ACC_FINAL, annotationInstance, null, "java/lang/Object", new String[] { annotation });
+        // The instance has the version of the annotation, but at least Java 6, as equals needs stack map frames
+        int version = (cNode.version & 0xFFFF) < V1_6 ? V1_6 : cNode.version;
+        ClassHierarchy hierarchy = new ClassHierarchy(Thread.currentThread().getContextClassLoader());
+        hierarchy.define(annotationInstance, "java/lang/Object", false);
+        ClassWriter cw = hierarchy.newClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(version, ACC_PUBLIC | ACC_FINAL, annotationInstance, null, "java/lang/Object", new String[] { annotation });
         cw.visitSource("Annotation Instance Class", null);
 
         // Generate fields
         for (MethodNode annotationElems : cNode.methods) {
             cw.visitField(ACC_PRIVATE | ACC_FINAL, annotationElems.name, getReturnTypeDescriptor(annotationElems), null, null);
         }
+        cw.visitField(ACC_PRIVATE | ACC_FINAL | ACC_SYNTHETIC, HASH_CODE_FIELD, "I", null, null);
 
         // Generate constructor
         {
@@ -91,7 +135,7 @@ public final class GenerateAnnotationInstance {
             MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", ctorDescriptor.toString(), null, null);
             mv.visitCode();
             mv.visitVarInsn(ALOAD, 0);
-            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+            mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
             int localsPos = 0;
             for (MethodNode annotationElems : cNode.methods) {
                 Type t = Type.getReturnType(annotationElems.desc);
@@ -100,6 +144,18 @@ public final class GenerateAnnotationInstance {
                 mv.visitFieldInsn(PUTFIELD, annotationInstance, annotationElems.name, t.getDescriptor());
                 localsPos += t.getSize();
             }
+            // hashCode$ = sum of (127 * name.hashCode()) ^ hash(value), as specified by Annotation.hashCode()
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitInsn(ICONST_0);
+            for (MethodNode annotationElems : cNode.methods) {
+                mv.visitLdcInsn(127 * annotationElems.name.hashCode());
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, annotationInstance, annotationElems.name, getReturnTypeDescriptor(annotationElems));
+                generateValueHashCode(mv, Type.getReturnType(annotationElems.desc));
+                mv.visitInsn(IXOR);
+                mv.visitInsn(IADD);
+            }
+            mv.visitFieldInsn(PUTFIELD, annotationInstance, HASH_CODE_FIELD, "I");
             mv.visitInsn(RETURN);
             mv.visitMaxs(0, 0);
             mv.visitEnd();
@@ -128,29 +184,209 @@ public final class GenerateAnnotationInstance {
             mv.visitEnd();
         }
 
-        // Write Class
-        FileOutputStream fos = null;
-        try {
-            String instancePath = annotationInstance.substring(0, annotationInstance.lastIndexOf('/')+1).replace('/', separatorChar);
-            File parentDir = new File(buildDir, instancePath);
-            if (!parentDir.exists() && !parentDir.mkdirs()) {
-                throw new IOException("Could not create required directory: " + parentDir);
+        generateEquals(cw, cNode);
+
+        // Generate hashCode() method
+        {
+            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "hashCode", "()I", null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, annotationInstance, HASH_CODE_FIELD, "I");
+            mv.visitInsn(IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        generateToString(cw, cNode);
+
+        return cw.toByteArray();
+    }
+
+    /**
+     * Generates equals(Object), which, as specified by {@link Annotation#equals(Object)}, accepts any implementation of
+     * the annotation interface (such as the ones returned by reflection), and compares the values of their elements.
+     * Other instances of this class with a different hash code are rejected without comparing any element.
+     **/
+    private void generateEquals(ClassWriter cw, ClassNode cNode) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "equals", "(Ljava/lang/Object;)Z", null, null);
+        mv.visitCode();
+        Label notSame = new Label();
+        Label compareElements = new Label();
+        Label notEqual = new Label();
+
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitJumpInsn(IF_ACMPNE, notSame);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IRETURN);
+
+        mv.visitLabel(notSame);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(INSTANCEOF, annotation);
+        mv.visitJumpInsn(IFEQ, notEqual);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(INSTANCEOF, annotationInstance);
+        mv.visitJumpInsn(IFEQ, compareElements);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, annotationInstance);
+        mv.visitFieldInsn(GETFIELD, annotationInstance, HASH_CODE_FIELD, "I");
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, annotationInstance, HASH_CODE_FIELD, "I");
+        mv.visitJumpInsn(IF_ICMPNE, notEqual);
+
+        mv.visitLabel(compareElements);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, annotation);
+        mv.visitVarInsn(ASTORE, 2);
+        for (MethodNode annotationElems : cNode.methods) {
+            Type t = Type.getReturnType(annotationElems.desc);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, annotationInstance, annotationElems.name, t.getDescriptor());
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitMethodInsn(INVOKEINTERFACE, annotation, annotationElems.name, annotationElems.desc, true);
+            switch (t.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.CHAR:
+            case Type.SHORT:
+            case Type.INT:
+                mv.visitJumpInsn(IF_ICMPNE, notEqual);
+                break;
+            case Type.LONG:
+                mv.visitInsn(LCMP);
+                mv.visitJumpInsn(IFNE, notEqual);
+                break;
+            case Type.FLOAT:
+                // Compared as Float.equals does, so that NaN equals itself
+                mv.visitVarInsn(FSTORE, 3);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToIntBits", "(F)I", false);
+                mv.visitVarInsn(FLOAD, 3);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToIntBits", "(F)I", false);
+                mv.visitJumpInsn(IF_ICMPNE, notEqual);
+                break;
+            case Type.DOUBLE:
+                mv.visitVarInsn(DSTORE, 3);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToLongBits", "(D)J", false);
+                mv.visitVarInsn(DLOAD, 3);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToLongBits", "(D)J", false);
+                mv.visitInsn(LCMP);
+                mv.visitJumpInsn(IFNE, notEqual);
+                break;
+            case Type.ARRAY:
+                String arrayDesc = getArrayDescriptor(t);
+                mv.visitMethodInsn(INVOKESTATIC, "java/util/Arrays", "equals", "(" + arrayDesc + arrayDesc + ")Z",
+                        false);
+                mv.visitJumpInsn(IFEQ, notEqual);
+                break;
+            default:
+                mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "equals",
+                        "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+                mv.visitJumpInsn(IFEQ, notEqual);
             }
+        }
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IRETURN);
 
-            File f = new File(parentDir, annotationClass.getSimpleName() + "Instance.class");
-            fos = new FileOutputStream(f);
-            fos.write(cw.toByteArray());
-        } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        mv.visitLabel(notEqual);
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /** Generates toString(), which returns, e.g., <code>@pkg.MyAnnotation(name=value, values=[1, 2])</code> **/
+    private void generateToString(ClassWriter cw, ClassNode cNode) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "toString", "()Ljava/lang/String;", null, null);
+        mv.visitCode();
+        mv.visitTypeInsn(NEW, "java/lang/StringBuilder");
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn("@" + annotationClass.getName() + "(");
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V", false);
+        String separator = "";
+        for (MethodNode annotationElems : cNode.methods) {
+            Type t = Type.getReturnType(annotationElems.desc);
+            mv.visitLdcInsn(separator + annotationElems.name + "=");
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, annotationInstance, annotationElems.name, t.getDescriptor());
+            String appendDesc;
+            switch (t.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.LONG:
+            case Type.FLOAT:
+            case Type.DOUBLE:
+                appendDesc = t.getDescriptor();
+                break;
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                appendDesc = "I";
+                break;
+            case Type.ARRAY:
+                mv.visitMethodInsn(INVOKESTATIC, "java/util/Arrays", "toString", "(" + getArrayDescriptor(t)
+                        + ")Ljava/lang/String;", false);
+                appendDesc = "Ljava/lang/String;";
+                break;
+            default:
+                appendDesc = "Ljava/lang/Object;";
             }
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(" + appendDesc
+                    + ")Ljava/lang/StringBuilder;", false);
+            separator = ", ";
+        }
+        mv.visitLdcInsn(")");
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /** Consumes a value of the given type, and pushes its hash code, as specified by Annotation.hashCode() **/
+    private static void generateValueHashCode(MethodVisitor mv, Type t) {
+        switch (t.getSort()) {
+        case Type.BOOLEAN:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "hashCode", "(Z)I", false);
+            break;
+        case Type.BYTE:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Byte", "hashCode", "(B)I", false);
+            break;
+        case Type.CHAR:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "hashCode", "(C)I", false);
+            break;
+        case Type.SHORT:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Short", "hashCode", "(S)I", false);
+            break;
+        case Type.INT:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "hashCode", "(I)I", false);
+            break;
+        case Type.LONG:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "hashCode", "(J)I", false);
+            break;
+        case Type.FLOAT:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "hashCode", "(F)I", false);
+            break;
+        case Type.DOUBLE:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "hashCode", "(D)I", false);
+            break;
+        case Type.ARRAY:
+            mv.visitMethodInsn(INVOKESTATIC, "java/util/Arrays", "hashCode", "(" + getArrayDescriptor(t) + ")I", false);
+            break;
+        default:
+            mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "hashCode", "(Ljava/lang/Object;)I", false);
         }
     }
 
+    /** Returns the descriptor of the java.util.Arrays overloads that take arrays of the given type **/
+    private static String getArrayDescriptor(Type arrayType) {
+        Type elementType = arrayType.getElementType();
+        return arrayType.getDimensions() == 1 && elementType.getSort() != Type.OBJECT ? arrayType.getDescriptor()
+                : "[Ljava/lang/Object;";
+    }
+
     private String getReturnTypeDescriptor(MethodNode mNode) {
         return Type.getReturnType(mNode.desc).getDescriptor();
     }
@@ -28,6 +28,8 @@ package pt.ist.esw.advice;
 
 import static org.objectweb.asm.Opcodes.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -36,16 +38,28 @@ import java.io.InputStream;
 import java.lang.annotation.Annotation;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AnnotationNode;
@@ -55,53 +69,153 @@ import org.objectweb.asm.tree.MethodNode;
 
 public class ProcessAnnotations {
     private final Type ADVICE = Type.getType(Advice.class);
-
-    private final Type annotation;
-    private final Type annotationInstance;
-
-    private final Map<String, Object> defaultAnnotationElements;
-    private final List<FieldNode> annotationFields;
-    private final String annotationInstanceCtorDesc;
+    private final Type PRIMITIVE_ADVICES = Type.getType(PrimitiveAdvices.class);
+    private final Type ASYNC_ADVICES = Type.getType(AsyncAdvices.class);
+    private final Type CALLABLE_POOL = Type.getType(CallablePool.class);
+    private final Type REUSABLE_CALLABLE = Type.getType(ReusableCallable.class);
+    private final Type ADVISED_METHOD = Type.getType(AdvisedMethod.class);
+    private final Type SPECIALIZED_ADVICES = Type.getType(SpecializedAdvices.class);
+    private final Type REENTRANCY_GUARD = Type.getType(ReentrancyGuard.class);
+    private final Type REENTRANCY_DEPTH = Type.getType(ReentrancyGuard.Depth.class);
+    private final Handle ADVICE_BOOTSTRAP = new Handle(H_INVOKESTATIC, Type.getInternalName(AdviceBootstrap.class),
+            "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+                    + "Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodHandle;)Ljava/lang/invoke/CallSite;", false);
+    private final Handle ADVICE_REGISTRY_BOOTSTRAP = new Handle(H_INVOKESTATIC,
+            Type.getInternalName(AdviceRegistry.class), "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+                    + "Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodHandle;"
+                    + "Ljava/lang/Class;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", false);
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final byte[] ADVISED_PREFIX = toModifiedUtf8("advised$");
+
+    private final List<WovenAnnotation> annotations = new ArrayList<WovenAnnotation>();
     private final ProgramArgs args;
+    private final WeavingIndex index;
+    private final WeavingManifest manifest;
+    private final ClassHierarchy hierarchy = new ClassHierarchy(Thread.currentThread().getContextClassLoader());
 
     public ProcessAnnotations(ProgramArgs args) {
+        this(args, Collections.<Class<? extends Annotation>, byte[]> emptyMap());
+    }
+
+    /**
+     * @param annotationInstances The bytecode of the annotation instance classes that were generated in memory rather
+     *            than by running GenerateAnnotationInstance, keyed by annotation. The others are read from the classpath.
+     **/
+    ProcessAnnotations(ProgramArgs args, Map<Class<? extends Annotation>, byte[]> annotationInstances) {
         this.args = args;
-        annotation = Type.getType(args.annotationClass);
-        annotationInstance =
-                Type.getObjectType(GenerateAnnotationInstance.getAnnotationInstanceName(args.annotationClass));
+        for (int i = 0; i < args.annotationClasses.size(); i++) {
+            Class<? extends Annotation> annotationClass = args.annotationClasses.get(i);
+            annotations.add(new WovenAnnotation(annotationClass, args.annotationFactoryClasses.get(i), i,
+                    annotationInstances.get(annotationClass)));
+        }
+
+        index = args.indexFile != null ? WeavingIndex.load(args.indexFile, getConfiguration()) : null;
+        manifest = args.manifestFile != null ? WeavingManifest.load(args.manifestFile) : null;
+    }
+
+    /**
+     * An annotation being woven, along with the factory given for it (if any), and what is needed to create its
+     * annotation instances.
+     **/
+    private static final class WovenAnnotation {
+        final Class<? extends Annotation> annotationClass;
+        final Class<? extends AdviceFactory<?>> annotationFactoryClass;
+        final Type annotation;
+        final byte[] annotationDescriptor;
+        final Type annotationInstance;
+
+        final Map<String, Object> defaultAnnotationElements;
+        final List<FieldNode> annotationFields;
+        final String annotationInstanceCtorDesc;
 
-        Map<String, Object> annotationElements = new HashMap<String, Object>();
-        for (java.lang.reflect.Method element : args.annotationClass.getDeclaredMethods()) {
-            if (element.getReturnType().isArray()) {
-                throw new Error("FIXME: Annotations containing arrays are not yet supported");
+        /**
+         * Inserted in the names of the members and classes generated for this annotation, so that they do not clash
+         * with those of the other annotations when a method has several. Empty for the first annotation.
+         **/
+        final String nameTag;
+        /**
+         * The binary name of the annotation, turned into a valid identifier. Unlike the name tag, it tells the members
+         * and classes generated by different runs apart, as each run weaves different annotations.
+         **/
+        final String mangledName;
+
+        WovenAnnotation(Class<? extends Annotation> annotationClass,
+                Class<? extends AdviceFactory<?>> annotationFactoryClass, int position,
+                byte[] annotationInstanceBytecode) {
+            this.annotationClass = annotationClass;
+            this.annotationFactoryClass = annotationFactoryClass;
+            nameTag = position == 0 ? "" : (position + 1) + "$";
+            mangledName = annotationClass.getName().replace('.', '_');
+            annotation = Type.getType(annotationClass);
+            annotationDescriptor = toModifiedUtf8(annotation.getDescriptor());
+            annotationInstance =
+                    Type.getObjectType(GenerateAnnotationInstance.getAnnotationInstanceName(annotationClass));
+
+            Map<String, Object> annotationElements = new HashMap<String, Object>();
+            for (java.lang.reflect.Method element : annotationClass.getDeclaredMethods()) {
+                if (element.getReturnType().isArray()) {
+                    throw new Error("FIXME: Annotations containing arrays are not yet supported");
+                }
+                Object defaultValue = element.getDefaultValue();
+                if (defaultValue instanceof Class) {
+                    defaultValue = Type.getType((Class<?>) defaultValue);
+                }
+                annotationElements.put(element.getName(), defaultValue);
             }
-            Object defaultValue = element.getDefaultValue();
-            if (defaultValue instanceof Class) {
-                defaultValue = Type.getType((Class<?>) defaultValue);
+            defaultAnnotationElements = Collections.unmodifiableMap(annotationElements);
+
+            try {
+                ClassReader cr;
+                if (annotationInstanceBytecode != null) {
+                    cr = new ClassReader(annotationInstanceBytecode);
+                } else {
+                    InputStream is =
+                            Thread.currentThread().getContextClassLoader()
+                                    .getResourceAsStream(annotationInstance.getInternalName() + ".class");
+                    cr = new ClassReader(is);
+                }
+                ClassNode cNode = new ClassNode();
+                cr.accept(cNode, 0);
+                // Synthetic fields, such as the cached hash code, are not annotation elements
+                List<FieldNode> elementFields = new ArrayList<FieldNode>();
+                if (cNode.fields != null) {
+                    for (FieldNode field : cNode.fields) {
+                        if ((field.access & ACC_SYNTHETIC) == 0) {
+                            elementFields.add(field);
+                        }
+                    }
+                }
+                annotationFields = elementFields;
+
+                StringBuffer ctorDescriptor = new StringBuffer("(");
+                for (FieldNode field : annotationFields) {
+                    ctorDescriptor.append(field.desc);
+                }
+                ctorDescriptor.append(")V");
+                annotationInstanceCtorDesc = ctorDescriptor.toString();
+            } catch (IOException e) {
+                throw new RuntimeException("Error opening " + annotationInstance
+                        + " class. Have you run GenerateAnnotationInstance?", e);
             }
-            annotationElements.put(element.getName(), defaultValue);
         }
-        defaultAnnotationElements = Collections.unmodifiableMap(annotationElements);
+    }
 
-        try {
-            InputStream is =
-                    Thread.currentThread().getContextClassLoader()
-                            .getResourceAsStream(annotationInstance.getInternalName() + ".class");
-            ClassReader cr = new ClassReader(is);
-            ClassNode cNode = new ClassNode();
-            cr.accept(cNode, 0);
-            annotationFields = cNode.fields != null ? cNode.fields : Collections.<FieldNode> emptyList();
-
-            StringBuffer ctorDescriptor = new StringBuffer("(");
-            for (FieldNode field : annotationFields) {
-                ctorDescriptor.append(field.desc);
-            }
-            ctorDescriptor.append(")V");
-            annotationInstanceCtorDesc = ctorDescriptor.toString();
-        } catch (IOException e) {
-            throw new RuntimeException("Error opening " + annotationInstance
-                    + " class. Have you run GenerateAnnotationInstance?", e);
+    /**
+     * Identifies the annotations and factories being woven, and the options that change the woven code, so that the
+     * weaving index can tell whether a class was woven with the same settings.
+     **/
+    String getConfiguration() {
+        StringBuilder configuration = new StringBuilder();
+        for (WovenAnnotation woven : annotations) {
+            configuration.append(woven.annotationClass.getName()).append(' ')
+                    .append(woven.annotationFactoryClass != null ? woven.annotationFactoryClass.getName() : "-")
+                    .append(' ');
         }
+        return configuration.append(args.reuseCallables ? "-r" : "").append(args.invokeDynamic ? "-d" : "")
+                .append(args.lazyAdvice ? "-l" : "").append(args.managedAdvice ? "-m" : "")
+                .append(args.dispatchCallables ? "-g" : "").append(args.specializeAdvice ? "-s" : "").toString();
     }
 
     public static void main(final String args[]) throws Exception {
@@ -111,40 +225,374 @@ public class ProcessAnnotations {
     }
     
     public void process() {
-        for (File f : args.fileList) {
-            processFile(f);
+        if (args.parallelism > 1) {
+            ForkJoinPool pool = new ForkJoinPool(args.parallelism);
+            try {
+                List<ProcessFileTask> tasks = new ArrayList<ProcessFileTask>();
+                for (File f : args.fileList) {
+                    tasks.add(new ProcessFileTask(f));
+                }
+                pool.invoke(new ProcessFilesTask(tasks));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (File f : args.fileList) {
+                processFile(f);
+            }
+        }
+
+        if (index != null) {
+            index.removeDeleted();
+            index.save();
+        }
+        if (manifest != null) {
+            manifest.save();
         }
     }
 
     protected void processFile(File file) {
         if (file.isDirectory()) {
-            for (File subFile : file.listFiles()) {
-                processFile(subFile);
+            for (File subFile : listFiles(file)) {
+                // Archives are only woven when given explicitly, not when found inside a directory
+                if (subFile.isDirectory() || isClassFile(subFile)) {
+                    processFile(subFile);
+                }
             }
-        } else {
-            String fileName = file.getName();
-            if (fileName.toLowerCase().endsWith(".class")) {
+        } else if (isArchive(file)) {
+            processArchive(file);
+        } else if (isClassFile(file)) {
+            processClassFile(file);
+        }
+    }
+
+    /**
+     * Lists the contents of a directory in a stable order, so that runs over the same tree always visit (and report
+     * errors for) files in the same order, regardless of the number of threads used.
+     **/
+    protected static File[] listFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new RuntimeException("Error listing directory " + dir.getPath());
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    protected static boolean isArchive(File file) {
+        String fileName = file.getName().toLowerCase();
+        return fileName.endsWith(".jar") || fileName.endsWith(".zip");
+    }
+
+    /**
+     * Returns true for class files that should be woven. Callable classes generated by a previous run for a host class
+     * that is also present are skipped: they are never advised, and when weaving in parallel the host's task may be
+     * rewriting them concurrently.
+     **/
+    protected static boolean isClassFile(File file) {
+        String fileName = file.getName();
+        if (!fileName.toLowerCase().endsWith(".class")) {
+            return false;
+        }
+        int pos = fileName.indexOf("$callable$");
+        return pos <= 0 || !new File(file.getParentFile(), fileName.substring(0, pos) + ".class").exists();
+    }
+
+    /**
+     * Fork-join task that weaves a file or, in the case of a directory, forks one task for each of its entries.
+     **/
+    private class ProcessFileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+
+        ProcessFileTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            if (file.isDirectory()) {
+                List<ProcessFileTask> tasks = new ArrayList<ProcessFileTask>();
+                for (File subFile : listFiles(file)) {
+                    if (subFile.isDirectory() || isClassFile(subFile)) {
+                        tasks.add(new ProcessFileTask(subFile));
+                    }
+                }
+                invokeAll(tasks);
+            } else if (isArchive(file)) {
+                processArchive(file);
+            } else if (isClassFile(file)) {
                 processClassFile(file);
             }
         }
     }
 
+    private static class ProcessFilesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ProcessFileTask> tasks;
+
+        ProcessFilesTask(List<ProcessFileTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
     protected void processClassFile(File classFile) {
-        InputStream is = null;
+        if (index != null && index.isUpToDate(classFile)) {
+            return;
+        }
+
+        byte[] bytecode = readClassFile(classFile);
+        if (index != null && index.isUpToDate(classFile, bytecode)) {
+            return;
+        }
+
+        Map<String, byte[]> generatedClasses = new LinkedHashMap<String, byte[]>();
+        byte[] wovenBytecode = weaveClass(bytecode, generatedClasses);
+
+        List<String> generatedFiles = new ArrayList<String>();
+        if (wovenBytecode != null) {
+            // Write the callable classes in the same directory (package) as the original class file, before the
+            // class that uses them
+            for (Map.Entry<String, byte[]> generated : generatedClasses.entrySet()) {
+                String name = generated.getKey();
+                String fileName = name.substring(name.lastIndexOf('/') + 1) + ".class";
+                writeClassFile(new File(classFile.getAbsoluteFile().getParentFile(), fileName), generated.getValue());
+                generatedFiles.add(fileName);
+            }
+            writeClassFile(classFile, wovenBytecode);
+        }
+
+        if (index != null) {
+            if (wovenBytecode == null && isWoven(bytecode)) {
+                // The annotations of its advised methods were removed, so it cannot be woven again
+                index.recordWoven(classFile, bytecode);
+            } else {
+                index.record(classFile, wovenBytecode != null ? wovenBytecode : bytecode, generatedFiles);
+            }
+        }
+    }
+
+    /**
+     * Weaves the classes inside a JAR or ZIP archive, replacing the archive if any of them was woven. See
+     * {@link ArchiveWeaver}.
+     **/
+    protected void processArchive(File archive) {
+        if (index != null && index.isUpToDate(archive)) {
+            return;
+        }
 
         try {
-            // get an input stream to read the bytecode of the class
-            is = new FileInputStream(classFile);
-            ClassReader cr = new ClassReader(is);
-            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            new ArchiveWeaver(this).weave(archive);
+        } catch (IOException e) {
+            throw new RuntimeException("Error processing archive " + archive.getPath(), e);
+        }
 
-            ClassVisitor cv = cw;
-            // Add here other visitors to run AFTER the MethodTransformer
-            cv = new MethodTransformer(cv, classFile);
-            // Add here other visitors to run BEFORE the MethodTransformer
+        if (index != null) {
+            index.recordArchive(archive);
+        }
+    }
 
-            cr.accept(cv, 0);
-            writeClassFile(classFile, cw.toByteArray());
+    /**
+     * Weaves the advised methods of a class.
+     *
+     * @param generatedClasses Receives the bytecode of the callable classes generated for the advised methods, keyed
+     *            by their internal name
+     * @return The woven bytecode, or null if the class has no advised methods and should be left untouched
+     **/
+    protected byte[] weaveClass(byte[] bytecode, Map<String, byte[]> generatedClasses) {
+        return weaveClass(bytecode, generatedClasses, hierarchy);
+    }
+
+    /**
+     * Weaves the advised methods of a class, resolving the classes it refers to through the given hierarchy.
+     *
+     * Classes of Java 6 and later are written with their stack map frames recomputed by ASM, so that the JVM can
+     * verify them with the type-checking verifier, as it does for the classes produced by javac. The frames of the
+     * original methods are skipped when reading, as they would be discarded anyway.
+     *
+     * Weaving streams the class: only the methods that carry one of the annotations, and the static initializer, are
+     * buffered by the MethodTransformers. The other methods are passed straight to the ClassWriter which, as it was
+     * created from the ClassReader, copies them as they are, along with the constant pool, without parsing them. Memory
+     * use thus grows with the size of the advised methods, rather than with the size of the class.
+     *
+     * With the dispatch option, the calls of all the advised methods of the class, for all annotations, go through a
+     * single {@link CallableDispatcher}, generated after the class was visited.
+     **/
+    byte[] weaveClass(byte[] bytecode, Map<String, byte[]> generatedClasses, ClassHierarchy hierarchy) {
+        ClassReader cr = new ClassReader(bytecode);
+        // A class that no run has woven yet was compiled again, so none of the methods recorded for it still stand
+        if (manifest != null && manifest.hasEntries(cr.getClassName()) && !isWoven(bytecode)) {
+            manifest.forget(cr.getClassName(), null);
+        }
+        if (!referencesAnnotation(bytecode, cr)) {
+            return null;
+        }
+
+        // The major version follows the magic number and the minor version
+        boolean computeFrames = cr.readUnsignedShort(6) >= V1_6;
+        ClassWriter cw =
+                computeFrames ? hierarchy.newClassWriter(cr, ClassWriter.COMPUTE_FRAMES) : new ClassWriter(cr,
+                        ClassWriter.COMPUTE_MAXS);
+        Map<String, Set<String>> annotatedMethods = getAnnotatedMethods(cr);
+
+        CallableDispatcher dispatcher = null;
+        if (args.dispatchCallables) {
+            for (WovenAnnotation woven : annotations) {
+                if (annotatedMethods.containsKey(woven.annotation.getDescriptor())) {
+                    // Named after the first annotation woven, so that the dispatcher of another run is not replaced
+                    dispatcher =
+                            new CallableDispatcher(cr.getClassName(), woven.mangledName,
+                                    (cr.getAccess() & ACC_INTERFACE) != 0, hierarchy);
+                    break;
+                }
+            }
+        }
+
+        ClassVisitor cv = cw;
+        // Add here other visitors to run AFTER the MethodTransformers
+        // There is one MethodTransformer per annotation that the class refers to, all of them applied in this single
+        // pass. Each one advises the methods produced by the transformers before it, so the transformers are chained
+        // in reverse order: the first annotation given is the last to be applied, and its advice is the outermost.
+        List<MethodTransformer> transformers = new ArrayList<MethodTransformer>();
+        for (WovenAnnotation woven : annotations) {
+            Set<String> candidates = annotatedMethods.get(woven.annotation.getDescriptor());
+            if (candidates != null) {
+                // Weaving removes the annotation, so the methods that carry it were all compiled again
+                if (manifest != null) {
+                    manifest.forget(cr.getClassName(), woven.annotation);
+                }
+                MethodTransformer transformer =
+                        new MethodTransformer(cv, woven, candidates, generatedClasses, hierarchy, dispatcher);
+                transformers.add(transformer);
+                cv = transformer;
+            }
+        }
+        // Add here other visitors to run BEFORE the MethodTransformers
+
+        cr.accept(cv, computeFrames ? ClassReader.SKIP_FRAMES : 0);
+        if (dispatcher != null && !dispatcher.isEmpty()) {
+            generatedClasses.put(dispatcher.getName(), dispatcher.generate(cr.readUnsignedShort(6), hierarchy));
+        }
+        for (MethodTransformer transformer : transformers) {
+            if (transformer.isAdvised()) {
+                return cw.toByteArray();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the names and descriptors of the methods of a class that carry each annotation, keyed by the descriptor
+     * of the annotation. Only the headers of the methods are read.
+     **/
+    private static Map<String, Set<String>> getAnnotatedMethods(ClassReader cr) {
+        final Map<String, Set<String>> annotatedMethods = new HashMap<String, Set<String>>();
+        cr.accept(new ClassVisitor(ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, final String name, final String desc, String signature,
+                    String[] exceptions) {
+                return new MethodVisitor(ASM9) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String annotationDesc, boolean visible) {
+                        Set<String> methods = annotatedMethods.get(annotationDesc);
+                        if (methods == null) {
+                            methods = new HashSet<String>();
+                            annotatedMethods.put(annotationDesc, methods);
+                        }
+                        methods.add(name + desc);
+                        return null;
+                    }
+                };
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return annotatedMethods;
+    }
+
+    /**
+     * Pre-filter that scans only the constant pool of a class for the descriptors of the advised annotations. Classes
+     * that do not contain any of them cannot have advised methods, and are neither parsed nor rewritten.
+     **/
+    protected boolean referencesAnnotation(byte[] bytecode) {
+        return referencesAnnotation(bytecode, new ClassReader(bytecode));
+    }
+
+    private boolean referencesAnnotation(byte[] bytecode, ClassReader cr) {
+        for (WovenAnnotation woven : annotations) {
+            if (containsUtf8(bytecode, cr, woven.annotationDescriptor, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the class was already woven, which shows in the names of its advised$ methods, kept in its
+     * constant pool.
+     **/
+    static boolean isWoven(byte[] bytecode) {
+        return containsUtf8(bytecode, new ClassReader(bytecode), ADVISED_PREFIX, true);
+    }
+
+    /**
+     * Returns true if the constant pool of a class has a CONSTANT_Utf8 entry with the given value or, if prefix is
+     * true, starting with it.
+     *
+     * @param cr The reader of the class, created over the given bytes, so that the offsets it gives are theirs
+     **/
+    private static boolean containsUtf8(byte[] bytecode, ClassReader cr, byte[] value, boolean prefix) {
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            // getItem() returns the offset just after the tag byte, or 0 for the unused slot after longs and doubles
+            int offset = cr.getItem(i);
+            if (offset == 0 || bytecode[offset - 1] != CONSTANT_UTF8) {
+                continue;
+            }
+            int length = cr.readUnsignedShort(offset);
+            if (prefix ? length >= value.length : length == value.length) {
+                int start = offset + 2;
+                int j = 0;
+                while (j < value.length && bytecode[start + j] == value[j]) {
+                    j++;
+                }
+                if (j == value.length) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Encodes a string as it is stored in a CONSTANT_Utf8 constant pool entry (modified UTF-8). **/
+    private static byte[] toModifiedUtf8(String s) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(s);
+            return Arrays.copyOfRange(bytes.toByteArray(), 2, bytes.size());
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    protected static byte[] readClassFile(File classFile) {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(classFile);
+            byte[] bytecode = new byte[(int) classFile.length()];
+            int pos = 0;
+            int read;
+            while (pos < bytecode.length && (read = is.read(bytecode, pos, bytecode.length - pos)) != -1) {
+                pos += read;
+            }
+            if (pos != bytecode.length || is.read() != -1) {
+                throw new IOException("Class file changed while being read");
+            }
+            return bytecode;
         } catch (IOException e) {
             throw new RuntimeException("Error processing class file " + classFile.getPath(), e);
         } finally {
@@ -158,11 +606,26 @@ public class ProcessAnnotations {
         }
     }
 
+    /**
+     * Writes the class file to a temporary file in the same directory and then atomically renames it over the
+     * original, so that concurrent readers never see a partially written class file.
+     **/
     protected static void writeClassFile(File classFile, byte[] bytecode) {
         FileOutputStream fos = null;
+        File tmpFile = null;
         try {
-            fos = new FileOutputStream(classFile);
+            tmpFile = File.createTempFile(classFile.getName(), ".tmp", classFile.getAbsoluteFile().getParentFile());
+            fos = new FileOutputStream(tmpFile);
             fos.write(bytecode);
+            fos.close();
+            fos = null;
+            try {
+                Files.move(tmpFile.toPath(), classFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), classFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmpFile = null;
         } catch (IOException e) {
             throw new RuntimeException("Couldn't write class file" + classFile.getPath(), e);
         } finally {
@@ -173,21 +636,49 @@ public class ProcessAnnotations {
                     e.printStackTrace();
                 }
             }
+            if (tmpFile != null && !tmpFile.delete()) {
+                System.err.println("WARNING: Couldn't delete temporary file " + tmpFile.getPath());
+            }
         }
     }
 
     private class MethodTransformer extends ClassVisitor {
+        /** The methods buffered until the end of the class: those that may be advised, and the static initializer **/
         private final List<MethodNode> methods = new ArrayList<MethodNode>();
         private final List<String> advisedMethodNames = new ArrayList<String>();
         private final MethodNode advisedClInit;
-        private final File classFile;
+        private final WovenAnnotation woven;
+        private final Set<String> candidates;
+        private final Map<String, byte[]> generatedClasses;
+        private final ClassHierarchy hierarchy;
+        private final CallableDispatcher dispatcher;
 
         private String className;
+        private int classVersion;
+        private boolean classIsInterface;
+        private boolean advised;
+        private boolean invokeDynamic;
+        private boolean clInitModified;
+        private boolean reentrancyGuardCreated;
 
-        public MethodTransformer(ClassVisitor cv, File originalClassFile) {
-            super(ASM4, cv);
+        /**
+         * @param candidates The names and descriptors of the methods that carry the annotation, which are the only
+         *            ones buffered; the others are passed on as they are visited
+         * @param generatedClasses Receives the bytecode of the callable classes generated for the advised methods,
+         *            keyed by their internal name
+         * @param hierarchy Resolves the classes referred to by the callable classes, to compute their frames
+         * @param dispatcher Dispatches the calls of the advised methods, instead of one callable class per method, or
+         *            null
+         **/
+        public MethodTransformer(ClassVisitor cv, WovenAnnotation woven, Set<String> candidates,
+                Map<String, byte[]> generatedClasses, ClassHierarchy hierarchy, CallableDispatcher dispatcher) {
+            super(ASM9, cv);
 
-            classFile = originalClassFile;
+            this.woven = woven;
+            this.candidates = candidates;
+            this.generatedClasses = generatedClasses;
+            this.hierarchy = hierarchy;
+            this.dispatcher = dispatcher;
 
             advisedClInit = new MethodNode(ACC_STATIC, "<clinit>", "()V", null, null);
             advisedClInit.visitCode();
@@ -196,11 +687,23 @@ public class ProcessAnnotations {
         @Override
         public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
             className = name;
+            classVersion = version;
+            classIsInterface = (access & ACC_INTERFACE) != 0;
+            // invokedynamic needs a class file version of at least 51, which also requires stack map frames
+            boolean useInvokeDynamic = args.invokeDynamic || args.managedAdvice;
+            invokeDynamic = useInvokeDynamic && (version & 0xFFFF) >= V1_7;
+            if (useInvokeDynamic && !invokeDynamic) {
+                System.err.println("WARNING: Class " + name + " predates Java 7; advising it without invokedynamic");
+            }
             cv.visit(version, access, name, signature, superName, interfaces);
         }
 
         @Override
         public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            if (!name.equals("<clinit>") && !candidates.contains(name + desc)) {
+                // Not advised, so let it go straight through
+                return cv.visitMethod(access, name, desc, signature, exceptions);
+            }
             // Use a MethodNode to represent the method
             MethodNode mn = new MethodNode(access, name, desc, signature, exceptions);
             methods.add(mn);
@@ -210,7 +713,6 @@ public class ProcessAnnotations {
         @Override
         public void visitEnd() {
             MethodNode clInit = null;
-            boolean isAnnotated = false;
             for (MethodNode mn : methods) {
                 if (mn.name.equals("<clinit>")) {
                     clInit = mn;
@@ -218,9 +720,9 @@ public class ProcessAnnotations {
                 }
 
                 for (AnnotationNode an : getAnnotations(mn)) {
-                    if (an.desc.equals(annotation.getDescriptor())) {
+                    if (an.desc.equals(woven.annotation.getDescriptor())) {
                         //System.out.println("Method " + mn.name + " is tagged with annotation");
-                        isAnnotated = true;
+                        advised = true;
                         // Create new advised method
                         adviseMethod(mn, an);
                         break;
@@ -231,7 +733,7 @@ public class ProcessAnnotations {
                 mn.accept(cv);
             }
 
-            if (isAnnotated) {
+            if (clInitModified) {
                 // Insert <clinit> into class
                 if (clInit != null) {
                     // Merge existing clinit with our additions
@@ -252,12 +754,17 @@ public class ProcessAnnotations {
             cv.visitEnd();
         }
 
+        /** Returns true if at least one method of the class was advised. **/
+        public boolean isAdvised() {
+            return advised;
+        }
+
         /**
          * Returns the invisible or visible annotations list, depending on the RetentionPolicy of the client
          * annotation.
          **/
         private List<AnnotationNode> getAnnotations(MethodNode mn) {
-            Retention retAnnot = args.annotationClass.getAnnotation(Retention.class);
+            Retention retAnnot = woven.annotationClass.getAnnotation(Retention.class);
             RetentionPolicy policy = retAnnot == null ? RetentionPolicy.CLASS : retAnnot.value();
             List<AnnotationNode> list = policy == RetentionPolicy.CLASS ?
                     mn.invisibleAnnotations : mn.visibleAnnotations;
@@ -269,7 +776,8 @@ public class ProcessAnnotations {
          * @Annot @SomethingElse public long add(Object o, int i)
          * we generate the following code:
          *
-         * public static [final] Advice advice$add = ClientAdviceFactory.getInstance().newAdvice(annotation);
+         * public static [final] Advice advice$add = ClientAdviceFactory.getInstance().newAdvice(annotation,
+         *         new AdvisedMethod(Xpto.class, "add", "(Ljava/lang/Object;I)J", Annot.class));
          *
          * @SomethingElse public long add(Object o, int i) {
          *     static final class callable$add implements Callable {
@@ -300,9 +808,13 @@ public class ProcessAnnotations {
             // Mangle name if there are multiple advised methods with the same name
             String methodName = getMethodName(mn.name);
             // Name for advice field
-            String fieldName = "advice$" + methodName;
+            String fieldName = getAdviceFieldName(methodName);
             // Name for callable class
-            String callableClass = className + "$callable$" + methodName;
+            String callableClass =
+                    dispatcher != null ? dispatcher.getName() : className + "$callable$" + woven.nameTag + methodName;
+            // Name and type of the method as declared, which identify it to the factory and to the registry
+            String originalName = mn.name;
+            String originalDesc = mn.desc;
 
             // Generate new method which will invoke the advice with the Callable
             MethodVisitor advisedMethod =
@@ -312,12 +824,147 @@ public class ProcessAnnotations {
             getAnnotations(mn).remove(advisedAnnotation);
             copyAnnotations(mn, advisedMethod);
 
-            // Create field to save advice
-            cv.visitField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL, fieldName, ADVICE.getDescriptor(), null, null);
+            if (invokeDynamic) {
+                // Create method that obtains the advice, to be called when the call site is linked
+                MethodVisitor adviceInit =
+                        cv.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, getAdviceInitName(methodName), "()"
+                                + ADVICE.getDescriptor(), null, null);
+                adviceInit.visitCode();
+                pushAdvice(adviceInit, advisedAnnotation, originalName, originalDesc);
+                adviceInit.visitInsn(ARETURN);
+                adviceInit.visitMaxs(0, 0);
+                adviceInit.visitEnd();
+            } else if (!args.lazyAdvice) {
+                // Create field to save advice
+                cv.visitField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL, fieldName, ADVICE.getDescriptor(), null, null);
+
+                // Add code to clinit to initialize the field
+                pushAdvice(advisedClInit, advisedAnnotation, originalName, originalDesc);
+                advisedClInit.visitFieldInsn(PUTSTATIC, className, fieldName, ADVICE.getDescriptor());
+                clInitModified = true;
+            }
+
+            // Repurpose original method
+            modifyOriginalMethod(mn);
+
+            Map<String, Object> annotationElements = getAnnotationElements(advisedAnnotation);
+            if (Boolean.TRUE.equals(annotationElements.get("flattenReentrant"))) {
+                // Nested calls skip the advice, calling the original method directly
+                advisedMethod = new ReentrancyFlattener(advisedMethod, mn, getReentrancyGuardField());
+            }
+
+            // Generate replacement method
+            generateMethodCode(mn, advisedMethod, methodName, callableClass, originalName, originalDesc);
+
+            // Generate callable class, unless the method is called through the dispatcher
+            if (dispatcher == null) {
+                generateCallable(callableClass, mn, advisedAnnotation, originalName, originalDesc);
+            }
+
+            if (manifest != null) {
+                manifest.record(className, originalName, originalDesc, woven.annotation,
+                        getFactoryType(annotationElements), callableClass, annotationElements);
+            }
+        }
+
+        /**
+         * Returns the name of the static field that keeps the {@link ReentrancyGuard} of the annotation, creating it on
+         * first use. The field is named after the annotation, as another run may add the guard of another annotation
+         * to the same class.
+         **/
+        private String getReentrancyGuardField() {
+            String fieldName = "reentrancy$" + woven.mangledName;
+            if (!reentrancyGuardCreated) {
+                cv.visitField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC, fieldName,
+                        REENTRANCY_GUARD.getDescriptor(), null, null);
+                advisedClInit.visitLdcInsn(woven.annotation);
+                advisedClInit.visitMethodInsn(INVOKESTATIC, REENTRANCY_GUARD.getInternalName(), "forAnnotation",
+                        "(Ljava/lang/Class;)" + REENTRANCY_GUARD.getDescriptor(), false);
+                advisedClInit.visitFieldInsn(PUTSTATIC, className, fieldName, REENTRANCY_GUARD.getDescriptor());
+                clInitModified = true;
+                reentrancyGuardCreated = true;
+            }
+            return fieldName;
+        }
+
+        /**
+         * Wraps the code generated for an advised method with the checks of its {@link ReentrancyGuard}: when the
+         * current thread is already inside a method advised with the same annotation, the original method is called
+         * directly; otherwise the thread enters the guard before calling the advice, and exits it on every return and
+         * exception.
+         **/
+        private final class ReentrancyFlattener extends MethodVisitor {
+            private final MethodNode mn;
+            private final String guardField;
+            private final int depthLocal;
+            private final Label tryStart = new Label();
+            private final Label tryEnd = new Label();
+            private final Label handler = new Label();
+
+            /**
+             * @param mn The original method, already turned into a static method
+             **/
+            ReentrancyFlattener(MethodVisitor mv, MethodNode mn, String guardField) {
+                super(ASM9, mv);
+                this.mn = mn;
+                this.guardField = guardField;
+                // The generated code only uses the arguments, so the depth is kept right after them; the sizes include
+                // an implicit this, which the static method does not have
+                this.depthLocal = (Type.getArgumentsAndReturnSizes(mn.desc) >> 2) - 1;
+            }
+
+            @Override
+            public void visitCode() {
+                super.visitCode();
+                super.visitTryCatchBlock(tryStart, tryEnd, handler, null);
+                Label enter = new Label();
+                super.visitFieldInsn(GETSTATIC, className, guardField, REENTRANCY_GUARD.getDescriptor());
+                super.visitMethodInsn(INVOKEVIRTUAL, REENTRANCY_GUARD.getInternalName(), "enter", "()"
+                        + REENTRANCY_DEPTH.getDescriptor(), false);
+                super.visitInsn(DUP);
+                super.visitVarInsn(ASTORE, depthLocal);
+                super.visitJumpInsn(IFNONNULL, enter);
+
+                // Nested call: call the original method directly
+                int pos = 0;
+                for (Type t : Type.getArgumentTypes(mn.desc)) {
+                    super.visitVarInsn(t.getOpcode(ILOAD), pos);
+                    pos += t.getSize();
+                }
+                super.visitMethodInsn(INVOKESTATIC, className, mn.name, mn.desc, classIsInterface);
+                super.visitInsn(Type.getReturnType(mn.desc).getOpcode(IRETURN));
+
+                super.visitLabel(enter);
+                super.visitLabel(tryStart);
+            }
+
+            @Override
+            public void visitInsn(int opcode) {
+                if (opcode >= IRETURN && opcode <= RETURN) {
+                    exit();
+                }
+                super.visitInsn(opcode);
+            }
+
+            @Override
+            public void visitMaxs(int maxStack, int maxLocals) {
+                super.visitLabel(tryEnd);
+                super.visitLabel(handler);
+                exit();
+                super.visitInsn(ATHROW);
+                super.visitMaxs(maxStack, maxLocals);
+            }
+
+            private void exit() {
+                super.visitVarInsn(ALOAD, depthLocal);
+                super.visitMethodInsn(INVOKEVIRTUAL, REENTRANCY_DEPTH.getInternalName(), "exit", "()V", false);
+            }
+        }
 
-            // Add code to clinit to initialize the field
+        /** Returns the values of the elements of an annotation, including those left with their default values **/
+        private Map<String, Object> getAnnotationElements(AnnotationNode advisedAnnotation) {
             // Add default parameters from annotation
-            Map<String, Object> annotationElements = new HashMap<String, Object>(defaultAnnotationElements);
+            Map<String, Object> annotationElements = new HashMap<String, Object>(woven.defaultAnnotationElements);
             // Copy parameters from method annotation
             if (advisedAnnotation.values != null) {
                 Iterator<Object> it = advisedAnnotation.values.iterator();
@@ -326,51 +973,72 @@ public class ProcessAnnotations {
                     annotationElements.put((String) it.next(), it.next());
                 }
             }
+            return annotationElements;
+        }
 
-            // Decide whether the annotation defines its own AdviceFactory and, if so, use that.  Otherwise, use either the
-            // factory specified in this program's execution parameters or the default factory.
+        /**
+         * Decides whether the annotation defines its own AdviceFactory and, if so, returns that. Otherwise, returns
+         * either the factory specified in this program's execution parameters or the default factory.
+         **/
+        private Type getFactoryType(Map<String, Object> annotationElements) {
             Type factoryType = (Type) annotationElements.get("adviceFactory");
             if (factoryType == null) {
                 factoryType = Type
-                        .getObjectType((args.annotationFactoryClass != null ? args.annotationFactoryClass.getCanonicalName()
+                        .getObjectType((woven.annotationFactoryClass != null ? woven.annotationFactoryClass.getCanonicalName()
                                 : AdviceFactory.DEFAULT_ADVICE_FACTORY)
                                 .replace('.', '/'));
             }
+            return factoryType;
+        }
+
+        /**
+         * Pushes the advice for a method onto the stack, by creating the annotation instance with the values of the
+         * given annotation and passing it to the factory, along with the {@link AdvisedMethod} that identifies the
+         * method.
+         **/
+        private void pushAdvice(MethodVisitor mv, AnnotationNode advisedAnnotation, String methodName,
+                String methodDesc) {
+            Map<String, Object> annotationElements = getAnnotationElements(advisedAnnotation);
+            Type factoryType = getFactoryType(annotationElements);
 
-            advisedClInit.visitMethodInsn(INVOKESTATIC, factoryType.getInternalName(), "getInstance",
-                    "()" + Type.getType(AdviceFactory.class).getDescriptor());
+            mv.visitMethodInsn(INVOKESTATIC, factoryType.getInternalName(), "getInstance",
+                    "()" + Type.getType(AdviceFactory.class).getDescriptor(), false);
 
             // Push annotation parameters on the stack and create AnnotationInstance
-            advisedClInit.visitTypeInsn(NEW, annotationInstance.getInternalName());
-            advisedClInit.visitInsn(DUP);
-            for (FieldNode field : annotationFields) {
+            mv.visitTypeInsn(NEW, woven.annotationInstance.getInternalName());
+            mv.visitInsn(DUP);
+            for (FieldNode field : woven.annotationFields) {
                 // Support for enums
                 if (fieldIsEnum(field)) {
                     // ASM supplies enums as String[], while the defaults read by reflection are Enum instances
                     Object value = annotationElements.get(field.name);
                     Enum<?> enumValue = value instanceof String[] ? getEnumElement((String[]) value) : (Enum<?>) value;
                     Type enumType = Type.getType(enumValue.getClass());
-                    advisedClInit.visitFieldInsn(GETSTATIC, enumType.getInternalName(), enumValue.name(), enumType.getDescriptor());
+                    mv.visitFieldInsn(GETSTATIC, enumType.getInternalName(), enumValue.name(), enumType.getDescriptor());
                 } else {
-                    advisedClInit.visitLdcInsn(annotationElements.get(field.name));
+                    mv.visitLdcInsn(annotationElements.get(field.name));
                 }
             }
-            advisedClInit.visitMethodInsn(INVOKESPECIAL, annotationInstance.getInternalName(), "<init>",
-                    annotationInstanceCtorDesc);
+            mv.visitMethodInsn(INVOKESPECIAL, woven.annotationInstance.getInternalName(), "<init>",
+                    woven.annotationInstanceCtorDesc, false);
+            // Identify the method
+            mv.visitTypeInsn(NEW, ADVISED_METHOD.getInternalName());
+            mv.visitInsn(DUP);
+            mv.visitLdcInsn(Type.getObjectType(className));
+            mv.visitLdcInsn(methodName);
+            mv.visitLdcInsn(methodDesc);
+            mv.visitLdcInsn(woven.annotation);
+            mv.visitMethodInsn(INVOKESPECIAL, ADVISED_METHOD.getInternalName(), "<init>",
+                    "(Ljava/lang/Class;Ljava/lang/String;Ljava/lang/String;Ljava/lang/Class;)V", false);
             // Obtain advice for this method
-            advisedClInit.visitMethodInsn(INVOKEVIRTUAL, Type.getType(AdviceFactory.class).getInternalName(), "newAdvice", "("
-                    + Type.getType(Annotation.class).getDescriptor() + ")" + ADVICE.getDescriptor());
-
-            advisedClInit.visitFieldInsn(PUTSTATIC, className, fieldName, ADVICE.getDescriptor());
-
-            // Repurpose original method
-            modifyOriginalMethod(mn);
-
-            // Generate replacement method
-            generateMethodCode(mn, advisedMethod, fieldName, callableClass);
-
-            // Generate callable class
-            generateCallable(callableClass, mn);
+            mv.visitMethodInsn(INVOKEVIRTUAL, Type.getType(AdviceFactory.class).getInternalName(), "newAdvice", "("
+                    + Type.getType(Annotation.class).getDescriptor() + ADVISED_METHOD.getDescriptor() + ")"
+                    + ADVICE.getDescriptor(), false);
+            if (args.specializeAdvice) {
+                // Give the method its own copy of the advice class
+                mv.visitMethodInsn(INVOKESTATIC, SPECIALIZED_ADVICES.getInternalName(), "specialize", "("
+                        + ADVICE.getDescriptor() + ")" + ADVICE.getDescriptor(), false);
+            }
         }
 
         private void copyAnnotations(MethodNode mn, MethodVisitor advisedMethod) {
@@ -410,7 +1078,7 @@ public class ProcessAnnotations {
 
         private void modifyOriginalMethod(MethodNode mn) {
             // Rename original method
-            mn.name = "advised$" + mn.name;
+            mn.name = "advised$" + woven.nameTag + mn.name;
             // Remove annotations from original method
             mn.invisibleAnnotations = Collections.<AnnotationNode> emptyList();
             mn.visibleAnnotations = Collections.<AnnotationNode> emptyList();
@@ -435,24 +1103,61 @@ public class ProcessAnnotations {
             }
         }
 
-        private void generateMethodCode(MethodNode mn, MethodVisitor mv, String fieldName, String callableClass) {
+        private void generateMethodCode(MethodNode mn, MethodVisitor mv, String methodName, String callableClass,
+                String originalName, String originalDesc) {
+            if (invokeDynamic) {
+                generateInvokeDynamicMethodCode(mn, mv, methodName, callableClass, originalName, originalDesc);
+                return;
+            }
+            if (args.reuseCallables) {
+                generateReusingMethodCode(mn, mv, methodName, callableClass);
+                return;
+            }
             mv.visitCode();
-            mv.visitFieldInsn(GETSTATIC, className, fieldName, ADVICE.getDescriptor());
-            mv.visitTypeInsn(NEW, callableClass);
-            mv.visitInsn(DUP);
+            getAdvice(mv, methodName, callableClass);
+            if (dispatcher != null) {
+                // The dispatcher instance for this method takes the place of its callable
+                dispatcher.newInstance(mv, dispatcher.add(mn.name, mn.desc));
+            } else {
+                mv.visitTypeInsn(NEW, callableClass);
+                mv.visitInsn(DUP);
+
+                int pos = 0;
+                // Push arguments for original method on the stack
+                for (Type t : Type.getArgumentTypes(mn.desc)) {
+                    mv.visitVarInsn(t.getOpcode(ILOAD), pos);
+                    pos += t.getSize();
+                }
+                mv.visitMethodInsn(INVOKESPECIAL, callableClass, "<init>", getCallableCtorDesc(mn), false);
+            }
 
-            int pos = 0;
-            // Push arguments for original method on the stack
-            for (Type t : Type.getArgumentTypes(mn.desc)) {
-                mv.visitVarInsn(t.getOpcode(ILOAD), pos);
-                pos += t.getSize();
+            Type returnType = Type.getReturnType(mn.desc);
+            String specialization = getSpecialization(returnType);
+            if (specialization != null) {
+                // Let the advice return the primitive result directly, if it implements the specialized interface
+                mv.visitMethodInsn(INVOKESTATIC, PRIMITIVE_ADVICES.getInternalName(), "perform" + specialization, "("
+                        + ADVICE.getDescriptor() + getCallableInterface(specialization).getDescriptor() + ")"
+                        + returnType.getDescriptor(), false);
+                mv.visitInsn(returnType.getOpcode(IRETURN));
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+                return;
+            }
+            String asyncPerform = getAsyncPerform(returnType);
+            if (asyncPerform != null) {
+                // Let the advice act when the returned stage completes, if it implements AsyncAdvice
+                mv.visitMethodInsn(INVOKESTATIC, ASYNC_ADVICES.getInternalName(), asyncPerform, "("
+                        + ADVICE.getDescriptor() + "Ljava/util/concurrent/Callable;)" + returnType.getDescriptor(),
+                        false);
+                mv.visitInsn(ARETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+                return;
             }
-            mv.visitMethodInsn(INVOKESPECIAL, callableClass, "<init>", getCallableCtorDesc(mn));
             mv.visitMethodInsn(INVOKEINTERFACE, ADVICE.getInternalName(), "perform",
-                    "(Ljava/util/concurrent/Callable;)Ljava/lang/Object;");
+                    "(Ljava/util/concurrent/Callable;)Ljava/lang/Object;", true);
 
             // Return value
-            Type returnType = Type.getReturnType(mn.desc);
             if (returnType.getSort() == Type.OBJECT || returnType.getSort() == Type.ARRAY) {
                 mv.visitTypeInsn(CHECKCAST, returnType.getInternalName());
             } else if (isPrimitive(returnType)) {
@@ -464,6 +1169,122 @@ public class ProcessAnnotations {
             mv.visitEnd();
         }
 
+        /**
+         * Generates the replacement method for the reuse option, which takes the callable from the pool of the callable
+         * class and sets the arguments on it:
+         *
+         * public long add(Object o, int i) {
+         *     callable$add callable = (callable$add) callable$add.POOL.acquire(advice$add);
+         *     callable.set(this, o, i);
+         *     return CallablePool.performLong(advice$add, callable);
+         * }
+         **/
+        private void generateReusingMethodCode(MethodNode mn, MethodVisitor mv, String methodName, String callableClass) {
+            mv.visitCode();
+            getAdvice(mv, methodName, callableClass);
+            mv.visitFieldInsn(GETSTATIC, callableClass, "POOL", CALLABLE_POOL.getDescriptor());
+            getAdvice(mv, methodName, callableClass);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CALLABLE_POOL.getInternalName(), "acquire", "(" + ADVICE.getDescriptor()
+                    + ")" + REUSABLE_CALLABLE.getDescriptor(), false);
+            mv.visitTypeInsn(CHECKCAST, callableClass);
+            mv.visitInsn(DUP);
+
+            int pos = 0;
+            // Push arguments for original method on the stack
+            for (Type t : Type.getArgumentTypes(mn.desc)) {
+                mv.visitVarInsn(t.getOpcode(ILOAD), pos);
+                pos += t.getSize();
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, callableClass, "set", getCallableCtorDesc(mn), false);
+
+            Type returnType = Type.getReturnType(mn.desc);
+            String specialization = getSpecialization(returnType);
+            String asyncPerform = getAsyncPerform(returnType);
+            String performDesc = "(" + ADVICE.getDescriptor() + REUSABLE_CALLABLE.getDescriptor() + ")";
+            if (specialization != null) {
+                mv.visitMethodInsn(INVOKESTATIC, CALLABLE_POOL.getInternalName(), "perform" + specialization,
+                        performDesc + returnType.getDescriptor(), false);
+            } else if (asyncPerform != null) {
+                mv.visitMethodInsn(INVOKESTATIC, CALLABLE_POOL.getInternalName(), asyncPerform,
+                        performDesc + returnType.getDescriptor(), false);
+            } else {
+                mv.visitMethodInsn(INVOKESTATIC, CALLABLE_POOL.getInternalName(), "perform", performDesc
+                        + "Ljava/lang/Object;", false);
+                if (returnType.getSort() == Type.OBJECT || returnType.getSort() == Type.ARRAY) {
+                    mv.visitTypeInsn(CHECKCAST, returnType.getInternalName());
+                } else if (isPrimitive(returnType)) {
+                    boxUnwrap(returnType, mv);
+                }
+            }
+            mv.visitInsn(returnType.getOpcode(IRETURN));
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        /**
+         * Generates the replacement method for the dynamic option, which leaves the advice and the callable to an
+         * invokedynamic call site linked by {@link AdviceBootstrap}:
+         *
+         * public long add(Object o, int i) {
+         *     return invokedynamic perform(this, o, i) [AdviceBootstrap.bootstrap, newAdvice$add, callable$add.new];
+         * }
+         *
+         * With the managed option the call site is linked by {@link AdviceRegistry} instead, which is also given the
+         * advised$ method (to call when the advice is disabled), the annotation and the original type of the method:
+         *
+         * public long add(Object o, int i) {
+         *     return invokedynamic add(this, o, i) [AdviceRegistry.bootstrap, newAdvice$add, callable$add.new,
+         *             advised$add, MyAnnotation.class, (Object, int)long];
+         * }
+         **/
+        private void generateInvokeDynamicMethodCode(MethodNode mn, MethodVisitor mv, String methodName,
+                String callableClass, String originalName, String originalDesc) {
+            mv.visitCode();
+            int pos = 0;
+            // Push arguments for original method on the stack
+            for (Type t : Type.getArgumentTypes(mn.desc)) {
+                mv.visitVarInsn(t.getOpcode(ILOAD), pos);
+                pos += t.getSize();
+            }
+            Type returnType = Type.getReturnType(mn.desc);
+            String callableCtorDesc = getCallableCtorDesc(mn);
+            String callSiteDesc = callableCtorDesc.substring(0, callableCtorDesc.length() - 1) + returnType.getDescriptor();
+            Handle adviceInit =
+                    new Handle(H_INVOKESTATIC, className, getAdviceInitName(methodName), "()" + ADVICE.getDescriptor(),
+                            classIsInterface);
+            Handle callableCtor = new Handle(H_NEWINVOKESPECIAL, callableClass, "<init>", callableCtorDesc, false);
+            if (args.managedAdvice) {
+                mv.visitInvokeDynamicInsn(originalName, callSiteDesc, ADVICE_REGISTRY_BOOTSTRAP, adviceInit,
+                        callableCtor, new Handle(H_INVOKESTATIC, className, mn.name, mn.desc, classIsInterface),
+                        woven.annotation, Type.getMethodType(originalDesc));
+            } else {
+                mv.visitInvokeDynamicInsn("perform", callSiteDesc, ADVICE_BOOTSTRAP, adviceInit, callableCtor);
+            }
+            mv.visitInsn(returnType.getOpcode(IRETURN));
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        /**
+         * Pushes the advice for a method onto the stack: with the lazy option it is kept by the callable class,
+         * otherwise by the advised class itself.
+         **/
+        private void getAdvice(MethodVisitor mv, String methodName, String callableClass) {
+            if (args.lazyAdvice) {
+                mv.visitFieldInsn(GETSTATIC, callableClass, "ADVICE", ADVICE.getDescriptor());
+            } else {
+                mv.visitFieldInsn(GETSTATIC, className, getAdviceFieldName(methodName), ADVICE.getDescriptor());
+            }
+        }
+
+        private String getAdviceFieldName(String methodName) {
+            return "advice$" + woven.nameTag + methodName;
+        }
+
+        private String getAdviceInitName(String methodName) {
+            return "newAdvice$" + woven.nameTag + methodName;
+        }
+
         private boolean isStatic(MethodNode mn) {
             return (mn.access & ACC_STATIC) > 0;
         }
@@ -486,32 +1307,348 @@ public class ProcessAnnotations {
             return methodName + (count > 0 ? "$" + count : "");
         }
 
-        private void generateCallable(String callableClass, MethodNode mn) {
+        /**
+         * Returns the infix of the specialized advice and callable interfaces for methods with the given return type
+         * (e.g. Long for LongAdvice.performLong and LongCallable.callLong), or null if there are no specialized
+         * interfaces for that type.
+         **/
+        private String getSpecialization(Type returnType) {
+            switch (returnType.getSort()) {
+            case Type.INT:
+                return "Int";
+            case Type.LONG:
+                return "Long";
+            case Type.DOUBLE:
+                return "Double";
+            default:
+                return null;
+            }
+        }
+
+        /**
+         * Returns the name of the perform method of {@link AsyncAdvices} (and of {@link CallablePool}) for methods with
+         * the given return type, or null if the type is neither CompletionStage nor CompletableFuture.
+         **/
+        private String getAsyncPerform(Type returnType) {
+            if (returnType.getDescriptor().equals("Ljava/util/concurrent/CompletionStage;")) {
+                return "performAsync";
+            } else if (returnType.getDescriptor().equals("Ljava/util/concurrent/CompletableFuture;")) {
+                return "performAsyncFuture";
+            }
+            return null;
+        }
+
+        private Type getCallableInterface(String specialization) {
+            return Type.getObjectType("pt/ist/esw/advice/" + specialization + "Callable");
+        }
+
+        private void generateCallable(String callableClass, MethodNode mn, AnnotationNode advisedAnnotation,
+                String originalName, String originalDesc) {
             Type returnType = Type.getReturnType(mn.desc);
             Type[] arguments = Type.getArgumentTypes(mn.desc);
-
-            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-            cw.visit(V1_6, ACC_FINAL, callableClass,
-                    "Ljava/lang/Object;Ljava/util/concurrent/Callable<"
-                            + (isPrimitive(returnType) ? toObject(returnType) : (returnType.equals(Type.VOID_TYPE) ? Type
-                                    .getObjectType("java/lang/Void") : returnType)).getDescriptor() + ">;", "java/lang/Object",
-                    new String[] { "java/util/concurrent/Callable" });
+            String specialization = getSpecialization(returnType);
+
+            // Callables have the version of their host class, so that they are verified the same way, but at least
+            // Java 6, as their equals method needs stack map frames
+            int version = (classVersion & 0xFFFF) < V1_6 ? V1_6 : classVersion;
+            hierarchy.define(callableClass, args.reuseCallables ? REUSABLE_CALLABLE.getInternalName()
+                    : "java/lang/Object", false);
+            ClassWriter cw = hierarchy.newClassWriter(ClassWriter.COMPUTE_FRAMES);
+            if (args.reuseCallables) {
+                Type resultType =
+                        isPrimitive(returnType) ? toObject(returnType) : (returnType.equals(Type.VOID_TYPE) ? Type
+                                .getObjectType("java/lang/Void") : returnType);
+                String superSignature =
+                        "L" + REUSABLE_CALLABLE.getInternalName() + "<" + resultType.getDescriptor() + ">;";
+                if (specialization != null) {
+                    cw.visit(version, ACC_FINAL, callableClass, superSignature
+                            + getCallableInterface(specialization).getDescriptor(),
+                            REUSABLE_CALLABLE.getInternalName(),
+                            new String[] { getCallableInterface(specialization).getInternalName() });
+                } else {
+                    cw.visit(version, ACC_FINAL, callableClass, superSignature, REUSABLE_CALLABLE.getInternalName(), null);
+                }
+            } else if (specialization != null) {
+                // The specialized interfaces extend Callable, so the generic perform can still be used
+                cw.visit(version, ACC_FINAL, callableClass, null, "java/lang/Object",
+                        new String[] { getCallableInterface(specialization).getInternalName() });
+            } else {
+                cw.visit(version, ACC_FINAL, callableClass,
+                        "Ljava/lang/Object;Ljava/util/concurrent/Callable<"
+                                + (isPrimitive(returnType) ? toObject(returnType) : (returnType.equals(Type.VOID_TYPE) ? Type
+                                        .getObjectType("java/lang/Void") : returnType)).getDescriptor() + ">;",
+                        "java/lang/Object", new String[] { "java/util/concurrent/Callable" });
+            }
             cw.visitSource("Advice Library Automatically Generated Class", null);
 
+            if (args.lazyAdvice || args.reuseCallables) {
+                generateCallableClInit(cw, callableClass, advisedAnnotation, originalName, originalDesc);
+            }
+
+            if (args.reuseCallables) {
+                generateReusableMembers(cw, callableClass, arguments, getCallableCtorDesc(mn));
+            } else {
+                // Create fields to hold arguments
+                {
+                    int fieldPos = 0;
+                    for (Type t : arguments) {
+                        cw.visitField(ACC_PRIVATE | ACC_FINAL, "arg" + (fieldPos++), t.getDescriptor(), null, null);
+                    }
+                }
+
+                // Create constructor
+                {
+                    MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", getCallableCtorDesc(mn), null, null);
+                    mv.visitCode();
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+                    int localsPos = 0;
+                    int fieldPos = 0;
+                    for (Type t : arguments) {
+                        mv.visitVarInsn(ALOAD, 0);
+                        mv.visitVarInsn(t.getOpcode(ILOAD), localsPos + 1);
+                        mv.visitFieldInsn(PUTFIELD, callableClass, "arg" + fieldPos++, t.getDescriptor());
+                        localsPos += t.getSize();
+                    }
+                    mv.visitInsn(RETURN);
+                    mv.visitMaxs(0, 0);
+                    mv.visitEnd();
+                }
+            }
+
+            // Two callables are equal when their arguments are, so that advices can use them as keys
+            generateArgumentEquality(cw, callableClass, arguments);
+
+            if (specialization != null) {
+                // Create specialized call method, returning the primitive result as is
+                String callName = "call" + specialization;
+                {
+                    MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, callName, "()" + returnType.getDescriptor(), null,
+                            new String[] { "java/lang/Exception" });
+                    mv.visitCode();
+                    int fieldPos = 0;
+                    for (Type t : arguments) {
+                        mv.visitVarInsn(ALOAD, 0);
+                        mv.visitFieldInsn(GETFIELD, callableClass, "arg" + fieldPos++, t.getDescriptor());
+                    }
+                    mv.visitMethodInsn(INVOKESTATIC, className, mn.name, mn.desc, classIsInterface);
+                    mv.visitInsn(returnType.getOpcode(IRETURN));
+                    mv.visitMaxs(0, 0);
+                    mv.visitEnd();
+                }
+
+                // Create call method, boxing the result of the specialized one
+                {
+                    MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "call", "()Ljava/lang/Object;", null,
+                            new String[] { "java/lang/Exception" });
+                    mv.visitCode();
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, callableClass, callName, "()" + returnType.getDescriptor(),
+                            false);
+                    boxWrap(returnType, mv);
+                    mv.visitInsn(ARETURN);
+                    mv.visitMaxs(0, 0);
+                    mv.visitEnd();
+                }
+
+                generatedClasses.put(callableClass, cw.toByteArray());
+                return;
+            }
+
+            // Create call method
+            {
+                MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "call", "()Ljava/lang/Object;", null, null);
+                mv.visitCode();
+                int fieldPos = 0;
+                for (Type t : arguments) {
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitFieldInsn(GETFIELD, callableClass, "arg" + fieldPos++, t.getDescriptor());
+                }
+                mv.visitMethodInsn(INVOKESTATIC, className, mn.name, mn.desc, classIsInterface);
+                if (returnType.equals(Type.VOID_TYPE)) {
+                    mv.visitInsn(ACONST_NULL);
+                } else if (isPrimitive(returnType)) {
+                    boxWrap(returnType, mv);
+                }
+                mv.visitInsn(ARETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+            }
+
+            generatedClasses.put(callableClass, cw.toByteArray());
+        }
+
+        /**
+         * Generates equals and hashCode methods for a callable, comparing its arguments: primitives by value (floats and
+         * doubles by their bits), and objects with their own equals and hashCode. Arrays are compared by identity.
+         **/
+        private void generateArgumentEquality(ClassWriter cw, String callableClass, Type[] arguments) {
+            // Create equals method
+            {
+                MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "equals", "(Ljava/lang/Object;)Z", null, null);
+                mv.visitCode();
+                Label notEqual = new Label();
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitTypeInsn(INSTANCEOF, callableClass);
+                mv.visitJumpInsn(IFEQ, notEqual);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitTypeInsn(CHECKCAST, callableClass);
+                mv.visitVarInsn(ASTORE, 2);
+                int fieldPos = 0;
+                for (Type t : arguments) {
+                    String fieldName = "arg" + fieldPos++;
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitFieldInsn(GETFIELD, callableClass, fieldName, t.getDescriptor());
+                    toComparable(mv, t);
+                    mv.visitVarInsn(ALOAD, 2);
+                    mv.visitFieldInsn(GETFIELD, callableClass, fieldName, t.getDescriptor());
+                    toComparable(mv, t);
+                    switch (t.getSort()) {
+                    case Type.OBJECT:
+                    case Type.ARRAY:
+                        mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "equals",
+                                "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+                        mv.visitJumpInsn(IFEQ, notEqual);
+                        break;
+                    case Type.LONG:
+                    case Type.DOUBLE:
+                        mv.visitInsn(LCMP);
+                        mv.visitJumpInsn(IFNE, notEqual);
+                        break;
+                    default:
+                        mv.visitJumpInsn(IF_ICMPNE, notEqual);
+                    }
+                }
+                mv.visitInsn(ICONST_1);
+                mv.visitInsn(IRETURN);
+                mv.visitLabel(notEqual);
+                mv.visitInsn(ICONST_0);
+                mv.visitInsn(IRETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+            }
+
+            // Create hashCode method, combining the hashes of the arguments as Arrays.hashCode does
+            {
+                MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "hashCode", "()I", null, null);
+                mv.visitCode();
+                mv.visitInsn(ICONST_1);
+                int fieldPos = 0;
+                for (Type t : arguments) {
+                    mv.visitIntInsn(BIPUSH, 31);
+                    mv.visitInsn(IMUL);
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitFieldInsn(GETFIELD, callableClass, "arg" + fieldPos++, t.getDescriptor());
+                    switch (t.getSort()) {
+                    case Type.OBJECT:
+                    case Type.ARRAY:
+                        mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "hashCode", "(Ljava/lang/Object;)I",
+                                false);
+                        break;
+                    case Type.BOOLEAN:
+                    case Type.LONG:
+                    case Type.FLOAT:
+                    case Type.DOUBLE:
+                        mv.visitMethodInsn(INVOKESTATIC, toObject(t).getInternalName(), "hashCode", "("
+                                + t.getDescriptor() + ")I", false);
+                        break;
+                    default:
+                        // byte, char, short and int are their own hash
+                    }
+                    mv.visitInsn(IADD);
+                }
+                mv.visitInsn(IRETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+            }
+        }
+
+        /** Converts a float or double on the stack to its bits, so that it can be compared as an int or long **/
+        private void toComparable(MethodVisitor mv, Type t) {
+            if (t.getSort() == Type.FLOAT) {
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToIntBits", "(F)I", false);
+            } else if (t.getSort() == Type.DOUBLE) {
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToLongBits", "(D)J", false);
+            }
+        }
+
+        /**
+         * Generates the static state of a callable class: the advice of the method, for the lazy option, and the pool
+         * of callables, for the reuse option.
+         *
+         * With the lazy option the advice is only created when the method is first called, as the callable class is
+         * initialized then, rather than when the advised class is. Class initialization also guarantees that the
+         * advice is created once and safely published, even when the first calls are concurrent.
+         **/
+        private void generateCallableClInit(ClassWriter cw, String callableClass, AnnotationNode advisedAnnotation,
+                String originalName, String originalDesc) {
+            MethodVisitor mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+            mv.visitCode();
+            if (args.lazyAdvice) {
+                cw.visitField(ACC_STATIC | ACC_FINAL, "ADVICE", ADVICE.getDescriptor(), null, null);
+                pushAdvice(mv, advisedAnnotation, originalName, originalDesc);
+                mv.visitFieldInsn(PUTSTATIC, callableClass, "ADVICE", ADVICE.getDescriptor());
+            }
+            if (args.reuseCallables) {
+                // The prototype of the pool creates the callables of each thread
+                cw.visitField(ACC_STATIC | ACC_FINAL, "POOL", CALLABLE_POOL.getDescriptor(), null, null);
+                mv.visitTypeInsn(NEW, CALLABLE_POOL.getInternalName());
+                mv.visitInsn(DUP);
+                mv.visitTypeInsn(NEW, callableClass);
+                mv.visitInsn(DUP);
+                mv.visitMethodInsn(INVOKESPECIAL, callableClass, "<init>", "()V", false);
+                mv.visitMethodInsn(INVOKESPECIAL, CALLABLE_POOL.getInternalName(), "<init>", "("
+                        + REUSABLE_CALLABLE.getDescriptor() + ")V", false);
+                mv.visitFieldInsn(PUTSTATIC, callableClass, "POOL", CALLABLE_POOL.getDescriptor());
+            }
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        /**
+         * Generates the members of a callable for the reuse option: non-final fields for the arguments, and the methods
+         * that create instances for the pool and that set and clear the arguments. The arguments are set by the replacement method
+         * rather than by the constructor.
+         **/
+        private void generateReusableMembers(ClassWriter cw, String callableClass, Type[] arguments, String setDesc) {
             // Create fields to hold arguments
             {
                 int fieldPos = 0;
                 for (Type t : arguments) {
-                    cw.visitField(ACC_PRIVATE | ACC_FINAL, "arg" + (fieldPos++), t.getDescriptor(), null, null);
+                    cw.visitField(ACC_PRIVATE, "arg" + (fieldPos++), t.getDescriptor(), null, null);
                 }
             }
 
             // Create constructor
             {
-                MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", getCallableCtorDesc(mn), null, null);
+                MethodVisitor mv = cw.visitMethod(0, "<init>", "()V", null, null);
                 mv.visitCode();
                 mv.visitVarInsn(ALOAD, 0);
-                mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+                mv.visitMethodInsn(INVOKESPECIAL, REUSABLE_CALLABLE.getInternalName(), "<init>", "()V", false);
+                mv.visitInsn(RETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+            }
+
+            // Create newInstance method
+            {
+                MethodVisitor mv =
+                        cw.visitMethod(ACC_PROTECTED, "newInstance", "()" + REUSABLE_CALLABLE.getDescriptor(), null,
+                                null);
+                mv.visitCode();
+                mv.visitTypeInsn(NEW, callableClass);
+                mv.visitInsn(DUP);
+                mv.visitMethodInsn(INVOKESPECIAL, callableClass, "<init>", "()V", false);
+                mv.visitInsn(ARETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+            }
+
+            // Create set method
+            {
+                MethodVisitor mv = cw.visitMethod(0, "set", setDesc, null, null);
+                mv.visitCode();
                 int localsPos = 0;
                 int fieldPos = 0;
                 for (Type t : arguments) {
@@ -525,29 +1662,23 @@ public class ProcessAnnotations {
                 mv.visitEnd();
             }
 
-            // Create call method
+            // Create clear method, which only needs to drop references
             {
-                MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "call", "()Ljava/lang/Object;", null, null);
+                MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "clear", "()V", null, null);
                 mv.visitCode();
                 int fieldPos = 0;
                 for (Type t : arguments) {
-                    mv.visitVarInsn(ALOAD, 0);
-                    mv.visitFieldInsn(GETFIELD, callableClass, "arg" + fieldPos++, t.getDescriptor());
-                }
-                mv.visitMethodInsn(INVOKESTATIC, className, mn.name, mn.desc);
-                if (returnType.equals(Type.VOID_TYPE)) {
-                    mv.visitInsn(ACONST_NULL);
-                } else if (isPrimitive(returnType)) {
-                    boxWrap(returnType, mv);
+                    if (t.getSort() == Type.OBJECT || t.getSort() == Type.ARRAY) {
+                        mv.visitVarInsn(ALOAD, 0);
+                        mv.visitInsn(ACONST_NULL);
+                        mv.visitFieldInsn(PUTFIELD, callableClass, "arg" + fieldPos, t.getDescriptor());
+                    }
+                    fieldPos++;
                 }
-                mv.visitInsn(ARETURN);
+                mv.visitInsn(RETURN);
                 mv.visitMaxs(0, 0);
                 mv.visitEnd();
             }
-
-            // Write the callable class file in the same directory (package) as the original class file
-            String callableFileName = callableClass.substring(Math.max(callableClass.lastIndexOf('/'), 0)) + ".class";
-            writeClassFile(new File(classFile.getParent() + File.separatorChar + callableFileName), cw.toByteArray());
         }
 
         private final Object[][] primitiveWrappers = new Object[][] {
@@ -573,14 +1704,14 @@ public class ProcessAnnotations {
         private void boxWrap(Type primitiveType, MethodVisitor mv) {
             Type objectType = toObject(primitiveType);
             mv.visitMethodInsn(INVOKESTATIC, objectType.getInternalName(), "valueOf", "(" + primitiveType.getDescriptor() + ")"
-                    + objectType.getDescriptor());
+                    + objectType.getDescriptor(), false);
         }
 
         private void boxUnwrap(Type primitiveType, MethodVisitor mv) {
             Type objectType = toObject(primitiveType);
             mv.visitTypeInsn(CHECKCAST, objectType.getInternalName());
             mv.visitMethodInsn(INVOKEVIRTUAL, objectType.getInternalName(), primitiveType.getClassName() + "Value", "()"
-                    + primitiveType.getDescriptor());
+                    + primitiveType.getDescriptor(), false);
         }
 
         private boolean fieldIsEnum(FieldNode field) {
@@ -603,13 +1734,26 @@ public class ProcessAnnotations {
 
     // smf: Shamelessly adapted from CompilerArgs in Fenix Framework's DML compiler
     public static class ProgramArgs {
-        Class<? extends Annotation> annotationClass;
-        Class<? extends AdviceFactory<?>> annotationFactoryClass;
+        // The factory at each position is the one given for the annotation at the same position, or null
+        List<Class<? extends Annotation>> annotationClasses = new ArrayList<Class<? extends Annotation>>();
+        List<Class<? extends AdviceFactory<?>>> annotationFactoryClasses =
+                new ArrayList<Class<? extends AdviceFactory<?>>>();
         List<File> fileList = new ArrayList<File>();
+        int parallelism = 1;
+        File indexFile;
+        File manifestFile;
+        boolean reuseCallables;
+        boolean invokeDynamic;
+        boolean lazyAdvice;
+        boolean managedAdvice;
+        boolean dispatchCallables;
+        boolean specializeAdvice;
+
+        ProgramArgs() {
+        }
 
         public ProgramArgs(Class<? extends Annotation> annotationClass, Class<? extends AdviceFactory<?>> annotationFactoryClass) {
-            this.annotationClass = annotationClass;
-            this.annotationFactoryClass = annotationFactoryClass;
+            addAnnotation(annotationClass, annotationFactoryClass);
         }
 
         public ProgramArgs(Class<? extends Annotation> annotationClass, Class<? extends AdviceFactory<?>> annotationFactoryClass, File file) {
@@ -631,15 +1775,124 @@ public class ProcessAnnotations {
         }
 
         void checkArguments() {
-            if (annotationClass == null) {
+            if (annotationClasses.isEmpty()) {
                 error("annotation class is not specified");
             }
-            if (annotationFactoryClass == null) {
-                message("no factory class specified: using defaults");
+            for (int i = 0; i < annotationClasses.size(); i++) {
+                if (annotationClasses.indexOf(annotationClasses.get(i)) != i) {
+                    error("annotation class " + annotationClasses.get(i).getName() + " is specified more than once");
+                }
+                if (annotationFactoryClasses.get(i) == null) {
+                    message("no factory class specified for " + annotationClasses.get(i).getName() + ": using defaults");
+                }
             }
             if (fileList.isEmpty()) {
                 error("no class files or dirs specified");
             }
+            if (parallelism < 1) {
+                error("parallelism must be at least 1");
+            }
+            if ((invokeDynamic || managedAdvice) && (reuseCallables || lazyAdvice)) {
+                error("options -d and -m cannot be combined with -r or -l");
+            }
+            if (dispatchCallables && (reuseCallables || lazyAdvice || invokeDynamic || managedAdvice)) {
+                error("option -g cannot be combined with -r, -l, -d or -m");
+            }
+        }
+
+        /**
+         * Adds an annotation to weave, along with the factory to use for it when the annotation does not name its own
+         * (or null to use the default factory). All annotations are woven in a single pass over each class. When a
+         * method has several of them, the advice of the annotation added first is the outermost, i.e., the first to
+         * run.
+         **/
+        public ProgramArgs addAnnotation(Class<? extends Annotation> annotationClass,
+                Class<? extends AdviceFactory<?>> annotationFactoryClass) {
+            annotationClasses.add(annotationClass);
+            annotationFactoryClasses.add(annotationFactoryClass);
+            return this;
+        }
+
+        /** Sets the number of threads used to weave, splitting the directory walk across a fork-join pool. **/
+        public ProgramArgs setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Sets the file where the weaving index is kept between runs. Class files that did not change since they were
+         * last woven are skipped.
+         **/
+        public ProgramArgs setIndexFile(File indexFile) {
+            this.indexFile = indexFile;
+            return this;
+        }
+
+        /**
+         * Sets the file where the {@link AdviceManifest} of the advised methods is written. To be found by
+         * {@link AdviceManifest#load(ClassLoader)}, it must be kept as {@link AdviceManifest#RESOURCE} in the woven
+         * classpath. Methods woven into the same manifest by previous runs are kept.
+         **/
+        public ProgramArgs setManifestFile(File manifestFile) {
+            this.manifestFile = manifestFile;
+            return this;
+        }
+
+        /**
+         * Sets whether advised methods reuse their callables, taking them from a per-thread pool when the advice is a
+         * {@link NonEscapingAdvice}, rather than allocating a new callable on every call.
+         **/
+        public ProgramArgs setReuseCallables(boolean reuseCallables) {
+            this.reuseCallables = reuseCallables;
+            return this;
+        }
+
+        /**
+         * Sets whether advised methods obtain their advice through an invokedynamic call site, linked on first call,
+         * rather than from a static field initialized with the class. Classes older than Java 7 are still advised
+         * through a static field.
+         **/
+        public ProgramArgs setInvokeDynamic(boolean invokeDynamic) {
+            this.invokeDynamic = invokeDynamic;
+            return this;
+        }
+
+        /**
+         * Sets whether the advice of each method is only created when the method is first called, instead of when the
+         * advised class is initialized.
+         **/
+        public ProgramArgs setLazyAdvice(boolean lazyAdvice) {
+            this.lazyAdvice = lazyAdvice;
+            return this;
+        }
+
+        /**
+         * Sets whether advised methods are registered with the {@link AdviceRegistry}, through which their advice can
+         * be replaced or disabled at runtime. This also makes them obtain their advice through an invokedynamic call
+         * site, as with {@link #setInvokeDynamic(boolean)}.
+         **/
+        public ProgramArgs setManagedAdvice(boolean managedAdvice) {
+            this.managedAdvice = managedAdvice;
+            return this;
+        }
+
+        /**
+         * Sets whether the advised methods of each class are called through a single {@link CallableDispatcher} class
+         * per host class, which switches on a method index, rather than through one callable class per method. This
+         * cuts the number of classes generated and loaded, at the cost of a switch on each call.
+         **/
+        public ProgramArgs setDispatchCallables(boolean dispatchCallables) {
+            this.dispatchCallables = dispatchCallables;
+            return this;
+        }
+
+        /**
+         * Sets whether each advised method is given its own copy of the class of its advice, through
+         * {@link SpecializedAdvices}, so that the JIT profiles the calls made by the advice of each method separately.
+         **/
+        public ProgramArgs setSpecializeAdvice(boolean specializeAdvice) {
+            this.specializeAdvice = specializeAdvice;
+            return this;
         }
 
         void processCommandLineArgs(String[] args) throws Exception {
@@ -652,11 +1905,49 @@ public class ProcessAnnotations {
         @SuppressWarnings("unchecked")
         int processOption(String[] args, int pos) throws Exception {
             if (args[pos].equals("-a")) {
-                annotationClass = Class.forName(getNextArgument(args, pos)).asSubclass(Annotation.class);
+                addAnnotation(Class.forName(getNextArgument(args, pos)).asSubclass(Annotation.class), null);
                 return pos + 2;
             } else if (args[pos].equals("-f")) {
-                annotationFactoryClass = (Class<AdviceFactory<?>>) Class.forName(getNextArgument(args, pos)).asSubclass(AdviceFactory.class);
+                // The factory applies to the annotation given just before it
+                int last = annotationClasses.size() - 1;
+                if (last < 0 || annotationFactoryClasses.get(last) != null) {
+                    error("option -f must follow the -a option of the annotation it applies to");
+                }
+                annotationFactoryClasses.set(last, (Class<AdviceFactory<?>>) Class.forName(getNextArgument(args, pos))
+                        .asSubclass(AdviceFactory.class));
+                return pos + 2;
+            } else if (args[pos].equals("-j")) {
+                String value = getNextArgument(args, pos);
+                try {
+                    parallelism = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    error("invalid parallelism: " + value);
+                }
+                return pos + 2;
+            } else if (args[pos].equals("-i")) {
+                indexFile = new File(getNextArgument(args, pos));
                 return pos + 2;
+            } else if (args[pos].equals("-M")) {
+                manifestFile = new File(getNextArgument(args, pos));
+                return pos + 2;
+            } else if (args[pos].equals("-r")) {
+                reuseCallables = true;
+                return pos + 1;
+            } else if (args[pos].equals("-d")) {
+                invokeDynamic = true;
+                return pos + 1;
+            } else if (args[pos].equals("-l")) {
+                lazyAdvice = true;
+                return pos + 1;
+            } else if (args[pos].equals("-m")) {
+                managedAdvice = true;
+                return pos + 1;
+            } else if (args[pos].equals("-g")) {
+                dispatchCallables = true;
+                return pos + 1;
+            } else if (args[pos].equals("-s")) {
+                specializeAdvice = true;
+                return pos + 1;
             } else {
                 fileList.add(new File(args[pos]));
                 return pos + 1;
@@ -675,7 +1966,7 @@ public class ProcessAnnotations {
 
         void error(String msg) {
             System.err.println("ProcessAnnotations: " + msg);
-            System.err.println("Syntax: ProcessAnnotations -a <annotation-class> [-f <advice-factory-class>] [class files or dirs]");
+            System.err.println("Syntax: ProcessAnnotations -a <annotation-class> [-f <advice-factory-class>] [-a ...] [-j <threads>] [-i <index-file>] [-M <manifest-file>] [-r] [-l] [-d] [-m] [-g] [-s] [class files, dirs or jars]");
             System.exit(1);
         }
 
@@ -0,0 +1,329 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * On-disk index of the class files woven by previous runs of {@link ProcessAnnotations}.
+ *
+ * For each class file the index records the size, modification time and content hash that the file had after it was
+ * last processed, the annotation and factory it was woven with, and the names of the callable classes generated for
+ * it. Class files whose size and modification time did not change are skipped without being read; those that were
+ * touched but whose contents hash the same are skipped without being woven. Callable classes that are no longer
+ * generated for a host class (because the advised method was removed, or the host class itself was deleted) are
+ * deleted, but only when the host class is woven again with the same configuration: the callables recorded with
+ * another configuration may still be used by a class that was already woven, and cannot be woven again until it is
+ * recompiled.
+ *
+ * Instances are safe for use by concurrent weaving tasks.
+ **/
+final class WeavingIndex {
+    private static final int MAGIC = 0xAD1CE1D8;
+    private static final int VERSION = 1;
+
+    private static final class Entry {
+        final long length;
+        final long lastModified;
+        final byte[] hash;
+        final String configuration;
+        final List<String> generatedFiles;
+
+        Entry(long length, long lastModified, byte[] hash, String configuration, List<String> generatedFiles) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.configuration = configuration;
+            this.generatedFiles = generatedFiles;
+        }
+    }
+
+    private final File indexFile;
+    private final String configuration;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private WeavingIndex(File indexFile, String configuration) {
+        this.indexFile = indexFile;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Loads the index from the given file. A missing or unreadable index yields an empty index, meaning that every
+     * class file will be woven.
+     *
+     * @param configuration Identifies the annotation and factory being woven; entries recorded with a different
+     *            configuration are considered out of date.
+     **/
+    static WeavingIndex load(File indexFile, String configuration) {
+        WeavingIndex index = new WeavingIndex(indexFile, configuration);
+        if (!indexFile.exists()) {
+            return index;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.err.println("WARNING: Ignoring weaving index with unknown format " + indexFile.getPath());
+                return index;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                String entryConfiguration = in.readUTF();
+                int generatedCount = in.readInt();
+                List<String> generatedFiles = new ArrayList<String>(generatedCount);
+                for (int j = 0; j < generatedCount; j++) {
+                    generatedFiles.add(in.readUTF());
+                }
+                index.entries.put(path, new Entry(length, lastModified, hash, entryConfiguration, generatedFiles));
+            }
+        } catch (IOException e) {
+            System.err.println("WARNING: Ignoring unreadable weaving index " + indexFile.getPath() + ": " + e);
+            index.entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns true if the class file has the same size and modification time it had when it was last recorded, in
+     * which case it does not even need to be read.
+     **/
+    boolean isUpToDate(File classFile) {
+        Entry entry = getEntry(classFile);
+        return entry != null && entry.length == classFile.length() && entry.lastModified == classFile.lastModified();
+    }
+
+    /**
+     * Returns true if the contents of the class file are the same as when it was last recorded. In that case the
+     * recorded size and modification time are refreshed, so that the next run takes the fast path.
+     **/
+    boolean isUpToDate(File classFile, byte[] bytecode) {
+        Entry entry = getEntry(classFile);
+        if (entry == null || !Arrays.equals(entry.hash, hash(bytecode))) {
+            return false;
+        }
+        entries.put(getKey(classFile), new Entry(classFile.length(), classFile.lastModified(), entry.hash,
+                configuration, entry.generatedFiles));
+        return true;
+    }
+
+    /**
+     * Records the result of weaving a class file, and deletes the callable classes that were generated for it by a
+     * previous run with the same configuration but are no longer generated.
+     *
+     * @param bytecode The contents of the class file after it was woven
+     * @param generatedFiles The names of the class files generated for this class file, relative to its directory
+     **/
+    void record(File classFile, byte[] bytecode, Collection<String> generatedFiles) {
+        List<String> generated = Collections.unmodifiableList(new ArrayList<String>(generatedFiles));
+        Entry previous =
+                entries.put(getKey(classFile), new Entry(classFile.length(), classFile.lastModified(), hash(bytecode),
+                        configuration, generated));
+        if (previous != null && previous.configuration.equals(configuration)) {
+            for (String name : previous.generatedFiles) {
+                if (!generated.contains(name)) {
+                    deleteGeneratedFile(new File(classFile.getAbsoluteFile().getParentFile(), name));
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a class file that was left as it is because it was already woven, keeping the callable classes recorded
+     * for it, which its woven code still uses.
+     **/
+    void recordWoven(File classFile, byte[] bytecode) {
+        Entry entry = getEntry(classFile);
+        if (entry == null) {
+            System.err.println("WARNING: Class file " + classFile.getPath() + " was already woven by another run; it"
+                    + " must be recompiled to be woven with the current options");
+        }
+        record(classFile, bytecode, entry != null ? entry.generatedFiles : Collections.<String> emptyList());
+    }
+
+    /**
+     * Records an archive after it was woven. Archives are only checked by size and modification time, so their hash is
+     * computed by streaming them rather than by reading them into memory.
+     **/
+    void recordArchive(File archive) {
+        InputStream in = null;
+        try {
+            MessageDigest digest = newDigest();
+            in = new DigestInputStream(new FileInputStream(archive), digest);
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) != -1) {
+                // just compute the digest
+            }
+            entries.put(getKey(archive), new Entry(archive.length(), archive.lastModified(), digest.digest(),
+                    configuration, Collections.<String> emptyList()));
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading archive " + archive.getPath(), e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the entries for class files that no longer exist, deleting the callable classes generated for them.
+     **/
+    void removeDeleted() {
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            File classFile = new File(mapEntry.getKey());
+            if (!classFile.exists()) {
+                for (String name : mapEntry.getValue().generatedFiles) {
+                    deleteGeneratedFile(new File(classFile.getParentFile(), name));
+                }
+                entries.remove(mapEntry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Writes the index back to its file. Entries are written sorted by path, so that the same tree always produces
+     * the same index.
+     **/
+    void save() {
+        Map<String, Entry> sortedEntries = new TreeMap<String, Entry>(entries);
+        DataOutputStream out = null;
+        File tmpFile = null;
+        try {
+            File parentDir = indexFile.getAbsoluteFile().getParentFile();
+            if (!parentDir.exists() && !parentDir.mkdirs()) {
+                throw new IOException("Could not create required directory: " + parentDir);
+            }
+            tmpFile = File.createTempFile(indexFile.getName(), ".tmp", parentDir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sortedEntries.size());
+            for (Map.Entry<String, Entry> mapEntry : sortedEntries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.length);
+                out.writeLong(entry.lastModified);
+                out.writeByte(entry.hash.length);
+                out.write(entry.hash);
+                out.writeUTF(entry.configuration);
+                out.writeInt(entry.generatedFiles.size());
+                for (String name : entry.generatedFiles) {
+                    out.writeUTF(name);
+                }
+            }
+            out.close();
+            out = null;
+            try {
+                Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmpFile = null;
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't write weaving index " + indexFile.getPath(), e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (tmpFile != null && !tmpFile.delete()) {
+                System.err.println("WARNING: Couldn't delete temporary file " + tmpFile.getPath());
+            }
+        }
+    }
+
+    private Entry getEntry(File classFile) {
+        Entry entry = entries.get(getKey(classFile));
+        return entry != null && entry.configuration.equals(configuration) ? entry : null;
+    }
+
+    private static String getKey(File classFile) {
+        return classFile.getAbsolutePath();
+    }
+
+    private static void deleteGeneratedFile(File file) {
+        if (file.exists() && !file.delete()) {
+            System.err.println("WARNING: Couldn't delete stale generated class " + file.getPath());
+        }
+    }
+
+    static byte[] hash(byte[] bytecode) {
+        return newDigest().digest(bytecode);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.objectweb.asm.Type;
+
+/**
+ * Collects the methods advised by {@link ProcessAnnotations} into an {@link AdviceManifest}.
+ *
+ * Entries are merged into the manifest left by previous runs, rather than replacing it, so that several runs (e.g., one
+ * for each set of weaving options) can share one manifest, and so that the methods of classes skipped because they were
+ * already woven, or because the weaving index found them up to date, are kept. When a class is woven again, the
+ * entries recorded for it before are dropped first, so that methods that were since renamed, removed or no longer
+ * annotated are not kept. Entries for classes that were since deleted are ignored when warming up; a clean build
+ * starts a fresh manifest.
+ *
+ * Instances are safe for use by concurrent weaving tasks.
+ **/
+final class WeavingManifest {
+    private final File manifestFile;
+    // The entries of each class, keyed by its binary name, and then by the key of the entry
+    private final ConcurrentMap<String, ConcurrentMap<String, AdviceManifest.Entry>> classes =
+            new ConcurrentHashMap<String, ConcurrentMap<String, AdviceManifest.Entry>>();
+
+    private WeavingManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    /** Loads the manifest from the given file. A missing or unreadable manifest yields an empty one. **/
+    static WeavingManifest load(File manifestFile) {
+        WeavingManifest manifest = new WeavingManifest(manifestFile);
+        if (!manifestFile.exists()) {
+            return manifest;
+        }
+
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(manifestFile));
+            for (AdviceManifest.Entry entry : AdviceManifest.read(in).getEntries()) {
+                manifest.add(entry);
+            }
+        } catch (IOException e) {
+            System.err.println("WARNING: Ignoring unreadable advice manifest " + manifestFile.getPath() + ": " + e);
+            manifest.classes.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Records an advised method.
+     *
+     * @param className The internal name of the class that declares the method
+     * @param annotationElements The values of the annotation elements, as given by ASM or read by reflection
+     **/
+    void record(String className, String methodName, String methodDesc, Type annotation, Type factory,
+            String callableClass, Map<String, Object> annotationElements) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> element : annotationElements.entrySet()) {
+            values.put(element.getKey(), toManifestValue(element.getValue()));
+        }
+        AdviceManifest.Entry entry =
+                new AdviceManifest.Entry(Type.getObjectType(className).getClassName(), methodName, methodDesc,
+                        annotation.getClassName(), factory.getClassName(),
+                        Type.getObjectType(callableClass).getClassName(), values);
+        add(entry);
+    }
+
+    private void add(AdviceManifest.Entry entry) {
+        ConcurrentMap<String, AdviceManifest.Entry> entries = classes.get(entry.getClassName());
+        if (entries == null) {
+            entries = new ConcurrentHashMap<String, AdviceManifest.Entry>();
+            ConcurrentMap<String, AdviceManifest.Entry> existing = classes.putIfAbsent(entry.getClassName(), entries);
+            if (existing != null) {
+                entries = existing;
+            }
+        }
+        entries.put(entry.getKey(), entry);
+    }
+
+    /**
+     * Returns true if methods of the class were recorded.
+     *
+     * @param className The internal name of the class
+     **/
+    boolean hasEntries(String className) {
+        return classes.containsKey(Type.getObjectType(className).getClassName());
+    }
+
+    /**
+     * Drops the methods recorded for a class, as it is about to be woven again.
+     *
+     * @param className The internal name of the class
+     * @param annotation The annotation whose methods are dropped, or null to drop all of them
+     **/
+    void forget(String className, Type annotation) {
+        if (annotation == null) {
+            classes.remove(Type.getObjectType(className).getClassName());
+            return;
+        }
+        ConcurrentMap<String, AdviceManifest.Entry> entries = classes.get(Type.getObjectType(className).getClassName());
+        if (entries != null) {
+            for (Iterator<AdviceManifest.Entry> it = entries.values().iterator(); it.hasNext();) {
+                if (it.next().getAnnotationName().equals(annotation.getClassName())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** Classes and enum constants are recorded by name; ASM gives enum constants as {descriptor, name} **/
+    private static Object toManifestValue(Object value) {
+        if (value instanceof Type) {
+            return ((Type) value).getClassName();
+        } else if (value instanceof String[]) {
+            return ((String[]) value)[1];
+        } else if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        return value;
+    }
+
+    /** Writes the manifest back to its file, replacing it atomically where the file system allows it. **/
+    void save() {
+        OutputStream out = null;
+        File tmpFile = null;
+        try {
+            File parentDir = manifestFile.getAbsoluteFile().getParentFile();
+            if (!parentDir.exists() && !parentDir.mkdirs()) {
+                throw new IOException("Could not create required directory: " + parentDir);
+            }
+            tmpFile = File.createTempFile(manifestFile.getName(), ".tmp", parentDir);
+            out = new FileOutputStream(tmpFile);
+            List<AdviceManifest.Entry> entries = new ArrayList<AdviceManifest.Entry>();
+            for (Map<String, AdviceManifest.Entry> classEntries : classes.values()) {
+                entries.addAll(classEntries.values());
+            }
+            new AdviceManifest(entries).write(out);
+            out.close();
+            out = null;
+            try {
+                Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmpFile = null;
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't write advice manifest " + manifestFile.getPath(), e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (tmpFile != null && !tmpFile.delete()) {
+                System.err.println("WARNING: Couldn't delete temporary file " + tmpFile.getPath());
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Generates the classes used by the tests that run the weaver over class files and archives of their own, rather than
+ * over the compiled test classes, and loads them once woven.
+ */
+final class GeneratedClasses {
+
+    private GeneratedClasses() {
+    }
+
+    /**
+     * Generates a class with the given static methods advised with the annotation. See
+     * {@link #generateHost(String, Map)}.
+     */
+    static byte[] generateHost(String className, Class<? extends Annotation> annotation, String... methods) {
+        Map<String, Class<? extends Annotation>> advisedMethods =
+                new LinkedHashMap<String, Class<? extends Annotation>>();
+        for (String method : methods) {
+            advisedMethods.put(method, annotation);
+        }
+        return generateHost(className, advisedMethods);
+    }
+
+    /**
+     * Generates a class with a static method int name(int) for each of the given methods, which returns its argument
+     * plus the position of the method (starting at 1) and is advised with the given annotation, and a static method
+     * String plain(int), which is not advised.
+     *
+     * @param className The internal name of the class
+     */
+    static byte[] generateHost(String className, Map<String, Class<? extends Annotation>> advisedMethods) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+
+        MethodVisitor mv =
+                cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "plain", "(I)Ljava/lang/String;", null, null);
+        mv.visitCode();
+        Label negative = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IFLT, negative);
+        mv.visitLdcInsn("positive");
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitLabel(negative);
+        mv.visitLdcInsn("negative");
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        int position = 1;
+        for (Map.Entry<String, Class<? extends Annotation>> method : advisedMethods.entrySet()) {
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, method.getKey(), "(I)I", null, null);
+            mv.visitAnnotation(Type.getDescriptor(method.getValue()), false).visitEnd();
+            mv.visitCode();
+            mv.visitVarInsn(Opcodes.ILOAD, 0);
+            mv.visitLdcInsn(position++);
+            mv.visitInsn(Opcodes.IADD);
+            mv.visitInsn(Opcodes.IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /** Writes a class file under the given directory, in the directory of its package **/
+    static File writeClass(File dir, String className, byte[] bytecode) throws IOException {
+        File classFile = new File(dir, className + ".class");
+        classFile.getParentFile().mkdirs();
+        Files.write(classFile.toPath(), bytecode);
+        return classFile;
+    }
+
+    /** Reads all the files under the given directory, keyed by their path relative to it **/
+    static Map<String, byte[]> readFiles(File dir) throws IOException {
+        Map<String, byte[]> files = new TreeMap<String, byte[]>();
+        readFiles(dir, "", files);
+        return files;
+    }
+
+    private static void readFiles(File dir, String prefix, Map<String, byte[]> files) throws IOException {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                readFiles(file, prefix + file.getName() + "/", files);
+            } else {
+                files.put(prefix + file.getName(), Files.readAllBytes(file.toPath()));
+            }
+        }
+    }
+
+    /** Returns a loader for the class files under the given directory **/
+    static ClassesLoader loadClasses(File dir) throws IOException {
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> file : readFiles(dir).entrySet()) {
+            if (file.getKey().endsWith(".class")) {
+                classes.put(file.getKey().substring(0, file.getKey().length() - 6), file.getValue());
+            }
+        }
+        return new ClassesLoader(classes);
+    }
+
+    /** Class loader that defines the given classes itself, and delegates the others to the loader of the tests **/
+    static final class ClassesLoader extends ClassLoader {
+        private final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+        /** @param classes The bytecode of the classes, keyed by their internal name **/
+        ClassesLoader(Map<String, byte[]> classes) {
+            super(GeneratedClasses.class.getClassLoader());
+            this.classes.putAll(classes);
+        }
+
+        ClassesLoader(String className, byte[] bytecode) {
+            this(Collections.singletonMap(className, bytecode));
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytecode = classes.get(name.replace('.', '/'));
+            if (bytecode == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            byte[] bytecode = name.endsWith(".class") ? classes.get(name.substring(0, name.length() - 6)) : null;
+            return bytecode != null ? new ByteArrayInputStream(bytecode) : super.getResourceAsStream(name);
+        }
+
+        /** Defines a class that is not given to the constructor, as a JVM does with the classes it loads **/
+        Class<?> define(String className, byte[] bytecode) {
+            return defineClass(className.replace('/', '.'), bytecode, 0, bytecode.length);
+        }
+
+        /** Calls a static method int name(int) of a class **/
+        int call(String className, String methodName, int argument) throws Exception {
+            return (Integer) loadClass(className.replace('/', '.')).getMethod(methodName, int.class).invoke(null,
+                    argument);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import pt.ist.esw.advice.impl.MyAnnotationWithDefaults;
+import pt.ist.esw.advice.impl.MyOuterAnnotation;
+import pt.ist.esw.advice.impl.TracingAdviceFactory;
+
+/**
+ * Weaves generated classes with the agent, calling its transformer directly.
+ */
+public class TestAdviceAgent {
+    private static final String HOST = "agent/Host";
+    private static final String ANNOTATION = "-a," + MyAnnotationWithDefaults.class.getName();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class CountingProcessAnnotations extends ProcessAnnotations {
+        int woven;
+
+        CountingProcessAnnotations() {
+            super(new ProgramArgs(MyAnnotationWithDefaults.class, null));
+        }
+
+        @Override
+        byte[] weaveClass(byte[] bytecode, Map<String, byte[]> generatedClasses, ClassHierarchy hierarchy) {
+            woven++;
+            return super.weaveClass(bytecode, generatedClasses, hierarchy);
+        }
+    }
+
+    @Test
+    public void testOptionsAreParsed() throws Exception {
+        File cacheDir = new File(folder.getRoot(), "cache");
+        AdviceAgent agent =
+                AdviceAgent.newAgent(" " + ANNOTATION + " , -a," + MyOuterAnnotation.class.getName() + ",-f,"
+                        + TracingAdviceFactory.class.getName() + ",-r,-l,-s,-c," + cacheDir.getPath());
+
+        assertEquals(MyAnnotationWithDefaults.class.getName() + " - " + MyOuterAnnotation.class.getName() + " "
+                + TracingAdviceFactory.class.getName() + " -r-l-s", agent.processor.getConfiguration());
+        assertEquals(cacheDir, agent.cacheDir);
+        assertTrue(cacheDir.isDirectory());
+
+        agent = AdviceAgent.newAgent(ANNOTATION + ",-d,-m");
+        assertEquals(MyAnnotationWithDefaults.class.getName() + " - -d-m", agent.processor.getConfiguration());
+        assertNull(agent.cacheDir);
+    }
+
+    @Test
+    public void testInvalidOptionsAreRejected() throws Exception {
+        assertRejected(null);
+        assertRejected(" ");
+        assertRejected("-r");
+        assertRejected(ANNOTATION + ",-c");
+        assertRejected(ANNOTATION + ",-x,y");
+        assertRejected("-f," + TracingAdviceFactory.class.getName() + "," + ANNOTATION);
+        assertRejected(ANNOTATION + ",-f," + TracingAdviceFactory.class.getName() + ",-f,"
+                + TracingAdviceFactory.class.getName());
+        assertRejected(ANNOTATION + ",-d,-r");
+        assertRejected(ANNOTATION + ",-m,-l");
+        assertRejected(ANNOTATION + ",-g,-d");
+    }
+
+    private static void assertRejected(String agentArgs) throws Exception {
+        try {
+            AdviceAgent.newAgent(agentArgs);
+            fail("Expected agent arguments to be rejected: " + agentArgs);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("AdviceAgent: "));
+        }
+    }
+
+    @Test
+    public void testCallablesAreDefinedBeforeTheHost() throws Exception {
+        byte[] bytecode = GeneratedClasses.generateHost(HOST, MyAnnotationWithDefaults.class, "inc");
+        GeneratedClasses.ClassesLoader loader = newLoader();
+
+        byte[] wovenBytecode = AdviceAgent.newAgent(ANNOTATION).transform(loader, HOST, null, null, bytecode);
+
+        assertNotNull(wovenBytecode);
+        // The JVM defines the woven host once the transformer returns
+        assertNotNull(Class.forName((HOST + "$callable$inc").replace('/', '.'), false, loader));
+        loader.define(HOST, wovenBytecode);
+        assertEquals(2, loader.call(HOST, "inc", 1));
+        assertEquals(2, loader.call(HOST, "inc", 1));
+    }
+
+    @Test
+    public void testCachedClassesAreNotWovenAgain() throws Exception {
+        File cacheDir = folder.newFolder("cache");
+        byte[] bytecode = GeneratedClasses.generateHost(HOST, MyAnnotationWithDefaults.class, "inc");
+
+        CountingProcessAnnotations processor = new CountingProcessAnnotations();
+        byte[] wovenBytecode =
+                new AdviceAgent(processor, cacheDir).transform(newLoader(), HOST, null, null, bytecode);
+        assertEquals(1, processor.woven);
+        assertEquals(1, cacheDir.list().length);
+
+        // A later run finds the class in the cache, along with its callables
+        processor = new CountingProcessAnnotations();
+        GeneratedClasses.ClassesLoader loader = newLoader();
+        byte[] cachedBytecode = new AdviceAgent(processor, cacheDir).transform(loader, HOST, null, null, bytecode);
+        assertEquals(0, processor.woven);
+        assertArrayEquals(wovenBytecode, cachedBytecode);
+        loader.define(HOST, cachedBytecode);
+        assertEquals(2, loader.call(HOST, "inc", 1));
+    }
+
+    @Test
+    public void testClassesWithoutAdvisedMethodsAreCached() throws Exception {
+        File cacheDir = folder.newFolder("cache");
+        // The class refers to the annotation without being advised by it
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, HOST, null, "java/lang/Object", null);
+        cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "annotation",
+                Type.getDescriptor(MyAnnotationWithDefaults.class), null, null).visitEnd();
+        cw.visitEnd();
+        byte[] bytecode = cw.toByteArray();
+
+        CountingProcessAnnotations processor = new CountingProcessAnnotations();
+        assertNull(new AdviceAgent(processor, cacheDir).transform(newLoader(), HOST, null, null, bytecode));
+        assertEquals(1, processor.woven);
+        File[] cacheFiles = cacheDir.listFiles();
+        assertEquals(1, cacheFiles.length);
+        // Just the magic number, a zero length and no callables
+        assertEquals(12, Files.size(cacheFiles[0].toPath()));
+
+        processor = new CountingProcessAnnotations();
+        assertNull(new AdviceAgent(processor, cacheDir).transform(newLoader(), HOST, null, null, bytecode));
+        assertEquals(0, processor.woven);
+    }
+
+    @Test
+    public void testUnrelatedClassesAreIgnored() throws Exception {
+        byte[] bytecode = GeneratedClasses.generateHost(HOST, Deprecated.class, "inc");
+        CountingProcessAnnotations processor = new CountingProcessAnnotations();
+
+        assertNull(new AdviceAgent(processor, null).transform(newLoader(), HOST, null, null, bytecode));
+        assertNull(new AdviceAgent(processor, null).transform(null, HOST, null, null, bytecode));
+        assertEquals(0, processor.woven);
+    }
+
+    private static GeneratedClasses.ClassesLoader newLoader() {
+        return new GeneratedClasses.ClassesLoader(Collections.<String, byte[]> emptyMap());
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.CanonicalCountingAdviceFactory;
+import pt.ist.esw.advice.impl.MyCanonicalAnnotation;
+
+/**
+ * Reads the manifest written when weaving the test classes.
+ */
+public class TestAdviceManifest {
+
+    @Test
+    public void testManifestListsAdvisedMethods() throws IOException {
+        AdviceManifest.Entry entry = getEntry(TestAnnotationMemoize.class.getName(), "evictable", "(I)I");
+        assertEquals(Memoize.class.getName(), entry.getAnnotationName());
+        assertEquals(MemoizingAdviceFactory.class.getName(), entry.getFactoryName());
+        assertTrue(entry.getCallableClassName(),
+                entry.getCallableClassName().startsWith(TestAnnotationMemoize.class.getName() + "$callable$"));
+        assertTrue(entry.getCallableClassName(), entry.getCallableClassName().endsWith("evictable"));
+
+        Map<String, Object> values = entry.getAnnotationValues();
+        assertEquals(2, values.get("capacity"));
+        assertEquals(0L, values.get("expireAfterWriteMillis"));
+        assertEquals(MemoizingAdviceFactory.class.getName(), values.get("adviceFactory"));
+    }
+
+    @Test
+    public void testAnnotationValues() throws IOException {
+        Map<String, Object> values =
+                getEntry(TestAnnotationMyCanonicalAnnotation.class.getName(), "reflected", "()V")
+                        .getAnnotationValues();
+        assertEquals("reflected", values.get("name"));
+        assertEquals(3, values.get("weight"));
+        assertEquals(2.5, values.get("ratio"));
+        assertEquals(true, values.get("flag"));
+        assertEquals("FIELD", values.get("kind"));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        AdviceManifest manifest = AdviceManifest.load(getClass().getClassLoader());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.write(out);
+        AdviceManifest read = AdviceManifest.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(manifest.getEntries().size(), read.getEntries().size());
+        for (int i = 0; i < manifest.getEntries().size(); i++) {
+            assertEquals(manifest.getEntries().get(i).toString(), read.getEntries().get(i).toString());
+        }
+    }
+
+    @Test
+    public void testWarmUpCreatesAdvices() throws Exception {
+        assertFalse(hasAdvice("warmUp"));
+
+        ClassLoader loader = getClass().getClassLoader();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            AdviceManifest.load(loader).warmUp(loader, executor).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(hasAdvice("warmUp"));
+    }
+
+    private static boolean hasAdvice(String name) {
+        for (MyCanonicalAnnotation annotation : CanonicalCountingAdviceFactory.created) {
+            if (annotation.name().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private AdviceManifest.Entry getEntry(String className, String methodName, String descriptor)
+            throws IOException {
+        for (AdviceManifest.Entry entry : AdviceManifest.load(getClass().getClassLoader()).getEntries()) {
+            if (entry.getClassName().equals(className) && entry.getMethodName().equals(methodName)
+                    && entry.getDescriptor().equals(descriptor)) {
+                return entry;
+            }
+        }
+        fail("No manifest entry for " + className + "." + methodName + descriptor);
+        return null;
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Methods in this class are advised with the stock {@link CoalescingAdvice}.
+ */
+public class TestAnnotationCoalesce {
+
+    private static final int THREADS = 8;
+
+    private static final AtomicInteger loads = new AtomicInteger();
+    private static final AtomicInteger failures = new AtomicInteger();
+    private static volatile CountDownLatch entered;
+    private static volatile CountDownLatch release;
+
+    private static int sequentials;
+    private static int reentrants;
+    private static int asyncLoads;
+    private static CompletableFuture<Integer> pending;
+
+    @Test
+    public void testConcurrentCallsAreCoalesced() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = runConcurrently(executor, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return load(4);
+                }
+            }, "load", "(I)I");
+
+            for (Future<Integer> result : results) {
+                assertEquals(40, result.get().intValue());
+            }
+            assertEquals(1, loads.get());
+            assertEquals(0, getAdvice("load", "(I)I").getInFlightCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testExceptionsAreShared() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = runConcurrently(executor, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return failing(4);
+                }
+            }, "failing", "(I)I");
+
+            Throwable first = null;
+            for (Future<Integer> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                    if (first == null) {
+                        first = e.getCause();
+                    }
+                    assertSame(first, e.getCause());
+                }
+            }
+            assertEquals(1, failures.get());
+            assertEquals(0, getAdvice("failing", "(I)I").getInFlightCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testLaterCallsCallAgain() {
+        assertEquals(1, sequential(1));
+        assertEquals(2, sequential(1));
+        assertEquals(0, getAdvice("sequential", "(I)I").getInFlightCount());
+    }
+
+    @Test
+    public void testReentrantCallDoesNotWait() {
+        assertEquals(2, reentrant());
+        assertEquals(2, reentrants);
+    }
+
+    @Test
+    public void testAsyncCallsAreCoalesced() throws Exception {
+        pending = new CompletableFuture<Integer>();
+        CompletableFuture<Integer> first = asyncLoad(1);
+        CompletableFuture<Integer> second = asyncLoad(1);
+        assertEquals(1, asyncLoads);
+        assertFalse(second.isDone());
+        assertEquals(1, getAdvice("asyncLoad", "(I)Ljava/util/concurrent/CompletableFuture;").getInFlightCount());
+
+        pending.complete(7);
+        assertEquals(7, first.get().intValue());
+        assertEquals(7, second.get().intValue());
+        assertEquals(0, getAdvice("asyncLoad", "(I)Ljava/util/concurrent/CompletableFuture;").getInFlightCount());
+
+        pending = new CompletableFuture<Integer>();
+        asyncLoad(1);
+        assertEquals(2, asyncLoads);
+        pending.complete(8);
+    }
+
+    /**
+     * Runs the task in all threads, making sure that the other threads join the first one's flight before it is allowed
+     * to complete.
+     */
+    private static List<Future<Integer>> runConcurrently(ExecutorService executor, Callable<Integer> task,
+            String name, String descriptor) throws InterruptedException {
+        entered = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        results.add(executor.submit(task));
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i < THREADS; i++) {
+            results.add(executor.submit(task));
+        }
+
+        // each method is only called here, so its advice starts counting from 0
+        CoalescingAdvice advice = getAdvice(name, descriptor);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (advice.getCoalescedCount() < THREADS - 1 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(THREADS - 1, advice.getCoalescedCount());
+        release.countDown();
+        return results;
+    }
+
+    private static CoalescingAdvice getAdvice(String name, String descriptor) {
+        return CoalescingAdviceFactory.getAdvice(new AdvisedMethod(TestAnnotationCoalesce.class, name, descriptor,
+                Coalesce.class));
+    }
+
+    @Coalesce
+    private static int load(int key) throws InterruptedException {
+        loads.incrementAndGet();
+        entered.countDown();
+        release.await();
+        return key * 10;
+    }
+
+    @Coalesce
+    private static int failing(int key) throws InterruptedException {
+        failures.incrementAndGet();
+        entered.countDown();
+        release.await();
+        throw new IllegalStateException("failed " + key);
+    }
+
+    @Coalesce
+    private static int sequential(int key) {
+        return ++sequentials;
+    }
+
+    @Coalesce
+    private static int reentrant() {
+        reentrants++;
+        return reentrants == 1 ? reentrant() : reentrants;
+    }
+
+    @Coalesce
+    private static CompletableFuture<Integer> asyncLoad(int key) {
+        asyncLoads++;
+        return pending;
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+/**
+ * Methods in this class are advised with the stock {@link ConcurrencyLimitAdvice}. They are woven with the dynamic
+ * option (-d), so that the asynchronous advice is also exercised through invokedynamic.
+ */
+public class TestAnnotationConcurrencyLimit {
+
+    private CompletableFuture<String> pending;
+    private boolean reentered;
+
+    @Test
+    public void testAsyncCallsCountUntilCompleted() throws Exception {
+        pending = new CompletableFuture<String>();
+        CompletableFuture<String> first = start();
+        CompletableFuture<String> second = start();
+        assertTrue(second.isCompletedExceptionally());
+        try {
+            second.get();
+            fail("call over the limit was not rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        pending.complete("done");
+        assertEquals("done", first.get());
+        pending = CompletableFuture.completedFuture("again");
+        assertEquals("again", start().get());
+    }
+
+    @Test
+    public void testSyncCallsOverLimitAreRejected() {
+        assertEquals(1, reenter(true));
+        assertTrue(reentered);
+        // The permit was released
+        assertEquals(1, reenter(false));
+    }
+
+    @ConcurrencyLimit(1)
+    private CompletableFuture<String> start() {
+        return pending;
+    }
+
+    @ConcurrencyLimit(1)
+    private int reenter(boolean again) {
+        if (again) {
+            try {
+                reenter(false);
+                fail("reentrant call over the limit was not rejected");
+            } catch (RejectedExecutionException e) {
+                reentered = true;
+            }
+        }
+        return 1;
+    }
+
+}
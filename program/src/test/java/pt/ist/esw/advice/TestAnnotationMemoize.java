@@ -0,0 +1,159 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+/**
+ * Methods in this class are advised with the stock {@link MemoizingAdvice}.
+ */
+public class TestAnnotationMemoize {
+
+    private static int squares;
+    private static int concats;
+    private static int lookups;
+    private static int evictables;
+    private static int expirables;
+    private static int failures;
+
+    private int instanceCalls;
+
+    @Test
+    public void testPrimitiveArguments() {
+        assertEquals(9L, square(3, 1.5));
+        assertEquals(9L, square(3, 1.5));
+        assertEquals(1, squares);
+        assertEquals(16L, square(4, 1.5));
+        assertEquals(16L, square(4, 2.5));
+        assertEquals(3, squares);
+
+        ClockCache<Callable<?>, Object> cache = getCache("square", "(ID)J");
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(0.25, cache.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void testObjectArguments() {
+        assertEquals("ab", concat("a", new String("b")));
+        assertEquals("ab", concat("a", new String("b")));
+        assertEquals(1, concats);
+        assertNull(concat(null, null));
+        assertNull(concat(null, null));
+        assertEquals(2, concats);
+    }
+
+    @Test
+    public void testInstanceIsPartOfTheKey() {
+        TestAnnotationMemoize other = new TestAnnotationMemoize();
+        lookup(1);
+        lookup(1);
+        other.lookup(1);
+        assertEquals(1, instanceCalls);
+        assertEquals(1, other.instanceCalls);
+    }
+
+    @Test
+    public void testEviction() {
+        evictable(1);
+        evictable(2);
+        evictable(1);
+        evictable(3);
+        ClockCache<Callable<?>, Object> cache = getCache("evictable", "(I)I");
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.size());
+        assertEquals(3, evictables);
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        expirable();
+        Thread.sleep(20);
+        expirable();
+        assertEquals(2, expirables);
+    }
+
+    @Test
+    public void testExceptionsAreNotCached() {
+        for (int i = 1; i <= 2; i++) {
+            try {
+                failing();
+                fail("failing did not throw");
+            } catch (IllegalStateException e) {
+                assertEquals(i, failures);
+            }
+        }
+    }
+
+    private static ClockCache<Callable<?>, Object> getCache(String name, String descriptor) {
+        return MemoizingAdviceFactory.getCache(new AdvisedMethod(TestAnnotationMemoize.class, name, descriptor,
+                Memoize.class));
+    }
+
+    @Memoize
+    private static long square(int i, double unused) {
+        squares++;
+        return (long) i * i;
+    }
+
+    @Memoize
+    private static String concat(String a, String b) {
+        concats++;
+        return a == null ? null : a + b;
+    }
+
+    @Memoize
+    private int lookup(int i) {
+        instanceCalls++;
+        return i;
+    }
+
+    @Memoize(capacity = 2)
+    private static int evictable(int i) {
+        evictables++;
+        return i;
+    }
+
+    @Memoize(expireAfterWriteMillis = 1)
+    private static int expirable() {
+        expirables++;
+        return expirables;
+    }
+
+    @Memoize
+    private static int failing() {
+        failures++;
+        throw new IllegalStateException();
+    }
+
+}
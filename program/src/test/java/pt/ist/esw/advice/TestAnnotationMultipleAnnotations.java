@@ -0,0 +1,113 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.MyInnerAnnotation;
+import pt.ist.esw.advice.impl.MyOuterAnnotation;
+import pt.ist.esw.advice.impl.MyPrimitiveAnnotation;
+import pt.ist.esw.advice.impl.PrimitiveAdviceFactory.CountingAdvice;
+import pt.ist.esw.advice.impl.TracingAdviceFactory;
+
+/**
+ * MyOuterAnnotation and MyInnerAnnotation are woven in the same pass, in that order, so on methods that have both
+ * MyOuterAnnotation's advice runs first, regardless of the order of the annotations in the source.
+ */
+public class TestAnnotationMultipleAnnotations {
+
+    @Before
+    public void resetTrace() {
+        TracingAdviceFactory.trace.clear();
+    }
+
+    @Test
+    public void testNestingOrder() {
+        assertEquals(3, add(1, 2));
+        assertEquals(Arrays.asList("MyOuterAnnotation", "MyInnerAnnotation", "add"), TracingAdviceFactory.trace);
+    }
+
+    @Test
+    public void testNestingOrderIgnoresSourceOrder() {
+        assertEquals("ab", concat("a", "b"));
+        assertEquals(Arrays.asList("MyOuterAnnotation", "MyInnerAnnotation", "concat"), TracingAdviceFactory.trace);
+    }
+
+    @Test
+    public void testSingleAnnotation() {
+        outerOnly();
+        innerOnly();
+        assertEquals(Arrays.asList("MyOuterAnnotation", "outerOnly", "MyInnerAnnotation", "innerOnly"),
+                TracingAdviceFactory.trace);
+    }
+
+    @Test
+    public void testAnnotationsWithDifferentFactories() {
+        CountingAdvice.longCalls = 0;
+        // MyPrimitiveAnnotation is given before MyOuterAnnotation, so its advice is the outermost
+        assertEquals(4L, twice(2L));
+        assertEquals(1, CountingAdvice.longCalls);
+        assertEquals(Arrays.asList("MyOuterAnnotation", "twice"), TracingAdviceFactory.trace);
+    }
+
+    @MyOuterAnnotation
+    @MyInnerAnnotation
+    private static int add(int a, int b) {
+        TracingAdviceFactory.trace.add("add");
+        return a + b;
+    }
+
+    @MyInnerAnnotation
+    @MyOuterAnnotation
+    private String concat(String a, String b) {
+        TracingAdviceFactory.trace.add("concat");
+        return a + b;
+    }
+
+    @MyOuterAnnotation
+    @MyPrimitiveAnnotation
+    private long twice(long l) {
+        TracingAdviceFactory.trace.add("twice");
+        return l * 2;
+    }
+
+    @MyOuterAnnotation
+    private void outerOnly() {
+        TracingAdviceFactory.trace.add("outerOnly");
+    }
+
+    @MyInnerAnnotation
+    private void innerOnly() {
+        TracingAdviceFactory.trace.add("innerOnly");
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.AsyncAdviceFactory;
+import pt.ist.esw.advice.impl.MyAsyncAnnotation;
+
+/**
+ * Methods in this class return futures, so their advice is given the chance to act when the future completes.
+ */
+public class TestAnnotationMyAsyncAnnotation {
+
+    private final CompletableFuture<String> pending = new CompletableFuture<String>();
+
+    @Before
+    public void clearEvents() {
+        AsyncAdviceFactory.events.clear();
+    }
+
+    @Test
+    public void testCompletableFuture() {
+        CompletableFuture<String> future = future();
+        assertSame(pending, future);
+        assertEquals(Arrays.asList("start", "started"), AsyncAdviceFactory.events);
+        pending.complete("done");
+        assertEquals(Arrays.asList("start", "started", "completed done"), AsyncAdviceFactory.events);
+    }
+
+    @Test
+    public void testCompletionStage() {
+        CompletionStage<String> stage = stage();
+        assertSame(pending, stage);
+        assertEquals(Arrays.asList("start", "started"), AsyncAdviceFactory.events);
+        pending.completeExceptionally(new IllegalStateException("boom"));
+        assertEquals(Arrays.asList("start", "started", "failed boom"), AsyncAdviceFactory.events);
+    }
+
+    @Test
+    public void testStaticMethod() throws Exception {
+        assertEquals("now", completed("now").get());
+        assertEquals(Arrays.asList("start", "started", "completed now"), AsyncAdviceFactory.events);
+    }
+
+    @Test
+    public void testOtherReturnType() {
+        assertEquals("sync", sync());
+        assertEquals(Arrays.asList("perform"), AsyncAdviceFactory.events);
+    }
+
+    @MyAsyncAnnotation
+    private CompletableFuture<String> future() {
+        return pending;
+    }
+
+    @MyAsyncAnnotation
+    private CompletionStage<String> stage() {
+        return pending;
+    }
+
+    @MyAsyncAnnotation
+    private static CompletableFuture<String> completed(String value) {
+        return CompletableFuture.completedFuture(value);
+    }
+
+    @MyAsyncAnnotation
+    private String sync() {
+        return "sync";
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.ElementType;
+
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.CanonicalCountingAdviceFactory;
+import pt.ist.esw.advice.impl.MyCanonicalAnnotation;
+
+/**
+ * Methods in this class are advised with a {@link CanonicalAdviceFactory}. The class itself is annotated so that the
+ * generated annotation instances can be compared with the ones returned by reflection.
+ */
+@MyCanonicalAnnotation(name = "reflected", weight = 3, ratio = 2.5, flag = true, kind = ElementType.FIELD)
+public class TestAnnotationMyCanonicalAnnotation {
+
+    @Test
+    public void testEqualAnnotationsShareAdvice() {
+        shared1();
+        MyCanonicalAnnotation first = CanonicalCountingAdviceFactory.lastPerformed;
+        shared2();
+        assertSame(first, CanonicalCountingAdviceFactory.lastPerformed);
+        other();
+        assertEquals("other", CanonicalCountingAdviceFactory.lastPerformed.name());
+
+        int sharedAdvices = 0;
+        for (MyCanonicalAnnotation annotation : CanonicalCountingAdviceFactory.created) {
+            if (annotation.name().equals("shared")) {
+                sharedAdvices++;
+            }
+        }
+        assertEquals(1, sharedAdvices);
+    }
+
+    @Test
+    public void testInstanceHonorsAnnotationContract() {
+        reflected();
+        MyCanonicalAnnotation generated = CanonicalCountingAdviceFactory.lastPerformed;
+        MyCanonicalAnnotation reflected = getClass().getAnnotation(MyCanonicalAnnotation.class);
+
+        assertFalse(java.lang.reflect.Proxy.isProxyClass(generated.getClass()));
+        assertEquals(MyCanonicalAnnotation.class, generated.annotationType());
+        assertEquals(reflected, generated);
+        assertEquals(generated, reflected);
+        assertEquals(reflected.hashCode(), generated.hashCode());
+        assertEquals(generated, generated);
+    }
+
+    @Test
+    public void testDifferentValuesAreNotEqual() {
+        reflected();
+        MyCanonicalAnnotation generated = CanonicalCountingAdviceFactory.lastPerformed;
+        almostReflected();
+        MyCanonicalAnnotation almost = CanonicalCountingAdviceFactory.lastPerformed;
+
+        assertNotEquals(generated, almost);
+        assertNotEquals(almost, generated);
+        assertNotEquals(generated, new Object());
+        assertFalse(generated.equals(null));
+    }
+
+    @Test
+    public void testToString() {
+        reflected();
+        String string = CanonicalCountingAdviceFactory.lastPerformed.toString();
+        assertTrue(string, string.startsWith("@" + MyCanonicalAnnotation.class.getName() + "("));
+        assertTrue(string, string.contains("name=reflected"));
+        assertTrue(string, string.contains("weight=3"));
+        assertTrue(string, string.contains("ratio=2.5"));
+        assertTrue(string, string.contains("flag=true"));
+        assertTrue(string, string.contains("kind=FIELD"));
+        assertTrue(string, string.endsWith(")"));
+    }
+
+    @MyCanonicalAnnotation(name = "shared", weight = 2)
+    private static void shared1() {
+    }
+
+    @MyCanonicalAnnotation(name = "shared", weight = 2)
+    private static void shared2() {
+    }
+
+    @MyCanonicalAnnotation(name = "other", weight = 2)
+    private static void other() {
+    }
+
+    @MyCanonicalAnnotation(name = "reflected", weight = 3, ratio = 2.5, flag = true, kind = ElementType.FIELD)
+    private static void reflected() {
+    }
+
+    @MyCanonicalAnnotation(name = "reflected", weight = 3, ratio = 2.5, flag = true, kind = ElementType.TYPE)
+    private static void almostReflected() {
+    }
+
+}
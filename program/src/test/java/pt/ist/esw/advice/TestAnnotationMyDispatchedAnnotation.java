@@ -0,0 +1,241 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pt.ist.esw.advice.impl.DispatchedAdviceFactory;
+import pt.ist.esw.advice.impl.MyDispatchedAnnotation;
+import pt.ist.esw.advice.impl.MyInnerAnnotation;
+import pt.ist.esw.advice.impl.MyOuterAnnotation;
+import pt.ist.esw.advice.impl.TracingAdviceFactory;
+
+/**
+ * Methods in this class are woven with the dispatch option (-g), so they are all called through a single callable
+ * class.
+ */
+public class TestAnnotationMyDispatchedAnnotation {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResults() throws Exception {
+        assertEquals(3, add(1, 2));
+        assertEquals(3, sub(5, 2));
+        assertEquals(1 + 2 + 'c' + 4 + 5L, mix(true, (byte) 2, 'c', (short) 4, 5L));
+        assertEquals(-5L, mix(false, (byte) 2, 'c', (short) 4, 5L));
+        assertEquals(3.0, scale(1.5f, 2.0), 0.0);
+        assertEquals("ab3", concat("a", "b", new int[] { 1, 2 }));
+        assertEquals("xx", twice("x"));
+        assertEquals("44", twice(4));
+        List<String> out = new ArrayList<String>();
+        touch(out);
+        assertEquals(1, out.size());
+        assertArrayEquals(new long[] { 7L }, wrap(7L));
+    }
+
+    @Test
+    public void testOneCallableClassPerHostClass() throws Exception {
+        add(1, 2);
+        Class<?> dispatcher = last().getClass();
+        assertEquals(getClass().getName() + "$callable$" + MyDispatchedAnnotation.class.getName().replace('.', '_'),
+                dispatcher.getName());
+        mix(true, (byte) 0, 'a', (short) 0, 0L);
+        assertSame(dispatcher, last().getClass());
+        scale(1f, 1.0);
+        assertSame(dispatcher, last().getClass());
+        concat("a", "b", new int[0]);
+        assertSame(dispatcher, last().getClass());
+        touch(new ArrayList<String>());
+        assertSame(dispatcher, last().getClass());
+
+        try {
+            Class.forName(getClass().getName() + "$callable$add");
+            fail("No callable class should be generated per method");
+        } catch (ClassNotFoundException expected) {
+        }
+    }
+
+    @Test
+    public void testSpecializedCallables() throws Exception {
+        add(1, 2);
+        assertTrue(last() instanceof IntCallable);
+        assertEquals(3, ((IntCallable) last()).callInt());
+        mix(true, (byte) 0, 'a', (short) 0, 1L);
+        assertEquals(1L + 'a' + 1L, ((LongCallable) last()).callLong());
+        scale(2f, 3.0);
+        assertEquals(6.0, ((DoubleCallable) last()).callDouble(), 0.0);
+        assertEquals(Double.valueOf(6.0), last().call());
+        touch(new ArrayList<String>());
+        assertNull(last().call());
+    }
+
+    @Test
+    public void testDispatchersOfSeveralRuns() throws Exception {
+        String host = "dispatched/Host";
+        Map<String, Class<? extends Annotation>> advisedMethods =
+                new LinkedHashMap<String, Class<? extends Annotation>>();
+        advisedMethods.put("a", MyOuterAnnotation.class);
+        advisedMethods.put("b", MyInnerAnnotation.class);
+        File dir = folder.getRoot();
+        GeneratedClasses.writeClass(dir, host, GeneratedClasses.generateHost(host, advisedMethods));
+
+        // Each run dispatches the methods of its own annotation
+        new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyOuterAnnotation.class, TracingAdviceFactory.class,
+                dir).setDispatchCallables(true)).process();
+        new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyInnerAnnotation.class, TracingAdviceFactory.class,
+                dir).setDispatchCallables(true)).process();
+
+        GeneratedClasses.ClassesLoader loader = GeneratedClasses.loadClasses(dir);
+        TracingAdviceFactory.trace.clear();
+        assertEquals(2, loader.call(host, "a", 1));
+        assertEquals(3, loader.call(host, "b", 1));
+        assertEquals(Arrays.asList("MyOuterAnnotation", "MyInnerAnnotation"), TracingAdviceFactory.trace);
+    }
+
+    @Test
+    public void testCallablesEqualForSameMethodAndArguments() throws Exception {
+        add(1, 2);
+        Callable<?> first = last();
+        add(1, 2);
+        Callable<?> second = last();
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+
+        add(1, 3);
+        assertFalse(first.equals(last()));
+        // Same arguments, but a different method
+        sub(1, 2);
+        assertFalse(first.equals(last()));
+
+        scale(Float.NaN, -0.0);
+        Callable<?> nan = last();
+        scale(Float.NaN, -0.0);
+        assertEquals(nan, last());
+        scale(Float.NaN, 0.0);
+        assertFalse(nan.equals(last()));
+
+        twice("x");
+        Callable<?> string = last();
+        twice(new String("x"));
+        assertEquals(string, last());
+        twice("y");
+        assertFalse(string.equals(last()));
+    }
+
+    @Test
+    public void testExceptionsPropagate() {
+        try {
+            fails("boom");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("boom", e.getMessage());
+        }
+    }
+
+    private static Callable<?> last() {
+        List<Callable<?>> performed = DispatchedAdviceFactory.performed;
+        return performed.get(performed.size() - 1);
+    }
+
+    @MyDispatchedAnnotation
+    private int add(int a, int b) {
+        return a + b;
+    }
+
+    @MyDispatchedAnnotation
+    private int sub(int a, int b) {
+        return a - b;
+    }
+
+    @MyDispatchedAnnotation
+    static long mix(boolean flag, byte b, char c, short s, long l) {
+        long sum = b + c + s + l;
+        return flag ? (1 + sum) : -l;
+    }
+
+    @MyDispatchedAnnotation
+    public double scale(float f, double d) {
+        return f * d;
+    }
+
+    @MyDispatchedAnnotation
+    String concat(String a, Object b, int[] values) {
+        int sum = 0;
+        for (int value : values) {
+            sum += value;
+        }
+        return a + b + sum;
+    }
+
+    @MyDispatchedAnnotation
+    static String twice(String s) {
+        return s + s;
+    }
+
+    @MyDispatchedAnnotation
+    static String twice(int i) {
+        return "" + i + i;
+    }
+
+    @MyDispatchedAnnotation
+    void touch(List<String> out) {
+        out.add("touched");
+    }
+
+    @MyDispatchedAnnotation
+    static long[] wrap(long l) {
+        return new long[] { l };
+    }
+
+    @MyDispatchedAnnotation
+    void fails(String message) throws IOException {
+        throw new IOException(message);
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.DynamicAdviceFactory;
+import pt.ist.esw.advice.impl.DynamicAdviceFactory.CountingAdvice;
+import pt.ist.esw.advice.impl.MyDynamicAnnotation;
+
+/**
+ * Methods in this class are woven with the dynamic option (-d), so their advice is obtained through invokedynamic when
+ * they are first called.
+ */
+public class TestAnnotationMyDynamicAnnotation {
+
+    public int i;
+
+    @Before
+    public void resetCounters() {
+        i = 0;
+        CountingAdvice.genericCalls = 0;
+        CountingAdvice.doubleCalls = 0;
+    }
+
+    @Test
+    public void testAdviceCreatedOnFirstCall() {
+        assertFalse(DynamicAdviceFactory.created.contains("lazy"));
+        assertEquals("lazy", lazy());
+        assertTrue(DynamicAdviceFactory.created.contains("lazy"));
+        assertEquals("lazy", lazy());
+        assertEquals(1, countCreated("lazy"));
+        assertEquals(2, CountingAdvice.genericCalls);
+    }
+
+    @Test
+    public void testNoAdviceFields() {
+        for (Field field : getClass().getDeclaredFields()) {
+            assertFalse(field.getName(), field.getName().startsWith("advice$"));
+        }
+    }
+
+    @Test
+    public void testVoidMethod() {
+        inc();
+        inc();
+        assertEquals(2, i);
+        assertEquals(2, CountingAdvice.genericCalls);
+    }
+
+    @Test
+    public void testPrimitiveMethods() {
+        assertEquals(42L, twice(21L));
+        assertEquals(1, CountingAdvice.genericCalls);
+        assertEquals(1.5, half(3), 0.0);
+        assertEquals(1, CountingAdvice.doubleCalls);
+    }
+
+    private static int countCreated(String value) {
+        int count = 0;
+        for (String created : DynamicAdviceFactory.created) {
+            if (created.equals(value)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @MyDynamicAnnotation("lazy")
+    private String lazy() {
+        return "lazy";
+    }
+
+    @MyDynamicAnnotation
+    private void inc() {
+        i++;
+    }
+
+    @MyDynamicAnnotation
+    private long twice(long l) {
+        return l * 2;
+    }
+
+    @MyDynamicAnnotation
+    private static double half(int i) {
+        return i / 2.0;
+    }
+
+}
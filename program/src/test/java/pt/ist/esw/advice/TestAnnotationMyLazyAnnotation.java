@@ -0,0 +1,132 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.LazyAdviceFactory;
+import pt.ist.esw.advice.impl.MyLazyAnnotation;
+
+/**
+ * Methods in this class are woven with the lazy option (-l), so their advice is only created when they are first
+ * called.
+ */
+public class TestAnnotationMyLazyAnnotation {
+    private static final int THREADS = 8;
+
+    static class Holder {
+        static boolean initialized = true;
+
+        @MyLazyAnnotation("holder")
+        static int one() {
+            return 1;
+        }
+    }
+
+    @Test
+    public void testClassInitializationDoesNotCreateAdvice() {
+        assertTrue(Holder.initialized);
+        assertFalse(LazyAdviceFactory.created.contains("holder"));
+        assertEquals(1, Holder.one());
+        assertTrue(LazyAdviceFactory.created.contains("holder"));
+    }
+
+    @Test
+    public void testAdviceCreatedOnFirstCall() {
+        assertFalse(LazyAdviceFactory.created.contains("first"));
+        assertEquals("first", first());
+        assertEquals("first", first());
+        assertEquals(1, countCreated("first"));
+    }
+
+    @Test
+    public void testConcurrentFirstCalls() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < THREADS; i++) {
+                final int n = i;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        return concurrent(n);
+                    }
+                }));
+            }
+            start.countDown();
+            for (int i = 0; i < THREADS; i++) {
+                assertEquals(Integer.valueOf(i + 1), results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, countCreated("concurrent"));
+    }
+
+    @Test
+    public void testNoAdviceFields() {
+        for (Field field : getClass().getDeclaredFields()) {
+            assertFalse(field.getName(), field.getName().startsWith("advice$"));
+        }
+    }
+
+    private static int countCreated(String value) {
+        int count = 0;
+        for (String created : LazyAdviceFactory.created) {
+            if (created.equals(value)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @MyLazyAnnotation("first")
+    private String first() {
+        return "first";
+    }
+
+    @MyLazyAnnotation("concurrent")
+    private int concurrent(int n) {
+        return n + 1;
+    }
+
+}
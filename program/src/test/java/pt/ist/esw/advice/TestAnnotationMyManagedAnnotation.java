@@ -0,0 +1,241 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.invoke.MethodType;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.ManagedAdviceFactory.CountingAdvice;
+import pt.ist.esw.advice.impl.MyManagedAnnotation;
+
+/**
+ * Methods in this class are woven with the managed option (-m), so their advice can be replaced or disabled through
+ * the {@link AdviceRegistry}.
+ */
+public class TestAnnotationMyManagedAnnotation {
+
+    public int i;
+
+    @After
+    public void resetRegistry() {
+        AdviceRegistry.reset(MyManagedAnnotation.class);
+    }
+
+    @Test
+    public void testMethodRegisteredOnFirstCall() {
+        assertTrue(AdviceRegistry.getAdvisedMethods(getClass(), "notYetCalled").isEmpty());
+        assertEquals(3, notYetCalled(1, 2));
+        AdvisedMethod method = getAdvisedMethod("notYetCalled");
+        assertSame(getClass(), method.getDeclaringClass());
+        assertEquals(MethodType.methodType(int.class, int.class, int.class), method.getMethodType());
+        assertSame(MyManagedAnnotation.class, method.getAnnotationType());
+        assertTrue(AdviceRegistry.getAdvisedMethods().contains(method));
+    }
+
+    @Test
+    public void testDisableMethod() {
+        inc();
+        AdvisedMethod method = getAdvisedMethod("inc");
+        CountingAdvice advice = (CountingAdvice) AdviceRegistry.getAdvice(method);
+        int calls = advice.calls;
+
+        AdviceRegistry.setEnabled(method, false);
+        assertFalse(AdviceRegistry.isEnabled(method));
+        inc();
+        assertEquals(2, i);
+        assertEquals(calls, advice.calls);
+
+        AdviceRegistry.setEnabled(method, true);
+        inc();
+        assertEquals(3, i);
+        assertEquals(calls + 1, advice.calls);
+    }
+
+    @Test
+    public void testSwapMethodAdvice() {
+        assertEquals(42L, twice(21L));
+        AdvisedMethod method = getAdvisedMethod("twice");
+        CountingAdvice original = (CountingAdvice) AdviceRegistry.getAdvice(method);
+        int calls = original.calls;
+        CountingAdvice replacement = new CountingAdvice();
+
+        AdviceRegistry.setAdvice(method, replacement);
+        assertEquals(42L, twice(21L));
+        assertEquals(calls, original.calls);
+        assertEquals(1, replacement.calls);
+
+        AdviceRegistry.reset(method);
+        assertSame(original, AdviceRegistry.getAdvice(method));
+        assertEquals(42L, twice(21L));
+        assertEquals(calls + 1, original.calls);
+    }
+
+    @Test
+    public void testDisableAnnotation() {
+        assertEquals(1.5, half(3), 0.0);
+        AdvisedMethod method = getAdvisedMethod("half");
+        CountingAdvice advice = (CountingAdvice) AdviceRegistry.getAdvice(method);
+        int calls = advice.calls;
+
+        AdviceRegistry.setEnabled(MyManagedAnnotation.class, false);
+        assertEquals(1.5, half(3), 0.0);
+        assertEquals(calls, advice.calls);
+        // Also applies to methods linked afterwards
+        assertEquals("late", linkedWhileDisabled());
+        assertFalse(AdviceRegistry.isEnabled(getAdvisedMethod("linkedWhileDisabled")));
+
+        // Settings for the method take precedence
+        AdviceRegistry.setEnabled(method, true);
+        assertEquals(1.5, half(3), 0.0);
+        assertEquals(calls + 1, advice.calls);
+    }
+
+    @Test
+    public void testSwapAnnotationAdvice() {
+        dec();
+        CountingAdvice replacement = new CountingAdvice();
+        AdviceRegistry.setAdvice(MyManagedAnnotation.class, replacement);
+        dec();
+        assertEquals(-2, i);
+        assertEquals(1.5, half(3), 0.0);
+        assertEquals(2, replacement.calls);
+        assertSame(replacement, AdviceRegistry.getAdvice(getAdvisedMethod("dec")));
+    }
+
+    @Test
+    public void testConcurrentFirstCalls() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    linkedConcurrently();
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // The registered call site must be the one the JVM kept, so that its settings apply
+        AdvisedMethod method = getAdvisedMethod("linkedConcurrently");
+        CountingAdvice advice = (CountingAdvice) AdviceRegistry.getAdvice(method);
+        int calls = advice.calls;
+        assertEquals("linked", linkedConcurrently());
+        assertEquals(calls + 1, advice.calls);
+        AdviceRegistry.setEnabled(method, false);
+        assertEquals("linked", linkedConcurrently());
+        assertEquals(calls + 1, advice.calls);
+        AdviceRegistry.setEnabled(method, true);
+        assertEquals("linked", linkedConcurrently());
+        assertEquals(calls + 2, advice.calls);
+    }
+
+    @Test
+    public void testSettingsMadeBeforeFirstCall() {
+        AdvisedMethod method =
+                new AdvisedMethod(getClass(), "configuredBeforeCall", MethodType.methodType(String.class),
+                        MyManagedAnnotation.class);
+        CountingAdvice replacement = new CountingAdvice();
+        AdviceRegistry.setAdvice(method, replacement);
+        AdviceRegistry.setEnabled(method, false);
+        assertSame(replacement, AdviceRegistry.getAdvice(method));
+        assertFalse(AdviceRegistry.isEnabled(method));
+
+        assertEquals("configured", configuredBeforeCall());
+        assertEquals(method, getAdvisedMethod("configuredBeforeCall"));
+        assertEquals(0, replacement.calls);
+
+        AdviceRegistry.setEnabled(method, true);
+        assertEquals("configured", configuredBeforeCall());
+        assertEquals(1, replacement.calls);
+    }
+
+    private AdvisedMethod getAdvisedMethod(String name) {
+        Collection<AdvisedMethod> methods = AdviceRegistry.getAdvisedMethods(getClass(), name);
+        assertEquals(1, methods.size());
+        return methods.iterator().next();
+    }
+
+    @MyManagedAnnotation
+    private static int notYetCalled(int a, int b) {
+        return a + b;
+    }
+
+    @MyManagedAnnotation
+    private static String linkedWhileDisabled() {
+        return "late";
+    }
+
+    @MyManagedAnnotation
+    private static String configuredBeforeCall() {
+        return "configured";
+    }
+
+    @MyManagedAnnotation
+    private static String linkedConcurrently() {
+        return "linked";
+    }
+
+    @MyManagedAnnotation
+    private void inc() {
+        i++;
+    }
+
+    @MyManagedAnnotation
+    private void dec() {
+        i--;
+    }
+
+    @MyManagedAnnotation
+    private long twice(long l) {
+        return l * 2;
+    }
+
+    @MyManagedAnnotation
+    private static double half(int i) {
+        return i / 2.0;
+    }
+
+}
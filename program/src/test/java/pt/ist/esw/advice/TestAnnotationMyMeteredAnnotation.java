@@ -0,0 +1,141 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.MyMeteredAnnotation;
+
+/**
+ * Methods in this class are advised with the stock {@link MetricsAdviceFactory}.
+ */
+public class TestAnnotationMyMeteredAnnotation {
+
+    private static final int CALLS = 100;
+
+    @Test
+    public void testCallsAreCounted() {
+        MethodMetrics metrics = getMetrics("add", "(II)I");
+        long calls = metrics.getCallCount();
+        for (int i = 0; i < CALLS; i++) {
+            assertEquals(i + 1, add(i, 1));
+        }
+        assertEquals(calls + CALLS, metrics.getCallCount());
+        assertEquals(0, metrics.getErrorCount());
+
+        long histogramCalls = 0;
+        for (long count : metrics.getLatencyHistogram()) {
+            histogramCalls += count;
+        }
+        assertEquals(metrics.getCallCount(), histogramCalls);
+        assertTrue(metrics.getLatencyP50Nanos() <= metrics.getLatencyP99Nanos());
+        assertTrue(metrics.getMeanLatencyNanos() > 0);
+    }
+
+    @Test
+    public void testErrorsAreCounted() {
+        MethodMetrics metrics = getMetrics("fail", "(Ljava/lang/String;)V");
+        long errors = metrics.getErrorCount();
+        try {
+            fail("boom");
+            fail("fail did not throw");
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        assertEquals(errors + 1, metrics.getErrorCount());
+    }
+
+    @Test
+    public void testAsyncCallsAreMeasuredOnCompletion() {
+        CompletableFuture<String> pending = new CompletableFuture<String>();
+        assertSame(pending, later(pending));
+        MethodMetrics metrics =
+                getMetrics("later", "(Ljava/util/concurrent/CompletableFuture;)Ljava/util/concurrent/CompletableFuture;");
+        long calls = metrics.getCallCount();
+        pending.complete("done");
+        assertEquals(calls + 1, metrics.getCallCount());
+        assertEquals(0, metrics.getErrorCount());
+    }
+
+    @Test
+    public void testMetricsArePublished() throws Exception {
+        add(1, 2);
+        MethodMetrics metrics = getMetrics("add", "(II)I");
+        ObjectName name = MethodMetrics.getObjectName(metrics.getAdvisedMethod());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+        assertEquals(metrics.getCallCount(), server.getAttribute(name, "CallCount"));
+        assertEquals(getClass().getName(), name.getKeyProperty("class"));
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        assertEquals(0, LatencyHistogram.getBucket(-1));
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT - 1; i++) {
+            assertEquals(i, LatencyHistogram.getBucket(LatencyHistogram.getLowerBound(i)));
+            assertEquals(i, LatencyHistogram.getBucket(LatencyHistogram.getUpperBound(i)));
+            assertEquals(LatencyHistogram.getUpperBound(i) + 1, LatencyHistogram.getLowerBound(i + 1));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.getBucket(Long.MAX_VALUE));
+    }
+
+    private MethodMetrics getMetrics(String name, String descriptor) {
+        MethodMetrics metrics =
+                MetricsAdviceFactory.getMetrics(new AdvisedMethod(getClass(), name, descriptor,
+                        MyMeteredAnnotation.class));
+        assertNotNull(metrics);
+        return metrics;
+    }
+
+    @MyMeteredAnnotation
+    private static int add(int a, int b) {
+        return a + b;
+    }
+
+    @MyMeteredAnnotation
+    private static CompletableFuture<String> later(CompletableFuture<String> future) {
+        return future;
+    }
+
+    @MyMeteredAnnotation
+    private void fail(String message) {
+        throw new IllegalStateException(message);
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.MyPrimitiveAnnotation;
+import pt.ist.esw.advice.impl.PrimitiveAdviceFactory.CountingAdvice;
+
+/**
+ * Checks that methods returning primitives use the specialized perform when the advice implements it, and the generic
+ * perform otherwise.
+ */
+public class TestAnnotationMyPrimitiveAnnotation {
+
+    @Before
+    public void resetCounters() {
+        CountingAdvice.genericCalls = 0;
+        CountingAdvice.longCalls = 0;
+        CountingAdvice.doubleCalls = 0;
+    }
+
+    @Test
+    public void testLongUsesSpecializedAdvice() {
+        assertEquals(42L, twice(21L));
+        assertEquals(1, CountingAdvice.longCalls);
+        assertEquals(0, CountingAdvice.genericCalls);
+    }
+
+    @Test
+    public void testDoubleUsesSpecializedAdvice() {
+        assertEquals(1.5, half(3), 0.0);
+        assertEquals(1, CountingAdvice.doubleCalls);
+        assertEquals(0, CountingAdvice.genericCalls);
+    }
+
+    @Test
+    public void testIntFallsBackToGenericAdvice() {
+        assertEquals(7, increment(6));
+        assertEquals(1, CountingAdvice.genericCalls);
+    }
+
+    @Test
+    public void testObjectUsesGenericAdvice() {
+        assertEquals("ab", concat("a", "b"));
+        assertEquals(1, CountingAdvice.genericCalls);
+        assertEquals(0, CountingAdvice.longCalls + CountingAdvice.doubleCalls);
+    }
+
+    @MyPrimitiveAnnotation
+    private long twice(long l) {
+        return l * 2;
+    }
+
+    @MyPrimitiveAnnotation
+    private static double half(int i) {
+        return i / 2.0;
+    }
+
+    @MyPrimitiveAnnotation
+    private int increment(int i) {
+        return i + 1;
+    }
+
+    @MyPrimitiveAnnotation
+    private String concat(String a, String b) {
+        return a + b;
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.EscapingAdviceFactory;
+import pt.ist.esw.advice.impl.EscapingAdviceFactory.KeepingAdvice;
+import pt.ist.esw.advice.impl.MyReusableAnnotation;
+import pt.ist.esw.advice.impl.NonEscapingAdviceFactory.IdentityRecordingAdvice;
+
+/**
+ * Methods in this class are woven with the reuse option (-r). Unless they say otherwise, their advice is non-escaping,
+ * so calling them must not allocate.
+ */
+public class TestAnnotationMyReusableAnnotation {
+    private static final int CALLS = 10000;
+
+    private final String prefix = "x";
+
+    @Test
+    public void testLongMethodDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threadBean = getThreadBean();
+        long sum = 0;
+        for (int i = 0; i < CALLS; i++) {
+            sum += add(i, 1);
+        }
+
+        long before = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < CALLS; i++) {
+            sum += add(i, 1);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        assertEquals(2 * ((long) CALLS * (CALLS + 1) / 2), sum);
+        // A new callable per call would take at least 16 bytes each
+        assertTrue("Allocated " + allocated + " bytes in " + CALLS + " calls", allocated < CALLS);
+    }
+
+    @Test
+    public void testObjectMethodDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threadBean = getThreadBean();
+        String s = "";
+        for (int i = 0; i < CALLS; i++) {
+            s = choose(s, i);
+        }
+
+        long before = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < CALLS; i++) {
+            s = choose(s, i);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        assertEquals(prefix, s);
+        assertTrue("Allocated " + allocated + " bytes in " + CALLS + " calls", allocated < CALLS);
+    }
+
+    @Test
+    public void testCallableIsReused() {
+        add(1, 2);
+        int first = IdentityRecordingAdvice.lastCallable;
+        add(3, 4);
+        assertEquals(first, IdentityRecordingAdvice.lastCallable);
+    }
+
+    @Test
+    public void testReentrantCalls() {
+        assertEquals(3628800L, factorial(10));
+        assertEquals(1L, factorial(0));
+    }
+
+    @Test
+    public void testEscapingCallablesAreNotCleared() throws Exception {
+        KeepingAdvice.callables.clear();
+        assertEquals("hello a", greet("a"));
+        assertEquals("hello b", greet("b"));
+
+        // The advice kept the callables, so they must still have their arguments
+        assertEquals(2, KeepingAdvice.callables.size());
+        assertEquals("hello a", KeepingAdvice.callables.get(0).call());
+        assertEquals("hello b", KeepingAdvice.callables.get(1).call());
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(sunThreadBean.isThreadAllocatedMemorySupported() && sunThreadBean.isThreadAllocatedMemoryEnabled());
+        return sunThreadBean;
+    }
+
+    @MyReusableAnnotation
+    private static long add(long a, long b) {
+        return a + b;
+    }
+
+    @MyReusableAnnotation
+    private String choose(String s, int i) {
+        return i % 2 == 0 ? prefix : s;
+    }
+
+    @MyReusableAnnotation(adviceFactory = EscapingAdviceFactory.class)
+    private static String greet(String name) {
+        return "hello " + name;
+    }
+
+    @MyReusableAnnotation
+    private long factorial(int n) {
+        return n == 0 ? 1 : n * factorial(n - 1);
+    }
+
+}
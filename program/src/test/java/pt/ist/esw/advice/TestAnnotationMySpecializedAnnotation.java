@@ -0,0 +1,202 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import pt.ist.esw.advice.impl.MySpecializedAnnotation;
+import pt.ist.esw.advice.impl.SpecializableAdviceFactory;
+import pt.ist.esw.advice.impl.SpecializableAdviceFactory.CountingAdvice;
+import pt.ist.esw.advice.impl.SpecializableAdviceFactory.MutableAdvice;
+
+/**
+ * Methods in this class are woven with the specialize option (-s), so each one gets its own copy of its advice class.
+ */
+public class TestAnnotationMySpecializedAnnotation {
+
+    @Test
+    public void testEachMethodHasItsOwnAdviceClass() {
+        assertEquals(1, one());
+        assertEquals(2, two());
+        Class<?> oneAdvice = SpecializableAdviceFactory.performedBy.get("one");
+        Class<?> twoAdvice = SpecializableAdviceFactory.performedBy.get("two");
+        assertFalse(oneAdvice.equals(twoAdvice));
+        for (Class<?> adviceClass : new Class<?>[] { oneAdvice, twoAdvice }) {
+            assertFalse(adviceClass.equals(CountingAdvice.class));
+            assertTrue(adviceClass.getName(), adviceClass.getName().startsWith(CountingAdvice.class.getName()
+                    + "$specialized$"));
+            assertTrue(IntAdvice.class.isAssignableFrom(adviceClass));
+            assertSame(CountingAdvice.class.getClassLoader(), adviceClass.getClassLoader());
+        }
+    }
+
+    @Test
+    public void testFieldsAreCopied() {
+        int before = SpecializableAdviceFactory.calls.get("counted").get();
+        assertEquals("counted", counted());
+        assertEquals("counted", counted());
+        assertEquals(before + 2, SpecializableAdviceFactory.calls.get("counted").get());
+    }
+
+    @Test
+    public void testAdviceWithMutableFieldIsNotSpecialized() {
+        assertEquals(3, mutable());
+        assertSame(MutableAdvice.class, SpecializableAdviceFactory.performedBy.get("mutable"));
+    }
+
+    @Test
+    public void testAdviceWithStaticInitializerIsNotSpecialized() {
+        Advice advice = new WithStaticInitializer();
+        assertSame(advice, SpecializedAdvices.specialize(advice));
+    }
+
+    @Test
+    public void testAdviceWithStaticFieldIsNotSpecialized() {
+        Advice advice = new WithStaticField();
+        assertSame(advice, SpecializedAdvices.specialize(advice));
+    }
+
+    @Test
+    public void testNestedAdviceIsNotSpecialized() throws Exception {
+        // Nests were introduced in Java 11
+        String version = System.getProperty("java.specification.version");
+        assumeTrue(!version.startsWith("1.") && Integer.parseInt(version) >= 11);
+
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        classes.put("nest/Outer", generateOuter());
+        classes.put("nest/Outer$Advice", generateNestedAdvice());
+        GeneratedClasses.ClassesLoader loader = new GeneratedClasses.ClassesLoader(classes);
+        Advice advice = (Advice) loader.loadClass("nest.Outer$Advice").getConstructor().newInstance();
+
+        assertSame(advice, SpecializedAdvices.specialize(advice));
+        assertEquals("called", advice.perform(new Callable<String>() {
+            @Override
+            public String call() {
+                return "called";
+            }
+        }));
+    }
+
+    /** Generates a class with a private field, as javac does for a class with a nested class **/
+    private static byte[] generateOuter() {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "nest/Outer", null, "java/lang/Object", null);
+        cw.visitNestMember("nest/Outer$Advice");
+        cw.visitInnerClass("nest/Outer$Advice", "nest/Outer", "Advice", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC);
+        cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "secret", "Ljava/lang/String;",
+                null, "secret").visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /** Generates an advice nested in Outer that reads its private field, without a synthetic accessor **/
+    private static byte[] generateNestedAdvice() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "nest/Outer$Advice", null, "java/lang/Object",
+                new String[] { Type.getInternalName(Advice.class) });
+        cw.visitNestHost("nest/Outer");
+        cw.visitInnerClass("nest/Outer$Advice", "nest/Outer", "Advice", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "perform", "(Ljava/util/concurrent/Callable;)Ljava/lang/Object;",
+                null, new String[] { "java/lang/Exception" });
+        mv.visitCode();
+        mv.visitFieldInsn(Opcodes.GETSTATIC, "nest/Outer", "secret", "Ljava/lang/String;");
+        mv.visitInsn(Opcodes.POP);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/concurrent/Callable", "call", "()Ljava/lang/Object;",
+                true);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    static final class WithStaticInitializer implements Advice {
+        static final Object LOCK = new Object();
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            synchronized (LOCK) {
+                return method.call();
+            }
+        }
+    }
+
+    static final class WithStaticField implements Advice {
+        static int calls;
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            calls++;
+            return method.call();
+        }
+    }
+
+    @MySpecializedAnnotation("one")
+    static int one() {
+        return 1;
+    }
+
+    @MySpecializedAnnotation("two")
+    int two() {
+        return 2;
+    }
+
+    @MySpecializedAnnotation("counted")
+    static String counted() {
+        return "counted";
+    }
+
+    @MySpecializedAnnotation(value = "mutable", mutable = true)
+    int mutable() {
+        return 3;
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.annotation.Annotation;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pt.ist.esw.advice.impl.MyReentrantAnnotation;
+import pt.ist.esw.advice.impl.MyTransactionalAnnotation;
+import pt.ist.esw.advice.impl.TracingAdviceFactory;
+import pt.ist.esw.advice.impl.TransactionalAdviceFactory;
+
+public class TestAnnotationMyTransactionalAnnotation {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int counter;
+
+    @Before
+    public void clear() {
+        TransactionalAdviceFactory.performed.clear();
+    }
+
+    @Test
+    public void testGuardsOfSeveralRuns() throws Exception {
+        String host = "reentrant/Host";
+        Map<String, Class<? extends Annotation>> advisedMethods =
+                new LinkedHashMap<String, Class<? extends Annotation>>();
+        advisedMethods.put("a", MyTransactionalAnnotation.class);
+        advisedMethods.put("b", MyReentrantAnnotation.class);
+        File dir = folder.getRoot();
+        GeneratedClasses.writeClass(dir, host, GeneratedClasses.generateHost(host, advisedMethods));
+
+        // Each run adds the guard of its own annotation
+        new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyTransactionalAnnotation.class, null, dir))
+                .process();
+        new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyReentrantAnnotation.class,
+                TracingAdviceFactory.class, dir)).process();
+
+        GeneratedClasses.ClassesLoader loader = GeneratedClasses.loadClasses(dir);
+        TracingAdviceFactory.trace.clear();
+        assertEquals(2, loader.call(host, "a", 1));
+        assertEquals(3, loader.call(host, "b", 1));
+        assertEquals(Arrays.asList(""), TransactionalAdviceFactory.performed);
+        assertEquals(Arrays.asList("MyReentrantAnnotation"), TracingAdviceFactory.trace);
+    }
+
+    @Test
+    public void testResults() throws Exception {
+        assertEquals(3, add(1, 2));
+        assertEquals(9L, outerLong(3L));
+        assertEquals(5.0, outerDouble(2.5), 0.0);
+        increment();
+        assertEquals(1, counter);
+        assertEquals("abc", concat("a", "b", "c"));
+    }
+
+    @Test
+    public void testNestedCallsSkipTheAdvice() throws Exception {
+        outerLong(1L);
+        assertEquals(Arrays.asList("outerLong"), TransactionalAdviceFactory.performed);
+
+        TransactionalAdviceFactory.performed.clear();
+        outerDouble(1.0);
+        assertEquals(Arrays.asList("outerDouble"), TransactionalAdviceFactory.performed);
+
+        TransactionalAdviceFactory.performed.clear();
+        add(1, 2);
+        assertEquals(Arrays.asList("add"), TransactionalAdviceFactory.performed);
+        assertFalse(ReentrancyGuard.forAnnotation(MyTransactionalAnnotation.class).isEntered());
+    }
+
+    @Test
+    public void testNonFlatteningMethodsDoNotEnterTheGuard() throws Exception {
+        nonFlattening();
+        assertEquals(Arrays.asList("nonFlattening", "add"), TransactionalAdviceFactory.performed);
+    }
+
+    @Test
+    public void testGuardIsExitedOnException() throws Exception {
+        try {
+            failing(true);
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertEquals("fail", e.getMessage());
+        }
+        assertFalse(ReentrancyGuard.forAnnotation(MyTransactionalAnnotation.class).isEntered());
+
+        // The next outer call is advised again
+        add(1, 2);
+        assertEquals(Arrays.asList("failing", "add"), TransactionalAdviceFactory.performed);
+    }
+
+    @Test
+    public void testOtherThreadsAreAdvised() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals("other", inOtherThread(executor));
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(Arrays.asList("inOtherThread", "concat"), TransactionalAdviceFactory.performed);
+    }
+
+    @MyTransactionalAnnotation("add")
+    public static int add(int a, int b) {
+        assertTrue(ReentrancyGuard.forAnnotation(MyTransactionalAnnotation.class).isEntered());
+        return a + b;
+    }
+
+    @MyTransactionalAnnotation("outerLong")
+    public long outerLong(long l) {
+        return innerLong(l) + add((int) l, (int) l) - l;
+    }
+
+    @MyTransactionalAnnotation("innerLong")
+    private long innerLong(long l) {
+        return l + l;
+    }
+
+    @MyTransactionalAnnotation("outerDouble")
+    public double outerDouble(double d) {
+        increment();
+        counter--;
+        return d + d;
+    }
+
+    @MyTransactionalAnnotation("increment")
+    public void increment() {
+        counter++;
+    }
+
+    @MyTransactionalAnnotation("concat")
+    public String concat(String a, String b, String c) {
+        return a + b + c;
+    }
+
+    @MyTransactionalAnnotation(value = "nonFlattening", flattenReentrant = false)
+    public int nonFlattening() {
+        assertFalse(ReentrancyGuard.forAnnotation(MyTransactionalAnnotation.class).isEntered());
+        return add(1, 2);
+    }
+
+    @MyTransactionalAnnotation("failing")
+    public int failing(boolean fail) {
+        if (fail) {
+            throw new IllegalStateException("fail");
+        }
+        return add(1, 2);
+    }
+
+    @MyTransactionalAnnotation("inOtherThread")
+    public String inOtherThread(ExecutorService executor) throws Exception {
+        return executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                // The other thread has not entered any advised method, so this call is advised
+                return concat("o", "th", "er");
+            }
+        }).get();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import pt.ist.esw.advice.impl.CountingSampledAdviceFactory;
+import pt.ist.esw.advice.impl.CountingSampledAdviceFactory.CountingAdvice;
+
+/**
+ * Methods in this class are advised with the stock {@link SamplingAdvice}.
+ */
+public class TestAnnotationSampled {
+
+    private static final int CALLS = 10000;
+
+    @Test
+    public void testEveryCallSampled() {
+        for (int i = 0; i < 10; i++) {
+            always();
+        }
+        assertEquals(10, getSampledAdvice("always", "()V").calls.get());
+    }
+
+    @Test
+    public void testNoCallSampled() {
+        for (int i = 0; i < 10; i++) {
+            never();
+        }
+        assertEquals(0, getSampledAdvice("never", "()V").calls.get());
+    }
+
+    @Test
+    public void testFractionSampled() {
+        for (int i = 0; i < CALLS; i++) {
+            oneInFour();
+        }
+        // The expected 2500 samples have a standard deviation of about 43
+        int sampled = getSampledAdvice("oneInFour", "()V").calls.get();
+        assertTrue("sampled " + sampled + " of " + CALLS, sampled > 2200 && sampled < 2800);
+    }
+
+    @Test
+    public void testRateChangedAtRuntime() {
+        adjustable();
+        SamplingAdvice advice = getAdvice("adjustable", "()V");
+        assertEquals(0, advice.getEvery());
+        assertEquals(0, getSampledAdvice("adjustable", "()V").calls.get());
+
+        advice.setEvery(1);
+        adjustable();
+        adjustable();
+        assertEquals(2, getSampledAdvice("adjustable", "()V").calls.get());
+
+        advice.setEvery(0);
+        adjustable();
+        assertEquals(2, getSampledAdvice("adjustable", "()V").calls.get());
+    }
+
+    @Test
+    public void testPrimitiveResult() {
+        assertEquals(42L, answer());
+        CountingAdvice sampled = getSampledAdvice("answer", "()J");
+        assertEquals(1, sampled.longCalls.get());
+        assertEquals(0, sampled.calls.get());
+    }
+
+    @Test
+    public void testMetricsByDefault() {
+        for (int i = 0; i < 5; i++) {
+            metered();
+        }
+        AdvisedMethod method = new AdvisedMethod(TestAnnotationSampled.class, "metered", "()V", Sampled.class);
+        assertEquals(5, MetricsAdviceFactory.getMetrics(method).getCallCount());
+    }
+
+    private static SamplingAdvice getAdvice(String name, String descriptor) {
+        return SamplingAdviceFactory.getAdvice(new AdvisedMethod(TestAnnotationSampled.class, name, descriptor,
+                Sampled.class));
+    }
+
+    private static CountingAdvice getSampledAdvice(String name, String descriptor) {
+        return (CountingAdvice) getAdvice(name, descriptor).getSampledAdvice();
+    }
+
+    @Sampled(every = 1, sampledAdviceFactory = CountingSampledAdviceFactory.class)
+    private static void always() {
+    }
+
+    @Sampled(every = 0, sampledAdviceFactory = CountingSampledAdviceFactory.class)
+    private static void never() {
+    }
+
+    @Sampled(every = 4, sampledAdviceFactory = CountingSampledAdviceFactory.class)
+    private static void oneInFour() {
+    }
+
+    @Sampled(every = 0, sampledAdviceFactory = CountingSampledAdviceFactory.class)
+    private static void adjustable() {
+    }
+
+    @Sampled(every = 1, sampledAdviceFactory = CountingSampledAdviceFactory.class)
+    private static long answer() {
+        return 42L;
+    }
+
+    @Sampled(every = 1)
+    private static void metered() {
+    }
+
+}
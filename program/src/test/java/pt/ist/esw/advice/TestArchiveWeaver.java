@@ -0,0 +1,280 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pt.ist.esw.advice.impl.MyAnnotationWithDefaults;
+import pt.ist.esw.advice.impl.MyAnnotationWithProvidedFactory;
+
+/**
+ * Weaves JAR archives of generated classes in place.
+ */
+public class TestArchiveWeaver {
+    private static final String HOST = "archive/Host";
+    private static final String OTHER = "archive/Other";
+    private static final String PLAIN = "archive/Plain";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUnwovenEntriesAreCopiedRaw() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("data.txt", "stored data".getBytes("UTF-8"));
+        entries.put(PLAIN + ".class", GeneratedClasses.generateHost(PLAIN, MyAnnotationWithDefaults.class));
+        entries.put(HOST + ".class", GeneratedClasses.generateHost(HOST, MyAnnotationWithDefaults.class, "inc"));
+        File jar = writeJar(entries);
+        Map<String, ZipEntry> before = readEntries(jar);
+
+        weave(jar);
+
+        Map<String, ZipEntry> after = readEntries(jar);
+        // The entries were written without compressing them, so recompressing them would make them smaller
+        for (String name : new String[] { "data.txt", PLAIN + ".class" }) {
+            assertEquals(name, before.get(name).getMethod(), after.get(name).getMethod());
+            assertEquals(name, before.get(name).getCompressedSize(), after.get(name).getCompressedSize());
+            assertEquals(name, before.get(name).getCrc(), after.get(name).getCrc());
+        }
+        assertEquals(ZipEntry.STORED, after.get("data.txt").getMethod());
+        // The woven host is written again, and compressed
+        assertTrue(after.get(HOST + ".class").getCompressedSize() < after.get(HOST + ".class").getSize());
+        assertArrayEquals(entries.get("data.txt"), readEntry(jar, "data.txt"));
+    }
+
+    @Test
+    public void testCallablesAreAddedForWovenHosts() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(HOST + ".class", GeneratedClasses.generateHost(HOST, MyAnnotationWithDefaults.class,
+                "inc", "twice"));
+        File jar = writeJar(entries);
+
+        weave(jar);
+
+        Map<String, ZipEntry> after = readEntries(jar);
+        assertEquals(3, after.size());
+        assertNotNull(after.get(HOST + "$callable$inc.class"));
+        assertNotNull(after.get(HOST + "$callable$twice.class"));
+        assertEquals(3, call(jar, HOST, "twice", 1));
+    }
+
+    @Test
+    public void testStaleCallablesAreDropped() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(HOST + ".class", GeneratedClasses.generateHost(HOST, MyAnnotationWithDefaults.class,
+                "inc", "twice"));
+        entries.put(OTHER + ".class", GeneratedClasses.generateHost(OTHER, MyAnnotationWithDefaults.class, "inc"));
+        File jar = writeJar(entries);
+        weave(jar);
+
+        // The host is rebuilt with dec instead of inc, along with the classes left by the previous run
+        Map<String, byte[]> rebuilt = new LinkedHashMap<String, byte[]>();
+        for (String name : readEntries(jar).keySet()) {
+            rebuilt.put(name, readEntry(jar, name));
+        }
+        rebuilt.put(HOST + ".class", GeneratedClasses.generateHost(HOST, MyAnnotationWithDefaults.class,
+                "dec", "twice"));
+        File rebuiltJar = writeJar(rebuilt);
+        weave(rebuiltJar);
+
+        Map<String, ZipEntry> after = readEntries(rebuiltJar);
+        assertNull(after.get(HOST + "$callable$inc.class"));
+        assertNotNull(after.get(HOST + "$callable$dec.class"));
+        assertNotNull(after.get(HOST + "$callable$twice.class"));
+        // The other class was not woven again, so its callable is kept
+        assertArrayEquals(rebuilt.get(OTHER + "$callable$inc.class"),
+                readEntry(rebuiltJar, OTHER + "$callable$inc.class"));
+        assertEquals(2, call(rebuiltJar, HOST, "dec", 1));
+        assertEquals(2, call(rebuiltJar, OTHER, "inc", 1));
+    }
+
+    @Test
+    public void testCallablesOfOtherRunsAreKept() throws Exception {
+        Map<String, Class<? extends Annotation>> advisedMethods =
+                new LinkedHashMap<String, Class<? extends Annotation>>();
+        advisedMethods.put("inc", MyAnnotationWithDefaults.class);
+        advisedMethods.put("other", MyAnnotationWithProvidedFactory.class);
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(HOST + ".class", GeneratedClasses.generateHost(HOST, advisedMethods));
+        File jar = writeJar(entries);
+
+        weave(jar);
+        new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyAnnotationWithProvidedFactory.class, null, jar))
+                .process();
+
+        Map<String, ZipEntry> after = readEntries(jar);
+        assertEquals(3, after.size());
+        assertNotNull(after.get(HOST + "$callable$inc.class"));
+        assertNotNull(after.get(HOST + "$callable$other.class"));
+        assertEquals(2, call(jar, HOST, "inc", 1));
+        assertEquals(3, call(jar, HOST, "other", 1));
+    }
+
+    @Test
+    public void testArchiveWithoutAdvisedClassesIsUntouched() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(PLAIN + ".class", GeneratedClasses.generateHost(PLAIN, MyAnnotationWithDefaults.class));
+        File jar = writeJar(entries);
+        byte[] before = Files.readAllBytes(jar.toPath());
+
+        assertFalse(newArchiveWeaver().weave(jar));
+        assertArrayEquals(before, Files.readAllBytes(jar.toPath()));
+        assertEquals(1, jar.getParentFile().list().length);
+    }
+
+    @Test
+    public void testZip64IsRejected() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(HOST + ".class", GeneratedClasses.generateHost(HOST, MyAnnotationWithDefaults.class, "inc"));
+        File jar = writeJar(entries);
+        // Mark the end of central directory record, which has no comment, as having its entry count in ZIP64 records
+        RandomAccessFile file = new RandomAccessFile(jar, "rw");
+        try {
+            file.seek(file.length() - 22 + 8);
+            file.write(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF });
+        } finally {
+            file.close();
+        }
+        byte[] before = Files.readAllBytes(jar.toPath());
+
+        try {
+            newArchiveWeaver().weave(jar);
+            fail("Expected ZIP64 archive to be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ZIP64"));
+        }
+        assertArrayEquals(before, Files.readAllBytes(jar.toPath()));
+        assertEquals(1, jar.getParentFile().list().length);
+    }
+
+    private static ArchiveWeaver newArchiveWeaver() {
+        return new ArchiveWeaver(new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(
+                MyAnnotationWithDefaults.class, null)));
+    }
+
+    private static void weave(File jar) {
+        new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyAnnotationWithDefaults.class, null, jar)).process();
+    }
+
+    /** Writes a JAR of its own directory, storing text entries and deflating the others without compressing them **/
+    private File writeJar(Map<String, byte[]> entries) throws IOException {
+        File jar = new File(folder.newFolder(), "test.jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            out.setLevel(Deflater.NO_COMPRESSION);
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                if (entry.getKey().endsWith(".txt")) {
+                    CRC32 crc = new CRC32();
+                    crc.update(entry.getValue());
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(entry.getValue().length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(zipEntry);
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    private static Map<String, ZipEntry> readEntries(File jar) throws IOException {
+        Map<String, ZipEntry> entries = new LinkedHashMap<String, ZipEntry>();
+        ZipFile zip = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                entries.put(entry.getName(), entry);
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    private static byte[] readEntry(File jar, String name) throws IOException {
+        ZipFile zip = new ZipFile(jar);
+        try {
+            InputStream in = zip.getInputStream(zip.getEntry(name));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            zip.close();
+        }
+    }
+
+    /** Calls a static method int name(int) of a class of the archive **/
+    private static int call(File jar, String className, String methodName, int argument) throws Exception {
+        URLClassLoader loader =
+                new URLClassLoader(new URL[] { jar.toURI().toURL() }, TestArchiveWeaver.class.getClassLoader());
+        try {
+            return (Integer) loader.loadClass(className.replace('/', '.')).getMethod(methodName, int.class)
+                    .invoke(null, argument);
+        } finally {
+            loader.close();
+        }
+    }
+
+}
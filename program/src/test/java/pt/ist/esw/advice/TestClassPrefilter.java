@@ -0,0 +1,114 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import pt.ist.esw.advice.impl.MyAnnotationWithDefaults;
+import pt.ist.esw.advice.impl.MyAnnotationWithProvidedFactory;
+import pt.ist.esw.advice.impl.MyOuterAnnotation;
+import pt.ist.esw.advice.impl.TracingAdviceFactory;
+
+/**
+ * Checks the scan of the constant pool that tells which classes may have advised methods, before they are parsed.
+ */
+public class TestClassPrefilter {
+    private static final String DESCRIPTOR = "Lpt/ist/esw/advice/impl/MyAnnotationWithDefaults;";
+
+    private final ProcessAnnotations processor =
+            new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyAnnotationWithDefaults.class, null));
+
+    @Test
+    public void testAnnotatedClassesAreKept() {
+        byte[] host = GeneratedClasses.generateHost("prefilter/Host", MyAnnotationWithDefaults.class, "inc");
+        assertTrue(processor.referencesAnnotation(host));
+        assertNotNull(processor.weaveClass(host, new HashMap<String, byte[]>()));
+
+        // Any of the annotations being woven is enough
+        ProcessAnnotations outerFirst =
+                new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyOuterAnnotation.class,
+                        TracingAdviceFactory.class).addAnnotation(MyAnnotationWithDefaults.class, null));
+        assertTrue(outerFirst.referencesAnnotation(host));
+    }
+
+    @Test
+    public void testUnrelatedClassesAreSkipped() {
+        assertFalse(processor.referencesAnnotation(GeneratedClasses.generateHost("prefilter/Plain",
+                MyAnnotationWithDefaults.class)));
+        assertFalse(processor.referencesAnnotation(GeneratedClasses.generateHost("prefilter/Other",
+                MyAnnotationWithProvidedFactory.class, "inc")));
+
+        // Constants that only start or end with the descriptor
+        String name = DESCRIPTOR.substring(0, DESCRIPTOR.length() - 1);
+        assertFalse(processor.referencesAnnotation(generateClass(name + "X;", "x" + DESCRIPTOR, name)));
+    }
+
+    @Test
+    public void testDescriptorAfterLongConstant() {
+        // Longs and doubles take two slots of the constant pool
+        byte[] bytecode = generateClass(Long.valueOf(1L), Double.valueOf(2.0), DESCRIPTOR);
+        assertTrue(processor.referencesAnnotation(bytecode));
+        // The descriptor is not used by any method, so there is nothing to weave
+        Map<String, byte[]> generatedClasses = new HashMap<String, byte[]>();
+        assertNull(processor.weaveClass(bytecode, generatedClasses));
+        assertTrue(generatedClasses.isEmpty());
+    }
+
+    @Test
+    public void testWovenClassesAreRecognized() {
+        byte[] host = GeneratedClasses.generateHost("prefilter/Host", MyAnnotationWithDefaults.class, "inc");
+        assertFalse(ProcessAnnotations.isWoven(host));
+        assertTrue(ProcessAnnotations.isWoven(processor.weaveClass(host, new HashMap<String, byte[]>())));
+    }
+
+    /** Generates an empty class whose constant pool has the given constants **/
+    private static byte[] generateClass(Object... constants) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "prefilter/Constants", null,
+                "java/lang/Object", null);
+        for (Object constant : constants) {
+            if (constant instanceof String) {
+                cw.newUTF8((String) constant);
+            } else {
+                cw.newConst(constant);
+            }
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pt.ist.esw.advice.impl.ClientAdviceFactory;
+import pt.ist.esw.advice.impl.MyAnnotationWithDefaults;
+import pt.ist.esw.advice.impl.MyAnnotationWithProvidedFactory;
+
+/**
+ * Weaves a tree of generated classes several times with the same weaving index (-i), as incremental builds do.
+ */
+public class TestIncrementalWeaving {
+    private static final String HOST = "incremental/Host";
+
+    /** Counts the classes it weaves **/
+    private static final class CountingProcessAnnotations extends ProcessAnnotations {
+        final AtomicInteger woven = new AtomicInteger();
+
+        CountingProcessAnnotations(ProgramArgs args) {
+            super(args);
+        }
+
+        @Override
+        protected byte[] weaveClass(byte[] bytecode, Map<String, byte[]> generatedClasses) {
+            woven.incrementAndGet();
+            return super.weaveClass(bytecode, generatedClasses);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private File indexFile;
+
+    @Before
+    public void generateTree() throws IOException {
+        dir = folder.newFolder("classes");
+        indexFile = new File(folder.getRoot(), "advice.idx");
+        GeneratedClasses.writeClass(dir, HOST, GeneratedClasses.generateHost(HOST, MyAnnotationWithDefaults.class, "inc", "twice"));
+        GeneratedClasses.writeClass(dir, "incremental/Plain",
+                GeneratedClasses.generateHost("incremental/Plain", MyAnnotationWithDefaults.class));
+    }
+
+    @Test
+    public void testUnchangedClassesAreSkipped() throws IOException {
+        assertEquals(2, weave(newArgs()));
+        Map<String, byte[]> files = GeneratedClasses.readFiles(dir);
+
+        assertEquals(0, weave(newArgs()));
+
+        // Touched, but with the same contents
+        File host = new File(dir, HOST + ".class");
+        assertTrue(host.setLastModified(host.lastModified() - 10000));
+        assertEquals(0, weave(newArgs()));
+
+        assertEquals(files.keySet(), GeneratedClasses.readFiles(dir).keySet());
+        assertArrayEquals(files.get(HOST + ".class"), GeneratedClasses.readFiles(dir).get(HOST + ".class"));
+    }
+
+    @Test
+    public void testChangedClassIsWovenAgain() throws Exception {
+        weave(newArgs());
+        assertTrue(new File(dir, HOST + "$callable$inc.class").exists());
+
+        // The method inc is replaced by dec, and its callable is no longer used
+        File host = GeneratedClasses.writeClass(dir, HOST,
+                GeneratedClasses.generateHost(HOST, MyAnnotationWithDefaults.class, "dec", "twice"));
+        assertTrue(host.setLastModified(host.lastModified() - 10000));
+        assertEquals(1, weave(newArgs()));
+
+        assertFalse(new File(dir, HOST + "$callable$inc.class").exists());
+        assertTrue(new File(dir, HOST + "$callable$dec.class").exists());
+        assertTrue(new File(dir, HOST + "$callable$twice.class").exists());
+        assertEquals(2, GeneratedClasses.loadClasses(dir).call(HOST, "dec", 1));
+    }
+
+    @Test
+    public void testDeletedClassLosesItsCallables() throws IOException {
+        weave(newArgs());
+        assertTrue(new File(dir, HOST + ".class").delete());
+        weave(newArgs());
+
+        assertEquals(1, GeneratedClasses.readFiles(dir).size());
+        assertTrue(new File(dir, "incremental/Plain.class").exists());
+    }
+
+    @Test
+    public void testConfigurationChangeKeepsCallables() throws Exception {
+        weave(newArgs());
+        Map<String, byte[]> files = GeneratedClasses.readFiles(dir);
+
+        // The classes cannot be woven again, as their annotations were removed, so they are kept as they are
+        weave(new ProcessAnnotations.ProgramArgs(MyAnnotationWithDefaults.class, ClientAdviceFactory.class, dir)
+                .setIndexFile(indexFile));
+        assertEquals(files.keySet(), GeneratedClasses.readFiles(dir).keySet());
+
+        // As with another annotation
+        weave(new ProcessAnnotations.ProgramArgs(MyAnnotationWithProvidedFactory.class, null, dir)
+                .setIndexFile(indexFile));
+        assertEquals(files.keySet(), GeneratedClasses.readFiles(dir).keySet());
+
+        // Back to the first configuration, whose entries were replaced
+        weave(newArgs());
+        assertEquals(files.keySet(), GeneratedClasses.readFiles(dir).keySet());
+        assertEquals(2, GeneratedClasses.loadClasses(dir).call(HOST, "inc", 1));
+    }
+
+    @Test
+    public void testWovenClassesAreRecorded() throws IOException {
+        // Woven without an index, and then found woven by a run with an index
+        new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyAnnotationWithDefaults.class, null, dir)).process();
+        Map<String, byte[]> files = GeneratedClasses.readFiles(dir);
+        assertEquals(2, weave(newArgs()));
+        assertEquals(0, weave(newArgs()));
+        assertEquals(files.keySet(), GeneratedClasses.readFiles(dir).keySet());
+    }
+
+    private ProcessAnnotations.ProgramArgs newArgs() {
+        return new ProcessAnnotations.ProgramArgs(MyAnnotationWithDefaults.class, null, dir).setIndexFile(indexFile);
+    }
+
+    /** Returns the number of classes that were woven **/
+    private static int weave(ProcessAnnotations.ProgramArgs args) {
+        CountingProcessAnnotations processor = new CountingProcessAnnotations(args);
+        processor.process();
+        return processor.woven.get();
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pt.ist.esw.advice.impl.MyAnnotationWithDefaults;
+
+/**
+ * Weaves trees of generated classes with several threads (-j).
+ */
+public class TestParallelWeaving {
+    private static final int PACKAGES = 4;
+    private static final int CLASSES = 25;
+
+    /** Records the class files it processes **/
+    private static final class RecordingProcessAnnotations extends ProcessAnnotations {
+        final Set<String> processed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        RecordingProcessAnnotations(ProgramArgs args) {
+            super(args);
+        }
+
+        @Override
+        protected void processClassFile(File classFile) {
+            processed.add(classFile.getPath());
+            super.processClassFile(classFile);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParallelOutputIsSameAsSequential() throws IOException {
+        File sequential = folder.newFolder("sequential");
+        File parallel = folder.newFolder("parallel");
+        generateTree(sequential);
+        generateTree(parallel);
+
+        weave(sequential, 1);
+        weave(parallel, 4);
+
+        Map<String, byte[]> sequentialFiles = GeneratedClasses.readFiles(sequential);
+        Map<String, byte[]> parallelFiles = GeneratedClasses.readFiles(parallel);
+        assertTrue(sequentialFiles.containsKey("p0/Host0$callable$inc.class"));
+        assertEquals(sequentialFiles.keySet(), parallelFiles.keySet());
+        for (Map.Entry<String, byte[]> file : sequentialFiles.entrySet()) {
+            assertArrayEquals(file.getKey(), file.getValue(), parallelFiles.get(file.getKey()));
+        }
+    }
+
+    @Test
+    public void testCallablesAreNotProcessed() throws Exception {
+        File dir = folder.newFolder();
+        generateTree(dir);
+        weave(dir, 4);
+        // Going back to the original hosts, as after recompiling them, leaves their callables from the previous run
+        generateTree(dir);
+
+        RecordingProcessAnnotations processor =
+                new RecordingProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyAnnotationWithDefaults.class,
+                        null, dir).setParallelism(4));
+        processor.process();
+
+        assertEquals(PACKAGES * (CLASSES + 1), processor.processed.size());
+        for (String name : processor.processed) {
+            assertFalse(name, name.contains("$callable$"));
+        }
+        GeneratedClasses.ClassesLoader loader = GeneratedClasses.loadClasses(dir);
+        assertEquals(2, loader.call("p3/Host24", "inc", 1));
+        assertEquals(3, loader.call("p3/Host24", "twice", 1));
+    }
+
+    /** Generates packages of hosts with two advised methods each, and a class without advised methods **/
+    private static void generateTree(File dir) throws IOException {
+        for (int p = 0; p < PACKAGES; p++) {
+            for (int c = 0; c < CLASSES; c++) {
+                String className = "p" + p + "/Host" + c;
+                GeneratedClasses.writeClass(dir, className,
+                        GeneratedClasses.generateHost(className, MyAnnotationWithDefaults.class, "inc", "twice"));
+            }
+            String className = "p" + p + "/Plain";
+            GeneratedClasses.writeClass(dir, className,
+                    GeneratedClasses.generateHost(className, MyAnnotationWithDefaults.class));
+        }
+    }
+
+    private static void weave(File dir, int parallelism) {
+        new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(MyAnnotationWithDefaults.class, null, dir)
+                .setParallelism(parallelism)).process();
+    }
+
+}
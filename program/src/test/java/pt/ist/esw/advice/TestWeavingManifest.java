@@ -0,0 +1,162 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pt.ist.esw.advice.impl.MyOuterAnnotation;
+import pt.ist.esw.advice.impl.TracingAdviceFactory;
+
+/**
+ * Weaves generated classes several times into the same advice manifest (-M), as incremental builds do.
+ */
+public class TestWeavingManifest {
+    private static final String HOST = "manifest/Host";
+    private static final String OTHER = "manifest/Other";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private File manifestFile;
+
+    @Before
+    public void generateTree() throws IOException {
+        dir = folder.newFolder("classes");
+        manifestFile = new File(folder.getRoot(), "advice.manifest");
+        GeneratedClasses.writeClass(dir, HOST, GeneratedClasses.generateHost(HOST, Memoize.class, "inc", "twice"));
+        GeneratedClasses.writeClass(dir, OTHER, GeneratedClasses.generateHost(OTHER, Memoize.class, "inc"));
+    }
+
+    @Test
+    public void testUnchangedClassesKeepTheirEntries() throws IOException {
+        weave(Memoize.class);
+        Set<String> methods = readMethods();
+        assertEquals(3, methods.size());
+
+        // The classes were already woven, so nothing is recorded again
+        weave(Memoize.class);
+        assertEquals(methods, readMethods());
+    }
+
+    @Test
+    public void testRenamedMethodLosesItsEntry() throws IOException {
+        weave(Memoize.class);
+        GeneratedClasses.writeClass(dir, HOST, GeneratedClasses.generateHost(HOST, Memoize.class, "dec", "twice"));
+        weave(Memoize.class);
+
+        assertEquals(methods(HOST + ".dec " + Memoize.class.getName(), HOST + ".twice " + Memoize.class.getName(),
+                OTHER + ".inc " + Memoize.class.getName()), readMethods());
+    }
+
+    @Test
+    public void testClassWithoutAdvisedMethodsLosesItsEntries() throws IOException {
+        weave(Memoize.class);
+        GeneratedClasses.writeClass(dir, HOST, GeneratedClasses.generateHost(HOST, Memoize.class));
+        weave(Memoize.class);
+
+        assertEquals(methods(OTHER + ".inc " + Memoize.class.getName()), readMethods());
+    }
+
+    @Test
+    public void testEntriesOfOtherRunsAreReplacedWhenRecompiled() throws IOException {
+        Map<String, Class<? extends Annotation>> advisedMethods =
+                new LinkedHashMap<String, Class<? extends Annotation>>();
+        advisedMethods.put("inc", Memoize.class);
+        advisedMethods.put("outer", MyOuterAnnotation.class);
+        GeneratedClasses.writeClass(dir, HOST, GeneratedClasses.generateHost(HOST, advisedMethods));
+        weave(Memoize.class);
+        weave(MyOuterAnnotation.class);
+        Set<String> methods = readMethods();
+        assertEquals(methods(HOST + ".inc " + Memoize.class.getName(),
+                HOST + ".outer " + MyOuterAnnotation.class.getName(), OTHER + ".inc " + Memoize.class.getName()),
+                methods);
+
+        // Both runs see classes woven by the other one
+        weave(Memoize.class);
+        weave(MyOuterAnnotation.class);
+        assertEquals(methods, readMethods());
+
+        // Once compiled again, the host loses the method of the second run before it is woven by it
+        advisedMethods.remove("outer");
+        advisedMethods.put("inner", MyOuterAnnotation.class);
+        GeneratedClasses.writeClass(dir, HOST, GeneratedClasses.generateHost(HOST, advisedMethods));
+        weave(Memoize.class);
+        assertEquals(methods(HOST + ".inc " + Memoize.class.getName(), OTHER + ".inc " + Memoize.class.getName()),
+                readMethods());
+        weave(MyOuterAnnotation.class);
+        assertEquals(methods(HOST + ".inc " + Memoize.class.getName(),
+                HOST + ".inner " + MyOuterAnnotation.class.getName(), OTHER + ".inc " + Memoize.class.getName()),
+                readMethods());
+    }
+
+    private void weave(Class<? extends Annotation> annotation) {
+        ProcessAnnotations.ProgramArgs args =
+                new ProcessAnnotations.ProgramArgs(annotation, annotation == Memoize.class ? null
+                        : TracingAdviceFactory.class, dir).setManifestFile(manifestFile);
+        new ProcessAnnotations(args).process();
+    }
+
+    /** Returns the advised methods listed in the manifest, as their class, name and annotation **/
+    private Set<String> readMethods() throws IOException {
+        Set<String> methods = new TreeSet<String>();
+        InputStream in = new FileInputStream(manifestFile);
+        try {
+            for (AdviceManifest.Entry entry : AdviceManifest.read(in).getEntries()) {
+                methods.add(entry.getClassName().replace('.', '/') + '.' + entry.getMethodName() + ' '
+                        + entry.getAnnotationName());
+            }
+        } finally {
+            in.close();
+        }
+        return methods;
+    }
+
+    private static Set<String> methods(String... methods) {
+        Set<String> set = new TreeSet<String>();
+        for (String method : methods) {
+            set.add(method);
+        }
+        return set;
+    }
+
+}
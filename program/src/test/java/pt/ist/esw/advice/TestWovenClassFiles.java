@@ -0,0 +1,196 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Checks the class files written by the weaver: the generated classes have the version of the classes they were
+ * generated for, and stack map frames where needed, and the methods that are not advised are copied as they are.
+ */
+public class TestWovenClassFiles {
+
+    /** Counts the stack map frames of a method **/
+    private static final class FrameCounter extends ClassVisitor {
+        private final String methodName;
+        int frames;
+
+        FrameCounter(String methodName) {
+            super(Opcodes.ASM9);
+            this.methodName = methodName;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            if (!name.equals(methodName)) {
+                return null;
+            }
+            return new MethodVisitor(Opcodes.ASM9) {
+                @Override
+                public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+                    frames++;
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testCallableHasHostVersionAndFrames() throws IOException {
+        String callable = getCallableClassName(TestAnnotationMemoize.class, "square");
+        ClassReader cr = read(callable);
+        assertEquals(getVersion(read(TestAnnotationMemoize.class.getName())), cr.readUnsignedShort(6));
+
+        FrameCounter counter = new FrameCounter("equals");
+        cr.accept(counter, 0);
+        assertTrue(counter.frames > 0);
+    }
+
+    @Test
+    public void testAnnotationInstanceHasAnnotationVersionAndFrames() throws IOException {
+        String instance = GenerateAnnotationInstance.getAnnotationInstanceName(Memoize.class).replace('/', '.');
+        ClassReader cr = read(instance);
+        assertEquals(getVersion(read(Memoize.class.getName())), cr.readUnsignedShort(6));
+
+        FrameCounter counter = new FrameCounter("equals");
+        cr.accept(counter, 0);
+        assertTrue(counter.frames > 0);
+    }
+
+    @Test
+    public void testCommonSuperClass() {
+        ClassHierarchy hierarchy = new ClassHierarchy(getClass().getClassLoader());
+        assertEquals("java/lang/Number", hierarchy.getCommonSuperClass("java/lang/Integer", "java/lang/Long"));
+        assertEquals("java/util/AbstractList",
+                hierarchy.getCommonSuperClass("java/util/ArrayList", "java/util/Vector"));
+        assertEquals("java/lang/Object", hierarchy.getCommonSuperClass("java/lang/Integer", "java/lang/Runnable"));
+        assertEquals("java/lang/String", hierarchy.getCommonSuperClass("java/lang/String", "java/lang/String"));
+
+        hierarchy.define("pt/ist/esw/advice/Generated", "java/lang/Number", false);
+        assertEquals("java/lang/Number",
+                hierarchy.getCommonSuperClass("pt/ist/esw/advice/Generated", "java/lang/Integer"));
+    }
+
+    @Test
+    public void testUnadvisedMethodsAndConstantPoolAreCopied() {
+        byte[] original = generateHost();
+        Map<String, byte[]> generatedClasses = new HashMap<String, byte[]>();
+        byte[] woven =
+                new ProcessAnnotations(new ProcessAnnotations.ProgramArgs(Memoize.class, null)).weaveClass(original,
+                        generatedClasses);
+        assertNotNull(woven);
+        assertEquals(1, generatedClasses.size());
+
+        // The original constant pool is kept as it is, with the new constants added after it
+        ClassReader originalReader = new ClassReader(original);
+        ClassReader wovenReader = new ClassReader(woven);
+        assertTrue(wovenReader.getItemCount() > originalReader.getItemCount());
+        assertArrayEquals(Arrays.copyOfRange(original, 10, originalReader.header),
+                Arrays.copyOfRange(woven, 10, originalReader.header));
+
+        // The method that is not advised keeps its frames
+        FrameCounter originalCounter = new FrameCounter("plain");
+        originalReader.accept(originalCounter, 0);
+        FrameCounter wovenCounter = new FrameCounter("plain");
+        wovenReader.accept(wovenCounter, 0);
+        assertTrue(originalCounter.frames > 0);
+        assertEquals(originalCounter.frames, wovenCounter.frames);
+    }
+
+    /** Generates a class with a method advised with Memoize, and another one that is not advised and has branches **/
+    private static byte[] generateHost() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "pt/ist/esw/advice/GeneratedHost", null,
+                "java/lang/Object", null);
+        MethodVisitor mv =
+                cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "plain", "(I)Ljava/lang/String;", null, null);
+        mv.visitCode();
+        Label negative = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IFLT, negative);
+        mv.visitLdcInsn("positive");
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitLabel(negative);
+        mv.visitLdcInsn("negative");
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "advised", "(I)I", null, null);
+        mv.visitAnnotation(Type.getDescriptor(Memoize.class), false).visitEnd();
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static String getCallableClassName(Class<?> host, String methodName) throws IOException {
+        for (AdviceManifest.Entry entry : AdviceManifest.load(TestWovenClassFiles.class.getClassLoader())
+                .getEntries()) {
+            if (entry.getClassName().equals(host.getName()) && entry.getMethodName().equals(methodName)) {
+                return entry.getCallableClassName();
+            }
+        }
+        throw new AssertionError("No manifest entry for " + host.getName() + "." + methodName);
+    }
+
+    private static int getVersion(ClassReader cr) {
+        return cr.readUnsignedShort(6);
+    }
+
+    private static ClassReader read(String className) throws IOException {
+        InputStream is = TestWovenClassFiles.class.getClassLoader().getResourceAsStream(
+                className.replace('.', '/') + ".class");
+        assertNotNull(className, is);
+        try {
+            return new ClassReader(is);
+        } finally {
+            is.close();
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.impl;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+import pt.ist.esw.advice.AsyncAdvice;
+
+public final class AsyncAdviceFactory extends AdviceFactory<MyAsyncAnnotation> {
+
+    /** What the advice saw, in order **/
+    public static final List<String> events = new CopyOnWriteArrayList<String>();
+
+    public static class RecordingAdvice implements AsyncAdvice {
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            events.add("perform");
+            return method.call();
+        }
+
+        @Override
+        public <V> CompletionStage<V> performAsync(Callable<? extends CompletionStage<V>> method) throws Exception {
+            events.add("start");
+            CompletionStage<V> stage = method.call();
+            events.add("started");
+            stage.whenComplete((result, failure) -> events.add(failure == null ? "completed " + result : "failed "
+                    + failure.getMessage()));
+            return stage;
+        }
+    }
+
+    private AsyncAdviceFactory() {
+    }
+
+    private final static AsyncAdviceFactory instance = new AsyncAdviceFactory();
+
+    public static AdviceFactory<MyAsyncAnnotation> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Advice newAdvice(MyAsyncAnnotation annotation) {
+        return new RecordingAdvice();
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.impl;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+import pt.ist.esw.advice.CanonicalAdviceFactory;
+
+public final class CanonicalCountingAdviceFactory extends CanonicalAdviceFactory<MyCanonicalAnnotation> {
+
+    /** The annotations for which advices were created **/
+    public static final List<MyCanonicalAnnotation> created = new CopyOnWriteArrayList<MyCanonicalAnnotation>();
+
+    /** The annotation of the advice that performed the last call **/
+    public static volatile MyCanonicalAnnotation lastPerformed;
+
+    public static class RecordingAdvice implements Advice {
+        private final MyCanonicalAnnotation annotation;
+
+        RecordingAdvice(MyCanonicalAnnotation annotation) {
+            this.annotation = annotation;
+        }
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            lastPerformed = annotation;
+            return method.call();
+        }
+    }
+
+    private CanonicalCountingAdviceFactory() {
+    }
+
+    private final static CanonicalCountingAdviceFactory instance = new CanonicalCountingAdviceFactory();
+
+    public static AdviceFactory<?> getInstance() {
+        return instance;
+    }
+
+    @Override
+    protected Advice createAdvice(MyCanonicalAnnotation annotation) {
+        created.add(annotation);
+        return new RecordingAdvice(annotation);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.impl;
+
+import java.lang.annotation.Annotation;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+import pt.ist.esw.advice.LongAdvice;
+import pt.ist.esw.advice.LongCallable;
+
+/** Sampled factory whose advices count the calls handed to them **/
+public final class CountingSampledAdviceFactory extends AdviceFactory<Annotation> {
+
+    public static class CountingAdvice implements LongAdvice {
+        public final AtomicInteger calls = new AtomicInteger();
+        public final AtomicInteger longCalls = new AtomicInteger();
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            calls.incrementAndGet();
+            return method.call();
+        }
+
+        @Override
+        public long performLong(LongCallable method) throws Exception {
+            longCalls.incrementAndGet();
+            return method.callLong();
+        }
+    }
+
+    private CountingSampledAdviceFactory() {
+    }
+
+    private final static CountingSampledAdviceFactory instance = new CountingSampledAdviceFactory();
+
+    public static AdviceFactory<?> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Advice newAdvice(Annotation annotation) {
+        return new CountingAdvice();
+    }
+}
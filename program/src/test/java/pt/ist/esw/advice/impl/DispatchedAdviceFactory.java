@@ -0,0 +1,88 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.impl;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+import pt.ist.esw.advice.DoubleAdvice;
+import pt.ist.esw.advice.DoubleCallable;
+import pt.ist.esw.advice.IntAdvice;
+import pt.ist.esw.advice.IntCallable;
+import pt.ist.esw.advice.LongAdvice;
+import pt.ist.esw.advice.LongCallable;
+
+public final class DispatchedAdviceFactory extends AdviceFactory<MyDispatchedAnnotation> {
+
+    /** The callables handed to the advices, in order **/
+    public static final List<Callable<?>> performed = new CopyOnWriteArrayList<Callable<?>>();
+
+    public static class RecordingAdvice implements IntAdvice, LongAdvice, DoubleAdvice {
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            performed.add(method);
+            return method.call();
+        }
+
+        @Override
+        public int performInt(IntCallable method) throws Exception {
+            performed.add(method);
+            return method.callInt();
+        }
+
+        @Override
+        public long performLong(LongCallable method) throws Exception {
+            performed.add(method);
+            return method.callLong();
+        }
+
+        @Override
+        public double performDouble(DoubleCallable method) throws Exception {
+            performed.add(method);
+            return method.callDouble();
+        }
+    }
+
+    private DispatchedAdviceFactory() {
+    }
+
+    private final static DispatchedAdviceFactory instance = new DispatchedAdviceFactory();
+
+    public static AdviceFactory<MyDispatchedAnnotation> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Advice newAdvice(MyDispatchedAnnotation annotation) {
+        return new RecordingAdvice();
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+
+public final class EscapingAdviceFactory extends AdviceFactory<MyReusableAnnotation> {
+
+    /** Runs the method once, keeping the callables it was given so that they can be called again **/
+    public static class KeepingAdvice implements Advice {
+        public static final List<Callable<?>> callables = new ArrayList<Callable<?>>();
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            callables.add(method);
+            return method.call();
+        }
+    }
+
+    private EscapingAdviceFactory() {
+    }
+
+    private final static EscapingAdviceFactory instance = new EscapingAdviceFactory();
+
+    public static AdviceFactory<MyReusableAnnotation> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Advice newAdvice(MyReusableAnnotation annotation) {
+        return new KeepingAdvice();
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.impl;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+
+public final class LazyAdviceFactory extends AdviceFactory<MyLazyAnnotation> {
+
+    /** The values of the annotations for which an advice was created, in order **/
+    public static final List<String> created = new CopyOnWriteArrayList<String>();
+
+    public static class RunOnceAdvice implements Advice {
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            return method.call();
+        }
+    }
+
+    private LazyAdviceFactory() {
+    }
+
+    private final static LazyAdviceFactory instance = new LazyAdviceFactory();
+
+    public static AdviceFactory<MyLazyAnnotation> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Advice newAdvice(MyLazyAnnotation annotation) {
+        created.add(annotation.value());
+        try {
+            // Give concurrent first calls a chance to race
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new RunOnceAdvice();
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.impl;
+
+import java.util.concurrent.Callable;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+import pt.ist.esw.advice.LongAdvice;
+import pt.ist.esw.advice.LongCallable;
+import pt.ist.esw.advice.NonEscapingAdvice;
+
+public final class NonEscapingAdviceFactory extends AdviceFactory<MyReusableAnnotation> {
+
+    /** Runs the method once, remembering the identity of the last callable it was given **/
+    public static class IdentityRecordingAdvice implements NonEscapingAdvice, LongAdvice {
+        public static int lastCallable;
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            lastCallable = System.identityHashCode(method);
+            return method.call();
+        }
+
+        @Override
+        public long performLong(LongCallable method) throws Exception {
+            lastCallable = System.identityHashCode(method);
+            return method.callLong();
+        }
+    }
+
+    private NonEscapingAdviceFactory() {
+    }
+
+    private final static NonEscapingAdviceFactory instance = new NonEscapingAdviceFactory();
+
+    public static AdviceFactory<MyReusableAnnotation> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Advice newAdvice(MyReusableAnnotation annotation) {
+        return new IdentityRecordingAdvice();
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.impl;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+import pt.ist.esw.advice.IntAdvice;
+import pt.ist.esw.advice.IntCallable;
+
+public final class SpecializableAdviceFactory extends AdviceFactory<MySpecializedAnnotation> {
+
+    /** The number of calls made through the advice of each annotation value **/
+    public static final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+    /** The class of the advice that last performed a call, for each annotation value **/
+    public static final Map<String, Class<?>> performedBy = new ConcurrentHashMap<String, Class<?>>();
+
+    /** Advice with only final fields, which can be specialized **/
+    public static final class CountingAdvice implements IntAdvice {
+        public final String name;
+        public final AtomicInteger count;
+
+        public CountingAdvice(String name, AtomicInteger count) {
+            this.name = name;
+            this.count = count;
+        }
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            performedBy.put(name, getClass());
+            count.incrementAndGet();
+            return method.call();
+        }
+
+        @Override
+        public int performInt(IntCallable method) throws Exception {
+            performedBy.put(name, getClass());
+            count.incrementAndGet();
+            return method.callInt();
+        }
+    }
+
+    /** Advice with a non-final field, which cannot be specialized **/
+    public static final class MutableAdvice implements Advice {
+        public final String name;
+        public int count;
+
+        public MutableAdvice(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            performedBy.put(name, getClass());
+            count++;
+            return method.call();
+        }
+    }
+
+    private SpecializableAdviceFactory() {
+    }
+
+    private final static SpecializableAdviceFactory instance = new SpecializableAdviceFactory();
+
+    public static AdviceFactory<MySpecializedAnnotation> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Advice newAdvice(MySpecializedAnnotation annotation) {
+        if (annotation.mutable()) {
+            return new MutableAdvice(annotation.value());
+        }
+        AtomicInteger count = new AtomicInteger();
+        calls.put(annotation.value(), count);
+        return new CountingAdvice(annotation.value(), count);
+    }
+
+}
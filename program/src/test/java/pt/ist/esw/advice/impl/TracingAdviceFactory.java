@@ -0,0 +1,70 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice.impl;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import pt.ist.esw.advice.Advice;
+import pt.ist.esw.advice.AdviceFactory;
+
+/** Factory for any annotation, whose advices record the annotations they run for **/
+public final class TracingAdviceFactory extends AdviceFactory<Annotation> {
+
+    public static final List<String> trace = new ArrayList<String>();
+
+    public static class TracingAdvice implements Advice {
+        private final String name;
+
+        TracingAdvice(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public <V> V perform(Callable<V> method) throws Exception {
+            trace.add(name);
+            return method.call();
+        }
+    }
+
+    private TracingAdviceFactory() {
+    }
+
+    private final static TracingAdviceFactory instance = new TracingAdviceFactory();
+
+    public static AdviceFactory<Annotation> getInstance() {
+        return instance;
+    }
+
+    @Override
+    public Advice newAdvice(Annotation annotation) {
+        return new TracingAdvice(annotation.annotationType().getSimpleName());
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Bootstrap for the invokedynamic call sites emitted by the dynamic option (-d).
+ *
+ * Instead of reading the advice from a static field initialized in the static initializer of the class, each advised
+ * method invokes a call site that is linked on its first call: the advice is obtained then, and bound into the call
+ * site's target as a constant, along with the constructor of the method's callable. As the call site never changes,
+ * the JIT treats the advice as a constant and can inline its perform method.
+ **/
+public final class AdviceBootstrap {
+    private static final MethodHandle PERFORM;
+    private static final MethodHandle PERFORM_INT;
+    private static final MethodHandle PERFORM_LONG;
+    private static final MethodHandle PERFORM_DOUBLE;
+    private static final MethodHandle PERFORM_ASYNC;
+    private static final MethodHandle PERFORM_ASYNC_FUTURE;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            PERFORM =
+                    lookup.findVirtual(Advice.class, "perform", MethodType.methodType(Object.class, Callable.class));
+            PERFORM_INT =
+                    lookup.findVirtual(IntAdvice.class, "performInt", MethodType.methodType(int.class, IntCallable.class));
+            PERFORM_LONG =
+                    lookup.findVirtual(LongAdvice.class, "performLong",
+                            MethodType.methodType(long.class, LongCallable.class));
+            PERFORM_DOUBLE =
+                    lookup.findVirtual(DoubleAdvice.class, "performDouble",
+                            MethodType.methodType(double.class, DoubleCallable.class));
+            PERFORM_ASYNC =
+                    lookup.findStatic(AsyncAdvices.class, "performAsync",
+                            MethodType.methodType(CompletionStage.class, Advice.class, Callable.class));
+            PERFORM_ASYNC_FUTURE =
+                    lookup.findStatic(AsyncAdvices.class, "performAsyncFuture",
+                            MethodType.methodType(CompletableFuture.class, Advice.class, Callable.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private AdviceBootstrap() {
+    }
+
+    /**
+     * Links the call site of an advised method.
+     *
+     * @param type The type of the advised method, with the instance as first argument for instance methods
+     * @param adviceInit Handle to the static method of the advised class that creates its advice
+     * @param callableConstructor Handle to the constructor of the callable for the advised method, taking the same
+     *            arguments as the call site
+     **/
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type,
+            MethodHandle adviceInit, MethodHandle callableConstructor) throws Throwable {
+        Advice advice = (Advice) adviceInit.invoke();
+        return new ConstantCallSite(getTarget(advice, callableConstructor, type));
+    }
+
+    /**
+     * Returns a handle that creates the callable from the arguments, and passes it to the given advice.
+     * The specialized perform methods are used when the advice supports them, as for {@link PrimitiveAdvices} and
+     * {@link AsyncAdvices}.
+     **/
+    static MethodHandle getTarget(Advice advice, MethodHandle callableConstructor, MethodType type) {
+        MethodHandle perform = getPerform(advice, type.returnType()).bindTo(advice);
+        perform = perform.asType(perform.type().changeParameterType(0, callableConstructor.type().returnType()));
+        return MethodHandles.filterReturnValue(callableConstructor, perform).asType(type);
+    }
+
+    private static MethodHandle getPerform(Advice advice, Class<?> returnType) {
+        if (returnType == int.class && advice instanceof IntAdvice) {
+            return PERFORM_INT;
+        } else if (returnType == long.class && advice instanceof LongAdvice) {
+            return PERFORM_LONG;
+        } else if (returnType == double.class && advice instanceof DoubleAdvice) {
+            return PERFORM_DOUBLE;
+        } else if (returnType == CompletionStage.class && advice instanceof AsyncAdvice) {
+            return PERFORM_ASYNC;
+        } else if (returnType == CompletableFuture.class && advice instanceof AsyncAdvice) {
+            return PERFORM_ASYNC_FUTURE;
+        }
+        return PERFORM;
+    }
+
+}
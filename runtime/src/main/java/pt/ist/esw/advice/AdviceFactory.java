@@ -48,4 +48,12 @@ public abstract class AdviceFactory<T extends Annotation> {
     /** AdviceFactories must override this method **/
     public abstract Advice newAdvice(T annotation);
 
+    /**
+     * Woven classes obtain their advices through this method, which also identifies the advised method, e.g., to name
+     * the metrics collected for it. By default it ignores the method and calls {@link #newAdvice(Annotation)}.
+     **/
+    public Advice newAdvice(T annotation, AdvisedMethod method) {
+        return newAdvice(annotation);
+    }
+
 }
@@ -0,0 +1,377 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The advised methods recorded by ProcessAnnotations (with the <code>-M</code> option) as it weaves them, along with
+ * their annotation values and the factory of their advices.
+ *
+ * The manifest lets an application find its advised methods without scanning the classpath, and
+ * {@link #warmUp(ClassLoader, Executor) warm them up} in the background at boot: the factories and the advised
+ * classes are initialized, which creates their advices, and the callable classes are loaded, so that the first calls
+ * do not pay for any of it. Methods woven with invokedynamic (<code>-d</code> or <code>-m</code>) still link their
+ * call sites, and thus create their advices, on their first call; warming them up loads their classes and factories.
+ *
+ * Manifests are kept in the compact binary format written by {@link #write(OutputStream)}: every string is stored once,
+ * in a table, and referenced from the entries by its position.
+ **/
+public final class AdviceManifest {
+    /** Where {@link #load(ClassLoader)} looks for manifests, relative to the roots of the classpath **/
+    public static final String RESOURCE = "META-INF/advice/manifest.bin";
+
+    private static final int MAGIC = 0xAD1CE3A7;
+    private static final int VERSION = 1;
+
+    /**
+     * An advised method. Annotation elements of type Class or enum are given by the name of the class or of the enum
+     * constant, so that the manifest can be read without loading them.
+     **/
+    public static final class Entry {
+        private final String className;
+        private final String methodName;
+        private final String descriptor;
+        private final String annotationName;
+        private final String factoryName;
+        private final String callableClassName;
+        private final Map<String, Object> annotationValues;
+
+        public Entry(String className, String methodName, String descriptor, String annotationName,
+                String factoryName, String callableClassName, Map<String, Object> annotationValues) {
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.annotationName = annotationName;
+            this.factoryName = factoryName;
+            this.callableClassName = callableClassName;
+            this.annotationValues = Collections.unmodifiableMap(new TreeMap<String, Object>(annotationValues));
+        }
+
+        /** The binary name of the class that declares the method **/
+        public String getClassName() {
+            return className;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        public String getDescriptor() {
+            return descriptor;
+        }
+
+        public String getAnnotationName() {
+            return annotationName;
+        }
+
+        public String getFactoryName() {
+            return factoryName;
+        }
+
+        /** The binary name of the callable class generated for the method **/
+        public String getCallableClassName() {
+            return callableClassName;
+        }
+
+        /** The values of the annotation elements, including the defaults, sorted by element name **/
+        public Map<String, Object> getAnnotationValues() {
+            return annotationValues;
+        }
+
+        /** Identifies the entry, a method being advised at most once with each annotation **/
+        public String getKey() {
+            return className + '.' + methodName + descriptor + ' ' + annotationName;
+        }
+
+        @Override
+        public String toString() {
+            return "@" + annotationName + annotationValues + " " + className + "." + methodName + descriptor + " ("
+                    + factoryName + ")";
+        }
+    }
+
+    private final List<Entry> entries;
+
+    public AdviceManifest(Collection<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Reads and merges all the manifests found by the given class loader, one for each classpath root that has one.
+     **/
+    public static AdviceManifest load(ClassLoader loader) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        Enumeration<URL> resources = loader.getResources(RESOURCE);
+        while (resources.hasMoreElements()) {
+            InputStream in = resources.nextElement().openStream();
+            try {
+                for (Entry entry : read(in).getEntries()) {
+                    entries.put(entry.getKey(), entry);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return new AdviceManifest(entries.values());
+    }
+
+    /** Reads a manifest written by {@link #write(OutputStream)}. Does not close the stream. **/
+    public static AdviceManifest read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an advice manifest");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported advice manifest version " + version);
+        }
+
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            String className = strings[in.readInt()];
+            String methodName = strings[in.readInt()];
+            String descriptor = strings[in.readInt()];
+            String annotationName = strings[in.readInt()];
+            String factoryName = strings[in.readInt()];
+            String callableClassName = strings[in.readInt()];
+            int valueCount = in.readUnsignedShort();
+            Map<String, Object> values = new HashMap<String, Object>();
+            for (int j = 0; j < valueCount; j++) {
+                String name = strings[in.readInt()];
+                values.put(name, readValue(in, strings));
+            }
+            entries.add(new Entry(className, methodName, descriptor, annotationName, factoryName, callableClassName,
+                    values));
+        }
+        return new AdviceManifest(entries);
+    }
+
+    private static Object readValue(DataInputStream in, String[] strings) throws IOException {
+        char tag = (char) in.readUnsignedByte();
+        switch (tag) {
+        case 'Z':
+            return in.readBoolean();
+        case 'B':
+            return in.readByte();
+        case 'C':
+            return in.readChar();
+        case 'S':
+            return in.readShort();
+        case 'I':
+            return in.readInt();
+        case 'J':
+            return in.readLong();
+        case 'F':
+            return in.readFloat();
+        case 'D':
+            return in.readDouble();
+        case 's':
+            return strings[in.readInt()];
+        default:
+            throw new IOException("Unknown annotation value tag '" + tag + "' in advice manifest");
+        }
+    }
+
+    /**
+     * Writes the manifest, with its entries sorted, so that the same advised methods always produce the same manifest.
+     * Does not close the stream.
+     **/
+    public void write(OutputStream stream) throws IOException {
+        Map<String, Entry> sortedEntries = new TreeMap<String, Entry>();
+        for (Entry entry : entries) {
+            sortedEntries.put(entry.getKey(), entry);
+        }
+
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        for (Entry entry : sortedEntries.values()) {
+            intern(strings, entry.className);
+            intern(strings, entry.methodName);
+            intern(strings, entry.descriptor);
+            intern(strings, entry.annotationName);
+            intern(strings, entry.factoryName);
+            intern(strings, entry.callableClassName);
+            for (Map.Entry<String, Object> value : entry.annotationValues.entrySet()) {
+                intern(strings, value.getKey());
+                if (!isPrimitiveValue(value.getValue())) {
+                    intern(strings, value.getValue().toString());
+                }
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(strings.size());
+        for (String s : strings.keySet()) {
+            out.writeUTF(s);
+        }
+        out.writeInt(sortedEntries.size());
+        for (Entry entry : sortedEntries.values()) {
+            out.writeInt(strings.get(entry.className));
+            out.writeInt(strings.get(entry.methodName));
+            out.writeInt(strings.get(entry.descriptor));
+            out.writeInt(strings.get(entry.annotationName));
+            out.writeInt(strings.get(entry.factoryName));
+            out.writeInt(strings.get(entry.callableClassName));
+            out.writeShort(entry.annotationValues.size());
+            for (Map.Entry<String, Object> value : entry.annotationValues.entrySet()) {
+                out.writeInt(strings.get(value.getKey()));
+                writeValue(out, value.getValue(), strings);
+            }
+        }
+        out.flush();
+    }
+
+    private static void intern(Map<String, Integer> strings, String s) {
+        if (!strings.containsKey(s)) {
+            strings.put(s, strings.size());
+        }
+    }
+
+    private static boolean isPrimitiveValue(Object value) {
+        return value instanceof Boolean || value instanceof Byte || value instanceof Character
+                || value instanceof Short || value instanceof Integer || value instanceof Long || value instanceof Float
+                || value instanceof Double;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value, Map<String, Integer> strings)
+            throws IOException {
+        if (value instanceof Boolean) {
+            out.writeByte('Z');
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Byte) {
+            out.writeByte('B');
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte('C');
+            out.writeChar((Character) value);
+        } else if (value instanceof Short) {
+            out.writeByte('S');
+            out.writeShort((Short) value);
+        } else if (value instanceof Integer) {
+            out.writeByte('I');
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte('J');
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte('F');
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte('D');
+            out.writeDouble((Double) value);
+        } else {
+            out.writeByte('s');
+            out.writeInt(strings.get(value.toString()));
+        }
+    }
+
+    /** Warms up the advised methods of the manifests found by the class loader, in the common fork-join pool **/
+    public static CompletableFuture<Void> warmUp(ClassLoader loader) {
+        try {
+            return load(loader).warmUp(loader, ForkJoinPool.commonPool());
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<Void>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Initializes the factories and the advised classes, and loads the callable classes, of all the entries, with one
+     * task per advised class. Classes that are missing or fail to initialize are reported and skipped: warming up
+     * never fails, it only leaves the work to the first call.
+     *
+     * @return A future that completes when all classes were processed
+     **/
+    public CompletableFuture<Void> warmUp(final ClassLoader loader, Executor executor) {
+        Map<String, List<Entry>> entriesByClass = new LinkedHashMap<String, List<Entry>>();
+        for (Entry entry : entries) {
+            List<Entry> classEntries = entriesByClass.get(entry.className);
+            if (classEntries == null) {
+                classEntries = new ArrayList<Entry>();
+                entriesByClass.put(entry.className, classEntries);
+            }
+            classEntries.add(entry);
+        }
+
+        List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+        for (final Map.Entry<String, List<Entry>> classEntries : entriesByClass.entrySet()) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                for (Entry entry : classEntries.getValue()) {
+                    initialize(entry.factoryName, loader);
+                }
+                initialize(classEntries.getKey(), loader);
+                for (Entry entry : classEntries.getValue()) {
+                    initialize(entry.callableClassName, loader);
+                }
+            }, executor));
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()]));
+    }
+
+    private static void initialize(String className, ClassLoader loader) {
+        try {
+            Class.forName(className, true, loader);
+        } catch (ClassNotFoundException e) {
+            System.err.println("WARNING: Class " + className + " not found during warm-up");
+        } catch (LinkageError e) {
+            System.err.println("WARNING: Couldn't initialize " + className + " during warm-up: " + e);
+        }
+    }
+
+}
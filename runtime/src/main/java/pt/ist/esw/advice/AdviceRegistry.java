@@ -0,0 +1,273 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the methods woven with the managed option (-m), which allows their advice to be replaced or disabled at
+ * runtime.
+ *
+ * Like with the dynamic option (-d), each advised method invokes an invokedynamic call site, linked on its first call,
+ * but the call site is a {@link MutableCallSite} kept by this registry. Changing the advice of a method relinks its call
+ * site to the new advice. Disabling the advice of a method relinks its call site straight to the original (advised$)
+ * method, so that calling it creates no callable and goes through no advice at all. In both cases the JIT keeps
+ * treating the target as a constant, and recompiles the callers when it changes.
+ *
+ * Settings can be made for a single method, or for all methods advised with an annotation, including those that are
+ * not linked yet. The settings made for a method take precedence over those made for its annotation.
+ **/
+public final class AdviceRegistry {
+
+    private static final class Entry {
+        final AdvisedMethod method;
+        final MutableCallSite callSite;
+        final Advice factoryAdvice;
+        final MethodHandle callableConstructor;
+        final MethodHandle advisedMethod;
+
+        Entry(AdvisedMethod method, MethodType type, Advice factoryAdvice, MethodHandle callableConstructor,
+                MethodHandle advisedMethod) {
+            this.method = method;
+            this.callSite = new MutableCallSite(type);
+            this.factoryAdvice = factoryAdvice;
+            this.callableConstructor = callableConstructor;
+            this.advisedMethod = advisedMethod.asType(type);
+        }
+    }
+
+    private static final ConcurrentMap<AdvisedMethod, Entry> entries = new ConcurrentHashMap<AdvisedMethod, Entry>();
+    // Settings made for methods, linked or not, and for annotations; guarded by the class lock
+    private static final Map<AdvisedMethod, Advice> methodAdvices = new HashMap<AdvisedMethod, Advice>();
+    private static final Map<AdvisedMethod, Boolean> methodsEnabled = new HashMap<AdvisedMethod, Boolean>();
+    private static final Map<Class<? extends Annotation>, Advice> annotationAdvices =
+            new HashMap<Class<? extends Annotation>, Advice>();
+    private static final Set<Class<? extends Annotation>> disabledAnnotations =
+            new HashSet<Class<? extends Annotation>>();
+
+    private AdviceRegistry() {
+    }
+
+    /**
+     * Links the call site of an advised method, registering the method. If the method is already registered, its call
+     * site is returned instead. Threads racing to register the same method may each get an advice from its factory,
+     * but only the advice of the first one to register it is kept.
+     *
+     * @param type The type of the call site, with the instance as first argument for instance methods
+     * @param adviceInit Handle to the static method of the advised class that creates the advice given by the factory
+     * @param callableConstructor Handle to the constructor of the callable for the advised method
+     * @param advisedMethod Handle to the original method, which takes the same arguments as the call site
+     * @param annotationType The annotation that the method was advised for
+     * @param methodType The type of the method as declared
+     **/
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type,
+            MethodHandle adviceInit, MethodHandle callableConstructor, MethodHandle advisedMethod,
+            Class<?> annotationType, MethodType methodType) throws Throwable {
+        AdvisedMethod method =
+                new AdvisedMethod(caller.lookupClass(), name, methodType, annotationType.asSubclass(Annotation.class));
+        // Threads racing to link the same call site must all get the registered call site, as the JVM may keep any of
+        // the ones returned
+        Entry entry = entries.get(method);
+        if (entry != null) {
+            return entry.callSite;
+        }
+        // The advice is created without holding the lock: the factory may wait for the initialization of a class
+        // whose initializer, in another thread, is linking an advised method
+        Advice advice = (Advice) adviceInit.invoke();
+        synchronized (AdviceRegistry.class) {
+            entry = entries.get(method);
+            if (entry == null) {
+                entry = new Entry(method, type, advice, callableConstructor, advisedMethod);
+                relink(entry);
+                entries.put(method, entry);
+            }
+        }
+        return entry.callSite;
+    }
+
+    /** Returns the advised methods whose call sites were linked so far **/
+    public static Collection<AdvisedMethod> getAdvisedMethods() {
+        return Collections.unmodifiableCollection(new ArrayList<AdvisedMethod>(entries.keySet()));
+    }
+
+    /** Returns the advised methods of the given class and name whose call sites were linked so far **/
+    public static Collection<AdvisedMethod> getAdvisedMethods(Class<?> declaringClass, String name) {
+        List<AdvisedMethod> methods = new ArrayList<AdvisedMethod>();
+        for (AdvisedMethod method : entries.keySet()) {
+            if (method.getDeclaringClass() == declaringClass && method.getName().equals(name)) {
+                methods.add(method);
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Returns the advice currently used by a method, even if it is disabled, or null if the method is not linked yet
+     * and no advice was set for it or for its annotation.
+     **/
+    public static synchronized Advice getAdvice(AdvisedMethod method) {
+        Entry entry = entries.get(method);
+        return entry != null ? getAdvice(entry) : getSetAdvice(method);
+    }
+
+    /** Returns whether the advice of a method is currently enabled, or will be once it is linked **/
+    public static synchronized boolean isEnabled(AdvisedMethod method) {
+        Boolean enabled = methodsEnabled.get(method);
+        return enabled != null ? enabled : !disabledAnnotations.contains(method.getAnnotationType());
+    }
+
+    /**
+     * Replaces the advice of a method. If the method is not linked yet, the advice is used once it is.
+     *
+     * @param advice The new advice, or null to go back to the advice set for its annotation or, if none was set, to
+     *            the one given by its factory
+     **/
+    public static synchronized void setAdvice(AdvisedMethod method, Advice advice) {
+        if (advice != null) {
+            methodAdvices.put(method, advice);
+        } else {
+            methodAdvices.remove(method);
+        }
+        relinkAll(getEntries(method));
+    }
+
+    /** Enables or disables the advice of a method. If the method is not linked yet, it is linked as set here. **/
+    public static synchronized void setEnabled(AdvisedMethod method, boolean enabled) {
+        methodsEnabled.put(method, enabled);
+        relinkAll(getEntries(method));
+    }
+
+    /** Drops the settings made for a method, so that it follows those of its annotation **/
+    public static synchronized void reset(AdvisedMethod method) {
+        methodAdvices.remove(method);
+        methodsEnabled.remove(method);
+        relinkAll(getEntries(method));
+    }
+
+    /**
+     * Replaces the advice of all methods advised with the given annotation.
+     *
+     * @param advice The new advice, or null to go back to the advices given by the factories
+     **/
+    public static synchronized void setAdvice(Class<? extends Annotation> annotationType, Advice advice) {
+        if (advice != null) {
+            annotationAdvices.put(annotationType, advice);
+        } else {
+            annotationAdvices.remove(annotationType);
+        }
+        relinkAll(getEntries(annotationType));
+    }
+
+    /** Enables or disables the advice of all methods advised with the given annotation **/
+    public static synchronized void setEnabled(Class<? extends Annotation> annotationType, boolean enabled) {
+        if (enabled) {
+            disabledAnnotations.remove(annotationType);
+        } else {
+            disabledAnnotations.add(annotationType);
+        }
+        relinkAll(getEntries(annotationType));
+    }
+
+    /** Drops the settings made for an annotation and for each of the methods advised with it **/
+    public static synchronized void reset(Class<? extends Annotation> annotationType) {
+        annotationAdvices.remove(annotationType);
+        disabledAnnotations.remove(annotationType);
+        methodAdvices.keySet().removeAll(getMethods(methodAdvices.keySet(), annotationType));
+        methodsEnabled.keySet().removeAll(getMethods(methodsEnabled.keySet(), annotationType));
+        relinkAll(getEntries(annotationType));
+    }
+
+    private static List<AdvisedMethod> getMethods(Set<AdvisedMethod> methods,
+            Class<? extends Annotation> annotationType) {
+        List<AdvisedMethod> annotationMethods = new ArrayList<AdvisedMethod>();
+        for (AdvisedMethod method : methods) {
+            if (method.getAnnotationType() == annotationType) {
+                annotationMethods.add(method);
+            }
+        }
+        return annotationMethods;
+    }
+
+    /** Returns the entry of a method, as a list to relink, which is empty if the method is not linked yet **/
+    private static List<Entry> getEntries(AdvisedMethod method) {
+        Entry entry = entries.get(method);
+        return entry != null ? Collections.singletonList(entry) : Collections.<Entry> emptyList();
+    }
+
+    private static List<Entry> getEntries(Class<? extends Annotation> annotationType) {
+        List<Entry> annotationEntries = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (entry.method.getAnnotationType() == annotationType) {
+                annotationEntries.add(entry);
+            }
+        }
+        return annotationEntries;
+    }
+
+    private static Advice getAdvice(Entry entry) {
+        Advice advice = getSetAdvice(entry.method);
+        return advice != null ? advice : entry.factoryAdvice;
+    }
+
+    /** Returns the advice set for a method or, if none was set, for its annotation **/
+    private static Advice getSetAdvice(AdvisedMethod method) {
+        Advice advice = methodAdvices.get(method);
+        return advice != null ? advice : annotationAdvices.get(method.getAnnotationType());
+    }
+
+    private static void relink(Entry entry) {
+        MutableCallSite callSite = entry.callSite;
+        callSite.setTarget(isEnabled(entry.method) ? AdviceBootstrap.getTarget(getAdvice(entry),
+                entry.callableConstructor, callSite.type()) : entry.advisedMethod);
+    }
+
+    /** Relinks the call sites of the given entries, making the new targets visible to all threads **/
+    private static void relinkAll(List<Entry> entriesToRelink) {
+        MutableCallSite[] callSites = new MutableCallSite[entriesToRelink.size()];
+        for (int i = 0; i < callSites.length; i++) {
+            relink(entriesToRelink.get(i));
+            callSites[i] = entriesToRelink.get(i).callSite;
+        }
+        MutableCallSite.syncAll(callSites);
+    }
+
+}
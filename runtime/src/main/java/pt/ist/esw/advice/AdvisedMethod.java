@@ -0,0 +1,101 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodType;
+
+/**
+ * Identifies an advised method: the class that declares it, its name and type, and the annotation it was advised for.
+ * A method with several advised annotations has one AdvisedMethod per annotation.
+ *
+ * Woven classes create an AdvisedMethod for each advised method, and give it to the {@link AdviceFactory} along with
+ * the annotation. The type of the method is kept as a descriptor, so that identifying a method does not load the
+ * classes in its signature.
+ **/
+public final class AdvisedMethod {
+    private final Class<?> declaringClass;
+    private final String name;
+    private final String descriptor;
+    private final Class<? extends Annotation> annotationType;
+
+    public AdvisedMethod(Class<?> declaringClass, String name, MethodType methodType,
+            Class<? extends Annotation> annotationType) {
+        this(declaringClass, name, methodType.toMethodDescriptorString(), annotationType);
+    }
+
+    /** @param descriptor The descriptor of the method as declared, e.g., (Ljava/lang/Object;I)J **/
+    public AdvisedMethod(Class<?> declaringClass, String name, String descriptor,
+            Class<? extends Annotation> annotationType) {
+        this.declaringClass = declaringClass;
+        this.name = name;
+        this.descriptor = descriptor;
+        this.annotationType = annotationType;
+    }
+
+    public Class<?> getDeclaringClass() {
+        return declaringClass;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** The type of the method as declared, i.e., without the instance of the class for instance methods **/
+    public MethodType getMethodType() {
+        return MethodType.fromMethodDescriptorString(descriptor, declaringClass.getClassLoader());
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public Class<? extends Annotation> getAnnotationType() {
+        return annotationType;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof AdvisedMethod)) {
+            return false;
+        }
+        AdvisedMethod other = (AdvisedMethod) obj;
+        return declaringClass == other.declaringClass && name.equals(other.name)
+                && descriptor.equals(other.descriptor) && annotationType == other.annotationType;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((declaringClass.hashCode() * 31 + name.hashCode()) * 31 + descriptor.hashCode()) * 31
+                + annotationType.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "@" + annotationType.getName() + " " + declaringClass.getName() + "." + name + descriptor;
+    }
+}
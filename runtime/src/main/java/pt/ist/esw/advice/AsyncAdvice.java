@@ -0,0 +1,48 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Advice aware of asynchronous methods. When the advice returned by the factory implements this interface, methods
+ * returning {@link CompletionStage} or {@link CompletableFuture} are advised through
+ * {@link #performAsync(Callable)} instead of {@link Advice#perform(Callable)}, so that the advice can act when the
+ * asynchronous work completes rather than when the method returns. Methods with other return types still go through
+ * the generic perform.
+ *
+ * Calling the callable starts the work and returns its stage, without waiting for it. Advices must not block on the
+ * stage either: they should register their completion hooks on it (e.g., with whenComplete), and return it. An advice
+ * may also return another stage, such as a failed one when it rejects the call, but a dependent stage does not
+ * propagate cancellation to the original one. For methods returning {@link CompletableFuture}, a returned stage that
+ * is not a CompletableFuture is converted with {@link CompletionStage#toCompletableFuture()}.
+ **/
+public interface AsyncAdvice extends Advice {
+    public <V> CompletionStage<V> performAsync(Callable<? extends CompletionStage<V>> method) throws Exception;
+}
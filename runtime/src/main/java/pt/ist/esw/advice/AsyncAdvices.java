@@ -0,0 +1,67 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Entry points used by woven methods that return {@link CompletionStage} or {@link CompletableFuture}. Each one calls
+ * {@link AsyncAdvice#performAsync(Callable)} when the advice supports it, and falls back to
+ * {@link Advice#perform(Callable)} otherwise.
+ **/
+public final class AsyncAdvices {
+
+    private AsyncAdvices() {
+    }
+
+    public static <V> CompletionStage<V> performAsync(Advice advice, Callable<? extends CompletionStage<V>> method)
+            throws Exception {
+        if (advice instanceof AsyncAdvice) {
+            return ((AsyncAdvice) advice).performAsync(method);
+        }
+        return advice.perform(method);
+    }
+
+    public static <V> CompletableFuture<V> performAsyncFuture(Advice advice,
+            Callable<? extends CompletableFuture<V>> method) throws Exception {
+        if (advice instanceof AsyncAdvice) {
+            return toCompletableFuture(((AsyncAdvice) advice).performAsync(method));
+        }
+        return advice.perform(method);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> CompletableFuture<V> toCompletableFuture(CompletionStage<V> stage) {
+        if (stage == null || stage instanceof CompletableFuture) {
+            return (CompletableFuture<V>) stage;
+        }
+        return stage.toCompletableFuture();
+    }
+
+}
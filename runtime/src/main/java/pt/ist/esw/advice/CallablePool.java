@@ -0,0 +1,117 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Per-thread pool of the callables of an advised method, used by methods woven with the reuse option (-r).
+ *
+ * Each thread has one callable per advised method. It is handed out when the advice is a {@link NonEscapingAdvice}
+ * and the callable is not already in use by an outer call on the same thread (e.g. when the advised method is
+ * recursive); otherwise a new callable is created. The perform methods return pooled callables to the pool when the
+ * advice is done with them, so a call to a non-escaping advice allocates nothing. New callables are never cleared, as
+ * other advices may keep them.
+ **/
+public final class CallablePool extends ThreadLocal<ReusableCallable<?>> {
+    private final ReusableCallable<?> prototype;
+
+    public CallablePool(ReusableCallable<?> prototype) {
+        this.prototype = prototype;
+    }
+
+    @Override
+    protected ReusableCallable<?> initialValue() {
+        return prototype.newInstance();
+    }
+
+    /** Returns a callable to be used for a single call to the given advice **/
+    public ReusableCallable<?> acquire(Advice advice) {
+        if (!(advice instanceof NonEscapingAdvice)) {
+            return prototype.newInstance();
+        }
+        ReusableCallable<?> callable = get();
+        if (callable.inUse) {
+            // Reentrant call
+            return prototype.newInstance();
+        }
+        callable.inUse = true;
+        return callable;
+    }
+
+    public static <V> V perform(Advice advice, ReusableCallable<V> method) throws Exception {
+        try {
+            return advice.perform(method);
+        } finally {
+            method.release();
+        }
+    }
+
+    public static <V> CompletionStage<V> performAsync(Advice advice, ReusableCallable<? extends CompletionStage<V>> method)
+            throws Exception {
+        try {
+            return AsyncAdvices.performAsync(advice, method);
+        } finally {
+            method.release();
+        }
+    }
+
+    public static <V> CompletableFuture<V> performAsyncFuture(Advice advice,
+            ReusableCallable<? extends CompletableFuture<V>> method) throws Exception {
+        try {
+            return AsyncAdvices.performAsyncFuture(advice, method);
+        } finally {
+            method.release();
+        }
+    }
+
+    public static int performInt(Advice advice, ReusableCallable<Integer> method) throws Exception {
+        try {
+            return PrimitiveAdvices.performInt(advice, (IntCallable) method);
+        } finally {
+            method.release();
+        }
+    }
+
+    public static long performLong(Advice advice, ReusableCallable<Long> method) throws Exception {
+        try {
+            return PrimitiveAdvices.performLong(advice, (LongCallable) method);
+        } finally {
+            method.release();
+        }
+    }
+
+    public static double performDouble(Advice advice, ReusableCallable<Double> method) throws Exception {
+        try {
+            return PrimitiveAdvices.performDouble(advice, (DoubleCallable) method);
+        } finally {
+            method.release();
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.lang.annotation.Annotation;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Base class for AdviceFactories whose advices depend only on the annotation values, and can thus be shared by all the
+ * methods annotated with equal annotations. Subclasses implement {@link #createAdvice(Annotation)}, which is called
+ * once for each distinct annotation value; {@link #newAdvice(Annotation)} returns the advice created for an annotation
+ * equal to the one given, if any.
+ *
+ * Annotations are compared with their equals methods, which, for the annotation instances generated by
+ * GenerateAnnotationInstance and for those returned by reflection, compare the values of their elements. Advices that
+ * keep per-method state, such as the ones created by {@link MetricsAdviceFactory}, must not be shared.
+ **/
+public abstract class CanonicalAdviceFactory<T extends Annotation> extends AdviceFactory<T> {
+
+    private final ConcurrentMap<T, Advice> advices = new ConcurrentHashMap<T, Advice>();
+
+    /** Creates the advice to be shared by all the methods annotated with annotations equal to the given one **/
+    protected abstract Advice createAdvice(T annotation);
+
+    @Override
+    public final Advice newAdvice(T annotation) {
+        Advice advice = advices.get(annotation);
+        if (advice == null) {
+            Advice newAdvice = createAdvice(annotation);
+            advice = advices.putIfAbsent(annotation, newAdvice);
+            if (advice == null) {
+                advice = newAdvice;
+            }
+        }
+        return advice;
+    }
+
+    @Override
+    public final Advice newAdvice(T annotation, AdvisedMethod method) {
+        return newAdvice(annotation);
+    }
+
+    /** Returns the number of distinct advices created so far **/
+    public int getAdviceCount() {
+        return advices.size();
+    }
+
+}
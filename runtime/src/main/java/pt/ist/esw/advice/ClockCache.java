@@ -0,0 +1,175 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache with CLOCK eviction and optional expiry after write.
+ *
+ * Lookups are lock-free: they read a {@link ConcurrentHashMap} and mark the entry found as referenced. Insertions are
+ * serialized by a lock, under which the clock hand sweeps the ring of entries, clearing the reference marks, until it
+ * finds an entry that was not referenced since the last sweep (or that has expired), which is evicted. As insertions
+ * only follow misses, which call the cached method, the lock is not on the fast path.
+ **/
+public final class ClockCache<K, V> {
+
+    private static final class Entry<K, V> {
+        final K key;
+        final V value;
+        final long writeTime;
+        volatile boolean referenced;
+        // Position in the ring; guarded by the cache
+        int slot;
+
+        Entry(K key, V value, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+
+    private final int capacity;
+    private final long expireAfterWriteNanos;
+    private final ConcurrentMap<K, Entry<K, V>> entries;
+    // Guarded by this
+    private final Entry<K, V>[] ring;
+    private int size;
+    private int hand;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity The maximum number of entries
+     * @param expireAfterWriteNanos How long an entry is kept after it was written, or 0 to keep it until evicted
+     **/
+    @SuppressWarnings("unchecked")
+    public ClockCache(int capacity, long expireAfterWriteNanos) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be at least 1: " + capacity);
+        }
+        this.capacity = capacity;
+        this.expireAfterWriteNanos = expireAfterWriteNanos;
+        this.entries = new ConcurrentHashMap<K, Entry<K, V>>(capacity);
+        this.ring = (Entry<K, V>[]) new Entry<?, ?>[capacity];
+    }
+
+    /** Returns the value cached for the key, or null if there is none or it expired **/
+    public V get(K key) {
+        Entry<K, V> entry = entries.get(key);
+        if (entry == null || isExpired(entry, System.nanoTime())) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.referenced) {
+            // Avoid writing to the shared entry on every hit
+            entry.referenced = true;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /** Caches a value for the key, replacing the previous one, and evicting another entry if the cache is full **/
+    public synchronized void put(K key, V value) {
+        long now = System.nanoTime();
+        Entry<K, V> entry = new Entry<K, V>(key, value, now);
+        Entry<K, V> previous = entries.put(key, entry);
+        if (previous != null) {
+            // Take over the slot of the previous entry
+            entry.slot = previous.slot;
+            ring[entry.slot] = entry;
+            return;
+        }
+        if (size < capacity) {
+            entry.slot = size;
+            ring[size++] = entry;
+            return;
+        }
+        // Sweep until finding an entry that was not referenced since the last sweep, or that expired
+        while (ring[hand].referenced && !isExpired(ring[hand], now)) {
+            ring[hand].referenced = false;
+            hand = (hand + 1) % capacity;
+        }
+        Entry<K, V> victim = ring[hand];
+        entries.remove(victim.key, victim);
+        evictions.increment();
+        entry.slot = hand;
+        ring[hand] = entry;
+        hand = (hand + 1) % capacity;
+    }
+
+    /** Removes all entries, keeping the statistics **/
+    public synchronized void clear() {
+        entries.clear();
+        for (int i = 0; i < size; i++) {
+            ring[i] = null;
+        }
+        size = 0;
+        hand = 0;
+    }
+
+    private boolean isExpired(Entry<K, V> entry, long now) {
+        return expireAfterWriteNanos > 0 && now - entry.writeTime >= expireAfterWriteNanos;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Returns the fraction of lookups that found a value, or 0 if there were none **/
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ClockCache[size=" + size() + "/" + capacity + ", hits=" + getHitCount() + ", misses="
+                + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Advice that merges concurrent calls of the advised method with equal arguments into a single call (single-flight).
+ *
+ * The first call for some arguments (the leader) registers a flight, keyed by its callable, and calls the method. The
+ * calls with equal arguments made while the flight is registered (the followers) wait for it, and get the same result,
+ * or the same exception. The flight is removed as soon as the leader's call completes, so the map of flights only holds
+ * the calls in progress, and later calls call the method again. The map is a {@link ConcurrentHashMap}, so neither
+ * registering nor finding a flight takes a lock. A reentrant call with the same arguments made by the leader itself
+ * calls the method directly, instead of waiting for itself.
+ *
+ * For methods returning {@link CompletionStage} or {@link CompletableFuture}, followers do not block: they get a stage
+ * that completes with the leader's stage, and the flight lasts until the leader's stage completes.
+ **/
+public final class CoalescingAdvice implements AsyncAdvice {
+
+    private static final class Flight extends CompletableFuture<Object> {
+        final Thread leader = Thread.currentThread();
+    }
+
+    private final ConcurrentMap<Callable<?>, Flight> flights = new ConcurrentHashMap<Callable<?>, Flight>();
+    private final LongAdder coalesced = new LongAdder();
+
+    /** Returns the number of calls that got the result of another call, instead of calling the method **/
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /** Returns the number of flights in progress **/
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V> V perform(Callable<V> method) throws Exception {
+        Flight flight = new Flight();
+        Flight existing = flights.putIfAbsent(method, flight);
+        if (existing != null) {
+            if (existing.leader == Thread.currentThread() && !existing.isDone()) {
+                return method.call();
+            }
+            coalesced.increment();
+            return (V) await(existing);
+        }
+        try {
+            V result = method.call();
+            flight.complete(result);
+            return result;
+        } catch (Throwable t) {
+            flight.completeExceptionally(t);
+            throw t;
+        } finally {
+            flights.remove(method, flight);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V> CompletionStage<V> performAsync(Callable<? extends CompletionStage<V>> method) throws Exception {
+        Flight flight = new Flight();
+        Flight existing = flights.putIfAbsent(method, flight);
+        if (existing != null) {
+            if (existing.leader == Thread.currentThread() && !existing.isDone()) {
+                return method.call();
+            }
+            coalesced.increment();
+            return existing.thenCompose(stage -> stage != null ? (CompletionStage<V>) stage : CompletableFuture
+                    .<V> completedFuture(null));
+        }
+        CompletionStage<V> stage;
+        try {
+            stage = method.call();
+        } catch (Throwable t) {
+            flights.remove(method, flight);
+            flight.completeExceptionally(t);
+            throw t;
+        }
+        flight.complete(stage);
+        if (stage == null) {
+            flights.remove(method, flight);
+        } else {
+            stage.whenComplete((result, failure) -> flights.remove(method, flight));
+        }
+        return stage;
+    }
+
+    /** Waits for a flight, rethrowing the exception thrown by its leader **/
+    private static Object await(Flight flight) throws Exception {
+        try {
+            return flight.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates a {@link CoalescingAdvice} for each method annotated with {@link Coalesce}. The advices can be obtained with
+ * {@link #getAdvice(AdvisedMethod)}, e.g., to check how many calls were coalesced.
+ **/
+public final class CoalescingAdviceFactory extends AdviceFactory<Coalesce> {
+
+    private static final CoalescingAdviceFactory instance = new CoalescingAdviceFactory();
+
+    private final ConcurrentMap<AdvisedMethod, CoalescingAdvice> advices =
+            new ConcurrentHashMap<AdvisedMethod, CoalescingAdvice>();
+
+    private CoalescingAdviceFactory() {
+    }
+
+    public static AdviceFactory<?> getInstance() {
+        return instance;
+    }
+
+    /** Returns the advice of an advised method, or null if it was not created yet **/
+    public static CoalescingAdvice getAdvice(AdvisedMethod method) {
+        return instance.advices.get(method);
+    }
+
+    @Override
+    public Advice newAdvice(Coalesce annotation) {
+        return new CoalescingAdvice();
+    }
+
+    @Override
+    public Advice newAdvice(Coalesce annotation, AdvisedMethod method) {
+        CoalescingAdvice advice = new CoalescingAdvice();
+        CoalescingAdvice existing = advices.putIfAbsent(method, advice);
+        return existing != null ? existing : advice;
+    }
+
+}
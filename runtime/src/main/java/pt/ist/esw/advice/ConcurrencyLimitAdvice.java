@@ -0,0 +1,104 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Advice that limits the number of concurrent calls of the advised method, without ever blocking: calls over the limit
+ * are rejected with a {@link RejectedExecutionException}, thrown by synchronous methods and used to fail the stage
+ * returned by asynchronous ones. A call to an asynchronous method counts until its stage completes.
+ **/
+public final class ConcurrencyLimitAdvice implements AsyncAdvice, NonEscapingAdvice {
+    private final int limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public ConcurrencyLimitAdvice(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Concurrency limit must be at least 1: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    /** Returns the number of calls currently in progress **/
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public <V> V perform(Callable<V> method) throws Exception {
+        if (!tryAcquire()) {
+            throw newRejection();
+        }
+        try {
+            return method.call();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public <V> CompletionStage<V> performAsync(Callable<? extends CompletionStage<V>> method) throws Exception {
+        if (!tryAcquire()) {
+            CompletableFuture<V> rejected = new CompletableFuture<V>();
+            rejected.completeExceptionally(newRejection());
+            return rejected;
+        }
+        CompletionStage<V> stage = null;
+        try {
+            stage = method.call();
+        } finally {
+            if (stage == null) {
+                // The method threw, or returned no stage to wait for
+                inFlight.decrementAndGet();
+            }
+        }
+        if (stage != null) {
+            stage.whenComplete((result, failure) -> inFlight.decrementAndGet());
+        }
+        return stage;
+    }
+
+    private boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private RejectedExecutionException newRejection() {
+        return new RejectedExecutionException("Concurrency limit of " + limit + " reached");
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Caches the results of the annotated method, keyed by its arguments (and by the instance, for instance methods),
+ * through a {@link MemoizingAdvice}. Arguments are compared with their equals methods, except for arrays, which are
+ * compared by identity. Results are cached even if null, but exceptions are not.
+ **/
+@Target(ElementType.METHOD)
+public @interface Memoize {
+
+    /** The maximum number of results kept for the method **/
+    int capacity() default 1024;
+
+    /** How long a result is kept after it was computed, in milliseconds, or 0 to keep it until evicted **/
+    long expireAfterWriteMillis() default 0;
+
+    Class<? extends AdviceFactory<Memoize>> adviceFactory() default MemoizingAdviceFactory.class;
+}
@@ -0,0 +1,63 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Advice that caches the results of the advised method in a {@link ClockCache}.
+ *
+ * The cache is keyed by the callables themselves: they hold the arguments of the call, and the weaver gives them equals
+ * and hashCode methods that compare the arguments, so building a key neither copies nor boxes them. As the callables
+ * are kept by the cache, this advice is not a {@link NonEscapingAdvice}.
+ **/
+public final class MemoizingAdvice implements Advice {
+    /** Stands for a null result in the cache **/
+    private static final Object NULL = new Object();
+
+    private final ClockCache<Callable<?>, Object> cache;
+
+    public MemoizingAdvice(ClockCache<Callable<?>, Object> cache) {
+        this.cache = cache;
+    }
+
+    public ClockCache<Callable<?>, Object> getCache() {
+        return cache;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V> V perform(Callable<V> method) throws Exception {
+        Object cached = cache.get(method);
+        if (cached != null) {
+            return cached == NULL ? null : (V) cached;
+        }
+        V result = method.call();
+        cache.put(method, result == null ? NULL : result);
+        return result;
+    }
+}
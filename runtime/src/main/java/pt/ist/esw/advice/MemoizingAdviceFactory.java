@@ -0,0 +1,74 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates a {@link MemoizingAdvice} for each method annotated with {@link Memoize}, with its own cache. The caches can
+ * be obtained with {@link #getCache(AdvisedMethod)}, e.g., to check their hit rates.
+ **/
+public final class MemoizingAdviceFactory extends AdviceFactory<Memoize> {
+
+    private static final MemoizingAdviceFactory instance = new MemoizingAdviceFactory();
+
+    private final ConcurrentMap<AdvisedMethod, ClockCache<Callable<?>, Object>> caches =
+            new ConcurrentHashMap<AdvisedMethod, ClockCache<Callable<?>, Object>>();
+
+    private MemoizingAdviceFactory() {
+    }
+
+    public static AdviceFactory<?> getInstance() {
+        return instance;
+    }
+
+    /** Returns the cache of an advised method, or null if its advice was not created yet **/
+    public static ClockCache<Callable<?>, Object> getCache(AdvisedMethod method) {
+        return instance.caches.get(method);
+    }
+
+    @Override
+    public Advice newAdvice(Memoize annotation) {
+        return new MemoizingAdvice(newCache(annotation));
+    }
+
+    @Override
+    public Advice newAdvice(Memoize annotation, AdvisedMethod method) {
+        ClockCache<Callable<?>, Object> cache = newCache(annotation);
+        ClockCache<Callable<?>, Object> existing = caches.putIfAbsent(method, cache);
+        return new MemoizingAdvice(existing != null ? existing : cache);
+    }
+
+    private static ClockCache<Callable<?>, Object> newCache(Memoize annotation) {
+        return new ClockCache<Callable<?>, Object>(annotation.capacity(),
+                TimeUnit.MILLISECONDS.toNanos(annotation.expireAfterWriteMillis()));
+    }
+
+}
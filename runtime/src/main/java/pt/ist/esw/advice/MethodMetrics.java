@@ -0,0 +1,165 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Call count, error count and latency histogram of an advised method, as recorded by a {@link MetricsAdvice}. All
+ * counters are {@link LongAdder}s, so that threads calling the method concurrently do not contend on them. The call
+ * count is the sum of the histogram, so that recording a successful call only updates two of them.
+ **/
+public final class MethodMetrics implements MethodMetricsMBean {
+    public static final String DOMAIN = "pt.ist.esw.advice";
+
+    private final AdvisedMethod method;
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /** @param method The method being measured, or null if unknown **/
+    public MethodMetrics(AdvisedMethod method) {
+        this.method = method;
+    }
+
+    /** Records a call that took the given time, and whether it threw **/
+    public void record(long nanos, boolean failed) {
+        if (failed) {
+            errors.increment();
+        }
+        totalNanos.add(nanos);
+        latencies.record(nanos);
+    }
+
+    public AdvisedMethod getAdvisedMethod() {
+        return method;
+    }
+
+    @Override
+    public String getMethod() {
+        return String.valueOf(method);
+    }
+
+    @Override
+    public long getCallCount() {
+        long count = 0;
+        for (long bucketCount : latencies.getCounts()) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanLatencyNanos() {
+        long count = getCallCount();
+        return count == 0 ? 0 : (double) totalNanos.sum() / count;
+    }
+
+    @Override
+    public long getLatencyP50Nanos() {
+        return latencies.getPercentile(50);
+    }
+
+    @Override
+    public long getLatencyP90Nanos() {
+        return latencies.getPercentile(90);
+    }
+
+    @Override
+    public long getLatencyP99Nanos() {
+        return latencies.getPercentile(99);
+    }
+
+    @Override
+    public long getLatencyP999Nanos() {
+        return latencies.getPercentile(99.9);
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        return latencies.getCounts();
+    }
+
+    @Override
+    public long[] getLatencyHistogramLowerBounds() {
+        long[] bounds = new long[LatencyHistogram.BUCKET_COUNT];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = LatencyHistogram.getLowerBound(i);
+        }
+        return bounds;
+    }
+
+    @Override
+    public void reset() {
+        errors.reset();
+        totalNanos.reset();
+        latencies.reset();
+    }
+
+    /**
+     * Returns the name of the MBean of an advised method, e.g.,
+     * pt.ist.esw.advice:type=MethodMetrics,class=pt.Xpto,method="add(Ljava/lang/Object;I)J",annotation=pt.Annot
+     **/
+    public static ObjectName getObjectName(AdvisedMethod method) {
+        try {
+            return new ObjectName(DOMAIN + ":type=MethodMetrics,class=" + method.getDeclaringClass().getName()
+                    + ",method=" + ObjectName.quote(method.getName() + method.getDescriptor()) + ",annotation="
+                    + method.getAnnotationType().getName());
+        } catch (MalformedObjectNameException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, under the name given by
+     * {@link #getObjectName(AdvisedMethod)}. Failing to register them only prints a warning, as the advised method
+     * must still work.
+     **/
+    void register() {
+        ObjectName name = getObjectName(method);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (InstanceAlreadyExistsException e) {
+            // e.g., the same class was loaded by another class loader
+            System.err.println("WARNING: Metrics for " + method + " are not published: " + name
+                    + " is already registered");
+        } catch (JMException e) {
+            System.err.println("WARNING: Metrics for " + method + " are not published: " + e);
+        }
+    }
+}
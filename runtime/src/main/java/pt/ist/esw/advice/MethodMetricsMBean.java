@@ -0,0 +1,57 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+/**
+ * Management interface of the {@link MethodMetrics} of an advised method. Latencies are in nanoseconds, and the
+ * percentiles are the upper bounds of the histogram buckets that hold them.
+ **/
+public interface MethodMetricsMBean {
+    public String getMethod();
+
+    public long getCallCount();
+
+    public long getErrorCount();
+
+    public double getMeanLatencyNanos();
+
+    public long getLatencyP50Nanos();
+
+    public long getLatencyP90Nanos();
+
+    public long getLatencyP99Nanos();
+
+    public long getLatencyP999Nanos();
+
+    /** The count of each bucket of the latency histogram **/
+    public long[] getLatencyHistogram();
+
+    /** The lowest latency counted in each bucket of the latency histogram **/
+    public long[] getLatencyHistogramLowerBounds();
+
+    public void reset();
+}
@@ -0,0 +1,121 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Advice that records the call count, error count and latency of the advised method in its {@link MethodMetrics}.
+ * Recording takes two calls to {@link System#nanoTime()} and a few uncontended adds, and allocates nothing; methods
+ * returning int, long or double are measured without boxing their results. Methods returning a
+ * {@link CompletionStage} are measured until their stage completes.
+ **/
+public final class MetricsAdvice implements IntAdvice, LongAdvice, DoubleAdvice, AsyncAdvice, NonEscapingAdvice {
+    private final MethodMetrics metrics;
+
+    public MetricsAdvice(MethodMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public MethodMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public <V> V perform(Callable<V> method) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            V result = method.call();
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public <V> CompletionStage<V> performAsync(Callable<? extends CompletionStage<V>> method) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        CompletionStage<V> stage;
+        try {
+            stage = method.call();
+            failed = false;
+        } finally {
+            if (failed) {
+                metrics.record(System.nanoTime() - start, true);
+            }
+        }
+        if (stage == null) {
+            metrics.record(System.nanoTime() - start, false);
+        } else {
+            stage.whenComplete((result, failure) -> metrics.record(System.nanoTime() - start, failure != null));
+        }
+        return stage;
+    }
+
+    @Override
+    public int performInt(IntCallable method) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            int result = method.callInt();
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public long performLong(LongCallable method) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            long result = method.callLong();
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public double performDouble(DoubleCallable method) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            double result = method.callDouble();
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(System.nanoTime() - start, failed);
+        }
+    }
+}
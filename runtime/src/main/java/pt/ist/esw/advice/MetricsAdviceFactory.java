@@ -0,0 +1,85 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.lang.annotation.Annotation;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Factory of {@link MetricsAdvice}s, which can be used with any annotation, e.g.:
+ *
+ * <pre>
+ * ProcessAnnotations -a com.example.Timed -f pt.ist.esw.advice.MetricsAdviceFactory ...
+ * </pre>
+ *
+ * The metrics of each advised method are published as an MBean named after its class and method (see
+ * {@link MethodMetrics#getObjectName(AdvisedMethod)}), and can also be obtained with {@link #getMetrics(AdvisedMethod)}.
+ **/
+public final class MetricsAdviceFactory extends AdviceFactory<Annotation> {
+
+    private static final MetricsAdviceFactory instance = new MetricsAdviceFactory();
+
+    private final ConcurrentMap<AdvisedMethod, MethodMetrics> metrics =
+            new ConcurrentHashMap<AdvisedMethod, MethodMetrics>();
+
+    private MetricsAdviceFactory() {
+    }
+
+    public static AdviceFactory<?> getInstance() {
+        return instance;
+    }
+
+    /** Returns the metrics of an advised method, or null if its advice was not created yet **/
+    public static MethodMetrics getMetrics(AdvisedMethod method) {
+        return instance.metrics.get(method);
+    }
+
+    /**
+     * Only called by classes woven before advices were given the advised method, whose metrics cannot be named and
+     * are thus not published.
+     **/
+    @Override
+    public Advice newAdvice(Annotation annotation) {
+        System.err.println("WARNING: Metrics for a method advised with " + annotation.annotationType().getName()
+                + " are not published, as its class must be woven again");
+        return new MetricsAdvice(new MethodMetrics(null));
+    }
+
+    @Override
+    public Advice newAdvice(Annotation annotation, AdvisedMethod method) {
+        MethodMetrics methodMetrics = new MethodMetrics(method);
+        MethodMetrics existing = metrics.putIfAbsent(method, methodMetrics);
+        if (existing != null) {
+            // The advice may be created more than once, e.g., when concurrent calls link the same call site
+            return new MetricsAdvice(existing);
+        }
+        methodMetrics.register();
+        return new MetricsAdvice(methodMetrics);
+    }
+
+}
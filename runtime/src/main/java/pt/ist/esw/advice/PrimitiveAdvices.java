@@ -0,0 +1,62 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+/**
+ * Entry points used by woven methods that return int, long or double. Each one calls the specialized perform when the
+ * advice supports it, and falls back to {@link Advice#perform(java.util.concurrent.Callable)} otherwise.
+ *
+ * As the advice of a method is kept in a static final field, the JIT folds the instanceof check away once the method
+ * is inlined.
+ **/
+public final class PrimitiveAdvices {
+
+    private PrimitiveAdvices() {
+    }
+
+    public static int performInt(Advice advice, IntCallable method) throws Exception {
+        if (advice instanceof IntAdvice) {
+            return ((IntAdvice) advice).performInt(method);
+        }
+        return advice.perform(method);
+    }
+
+    public static long performLong(Advice advice, LongCallable method) throws Exception {
+        if (advice instanceof LongAdvice) {
+            return ((LongAdvice) advice).performLong(method);
+        }
+        return advice.perform(method);
+    }
+
+    public static double performDouble(Advice advice, DoubleCallable method) throws Exception {
+        if (advice instanceof DoubleAdvice) {
+            return ((DoubleAdvice) advice).performDouble(method);
+        }
+        return advice.perform(method);
+    }
+
+}
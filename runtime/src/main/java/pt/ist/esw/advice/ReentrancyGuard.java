@@ -0,0 +1,108 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.lang.annotation.Annotation;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks, for each thread, whether it is running inside a method advised with a given annotation, so that nested
+ * calls to methods advised with the same annotation can skip their advice and call the advised method directly.
+ *
+ * Methods whose annotation (here a.b.Annot) has a boolean element named flattenReentrant set to true are woven as:
+ *
+ * <pre>
+ * ReentrancyGuard.Depth depth = reentrancy$a_b_Annot.enter();
+ * if (depth == null) {
+ *     return advised$foo(this, ...);
+ * }
+ * try {
+ *     return advice$foo.perform(new callable$foo(this, ...));
+ * } finally {
+ *     depth.exit();
+ * }
+ * </pre>
+ *
+ * There is one guard per annotation, shared by all classes. This is meant for transactional-style advices, where the
+ * inner call would only repeat the work already done by the outer one.
+ **/
+public final class ReentrancyGuard {
+    private static final ConcurrentMap<Class<? extends Annotation>, ReentrancyGuard> guards =
+            new ConcurrentHashMap<Class<? extends Annotation>, ReentrancyGuard>();
+
+    /** The number of advised calls that the current thread is running inside of **/
+    public static final class Depth {
+        private int value;
+
+        public void exit() {
+            value--;
+        }
+    }
+
+    private final ThreadLocal<Depth> depth = new ThreadLocal<Depth>() {
+        @Override
+        protected Depth initialValue() {
+            return new Depth();
+        }
+    };
+
+    private ReentrancyGuard() {
+    }
+
+    /** Returns the guard for methods advised with the given annotation **/
+    public static ReentrancyGuard forAnnotation(Class<? extends Annotation> annotation) {
+        ReentrancyGuard guard = guards.get(annotation);
+        if (guard == null) {
+            ReentrancyGuard newGuard = new ReentrancyGuard();
+            guard = guards.putIfAbsent(annotation, newGuard);
+            if (guard == null) {
+                guard = newGuard;
+            }
+        }
+        return guard;
+    }
+
+    /**
+     * Enters an advised call. Returns null if the current thread is already inside one, in which case the advice is to
+     * be skipped; otherwise returns the depth of the current thread, which is to be exited when the call returns.
+     **/
+    public Depth enter() {
+        Depth current = depth.get();
+        if (current.value > 0) {
+            return null;
+        }
+        current.value++;
+        return current;
+    }
+
+    /** Returns true if the current thread is inside an advised call **/
+    public boolean isEntered() {
+        return depth.get().value > 0;
+    }
+
+}
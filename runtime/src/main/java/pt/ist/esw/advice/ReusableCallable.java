@@ -0,0 +1,55 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Base class of the callables generated by the reuse option (-r). Instead of receiving the arguments of the advised
+ * method in their constructor, these callables have them set before each call, so that the same instance can be used
+ * for many calls. See {@link CallablePool}.
+ **/
+public abstract class ReusableCallable<V> implements Callable<V> {
+    boolean inUse;
+
+    /** Creates a new callable of the same class, with no arguments set **/
+    protected abstract ReusableCallable<V> newInstance();
+
+    /** Clears the references to the arguments of the last call, so that they can be garbage collected **/
+    protected abstract void clear();
+
+    /**
+     * Returns the callable to its pool, if it was taken from it. Callables created for a single call are left alone, as
+     * an advice that is not a {@link NonEscapingAdvice} may keep them and call them later.
+     **/
+    final void release() {
+        if (inUse) {
+            clear();
+            inUse = false;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
+
+/**
+ * Hands one in every {@link #every()} calls of the annotated method, chosen at random, to the advice created by
+ * {@link #sampledAdviceFactory()}, and runs the others directly, through a {@link SamplingAdvice}. The sampled factory
+ * is given this annotation. The rate can be changed at runtime through {@link SamplingAdviceFactory#getAdvice}.
+ **/
+@Target(ElementType.METHOD)
+public @interface Sampled {
+
+    /** On average, one in every so many calls is sampled; 1 samples every call, and 0 none **/
+    int every() default 100;
+
+    /** The factory of the advice that the sampled calls are handed to; it must accept this annotation **/
+    Class<? extends AdviceFactory<? super Sampled>> sampledAdviceFactory() default MetricsAdviceFactory.class;
+
+    Class<? extends AdviceFactory<Sampled>> adviceFactory() default SamplingAdviceFactory.class;
+}
@@ -0,0 +1,103 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Advice that hands a fraction of the calls of the advised method to another advice, and calls the method directly
+ * otherwise, so that costly advices, e.g. for tracing or profiling, can be left on with bounded overhead.
+ *
+ * Calls are sampled at random, so that periodic call patterns are not sampled unevenly. The decision draws from
+ * {@link ThreadLocalRandom}, which keeps its state per thread, so threads never contend on it. The rate can be changed
+ * at any time with {@link #setEvery(int)}.
+ **/
+public final class SamplingAdvice implements IntAdvice, LongAdvice, DoubleAdvice, AsyncAdvice {
+    private final Advice sampledAdvice;
+    private volatile int every;
+
+    /**
+     * @param sampledAdvice The advice that the sampled calls are handed to
+     * @param every On average, one in every so many calls is sampled; 1 samples every call, and 0 none
+     **/
+    public SamplingAdvice(Advice sampledAdvice, int every) {
+        if (every < 0) {
+            throw new IllegalArgumentException("Sampling rate must not be negative: " + every);
+        }
+        this.sampledAdvice = sampledAdvice;
+        this.every = every;
+    }
+
+    public Advice getSampledAdvice() {
+        return sampledAdvice;
+    }
+
+    public int getEvery() {
+        return every;
+    }
+
+    /** Changes the sampling rate; 1 samples every call, and 0 none **/
+    public void setEvery(int every) {
+        if (every < 0) {
+            throw new IllegalArgumentException("Sampling rate must not be negative: " + every);
+        }
+        this.every = every;
+    }
+
+    private boolean sample() {
+        int every = this.every;
+        return every == 1 || (every > 1 && ThreadLocalRandom.current().nextInt(every) == 0);
+    }
+
+    @Override
+    public <V> V perform(Callable<V> method) throws Exception {
+        return sample() ? sampledAdvice.perform(method) : method.call();
+    }
+
+    @Override
+    public int performInt(IntCallable method) throws Exception {
+        return sample() ? PrimitiveAdvices.performInt(sampledAdvice, method) : method.callInt();
+    }
+
+    @Override
+    public long performLong(LongCallable method) throws Exception {
+        return sample() ? PrimitiveAdvices.performLong(sampledAdvice, method) : method.callLong();
+    }
+
+    @Override
+    public double performDouble(DoubleCallable method) throws Exception {
+        return sample() ? PrimitiveAdvices.performDouble(sampledAdvice, method) : method.callDouble();
+    }
+
+    @Override
+    public <V> CompletionStage<V> performAsync(Callable<? extends CompletionStage<V>> method) throws Exception {
+        return sample() ? AsyncAdvices.performAsync(sampledAdvice, method) : method.call();
+    }
+
+}
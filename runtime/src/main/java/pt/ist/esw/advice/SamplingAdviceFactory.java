@@ -0,0 +1,81 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates a {@link SamplingAdvice} for each method annotated with {@link Sampled}, wrapping the advice that the
+ * annotation's sampled factory creates for the method. The advices can be obtained with
+ * {@link #getAdvice(AdvisedMethod)}, e.g., to change their sampling rates.
+ **/
+public final class SamplingAdviceFactory extends AdviceFactory<Sampled> {
+
+    private static final SamplingAdviceFactory instance = new SamplingAdviceFactory();
+
+    private final ConcurrentMap<AdvisedMethod, SamplingAdvice> advices =
+            new ConcurrentHashMap<AdvisedMethod, SamplingAdvice>();
+
+    private SamplingAdviceFactory() {
+    }
+
+    public static AdviceFactory<?> getInstance() {
+        return instance;
+    }
+
+    /** Returns the advice of an advised method, or null if it was not created yet **/
+    public static SamplingAdvice getAdvice(AdvisedMethod method) {
+        return instance.advices.get(method);
+    }
+
+    @Override
+    public Advice newAdvice(Sampled annotation) {
+        return new SamplingAdvice(getSampledFactory(annotation).newAdvice(annotation), annotation.every());
+    }
+
+    @Override
+    public Advice newAdvice(Sampled annotation, AdvisedMethod method) {
+        SamplingAdvice advice =
+                new SamplingAdvice(getSampledFactory(annotation).newAdvice(annotation, method), annotation.every());
+        SamplingAdvice existing = advices.putIfAbsent(method, advice);
+        return existing != null ? existing : advice;
+    }
+
+    private static AdviceFactory<? super Sampled> getSampledFactory(Sampled annotation) {
+        Class<? extends AdviceFactory<? super Sampled>> factoryClass = annotation.sampledAdviceFactory();
+        try {
+            // Fails if getInstance returns an instance of some other factory
+            return factoryClass.cast(factoryClass.getMethod("getInstance").invoke(null));
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Couldn't obtain the instance of " + factoryClass.getName(), e);
+        } catch (ClassCastException e) {
+            throw new RuntimeException("Couldn't obtain the instance of " + factoryClass.getName(), e);
+        }
+    }
+
+}
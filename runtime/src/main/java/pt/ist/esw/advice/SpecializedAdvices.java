@@ -0,0 +1,315 @@
+/*
+ * Advice Library
+ * Copyright (C) 2012-2013 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This file is part of the advice library.
+ *
+ * advice library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * advice library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with advice library. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package pt.ist.esw.advice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives each advised method its own copy of the class of its advice, so that the JIT profiles each copy of the
+ * perform methods separately.
+ *
+ * When many methods share an advice class, the method.call() site inside its perform method sees the callables of all
+ * of them, becomes megamorphic, and the JIT stops inlining the advised methods into it. A copy of the advice class per
+ * method keeps each of those sites monomorphic. The copy is the class file of the advice with only its name changed,
+ * defined in the same class loader and package, and its instance has the same field values as the original advice.
+ *
+ * An advice can only be copied if it behaves exactly as the original: its class, and the superclasses it inherits
+ * fields from, must only have final instance fields, and its class must have no static fields other than compile-time
+ * constants, as the copy would have its own, and no static initializer, as it would be run again for the copy. Nor can
+ * it be a member of a nest (a nested class compiled for Java 11 or later), as the copy would lose its access to the
+ * private members of the other classes of the nest. The objects that the fields refer to are shared by both. Other
+ * advices are used as they are, and a warning is printed once for their class.
+ *
+ * Used by methods woven with the specialize option of ProcessAnnotations.
+ **/
+public final class SpecializedAdvices {
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+
+    private static final AtomicInteger copies = new AtomicInteger();
+    private static final Set<String> warned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private SpecializedAdvices() {
+    }
+
+    /**
+     * Returns a copy of the advice, of a class of its own, or the advice itself if it cannot be copied.
+     **/
+    public static Advice specialize(Advice advice) {
+        Class<?> adviceClass = advice.getClass();
+        try {
+            String reason = getReasonNotToCopy(adviceClass);
+            if (reason != null) {
+                warn(adviceClass, reason);
+                return advice;
+            }
+            String copyName = adviceClass.getName() + "$specialized$" + copies.incrementAndGet();
+            Class<?> copyClass =
+                    defineClass(adviceClass, rename(readClassFile(adviceClass), copyName.replace('.', '/')));
+            Advice copy = (Advice) newInstance(copyClass);
+            copyFields(advice, copy);
+            return copy;
+        } catch (Exception e) {
+            warn(adviceClass, e.toString());
+        } catch (LinkageError e) {
+            // The copy does not verify, e.g. because it passes itself where the original class is expected
+            warn(adviceClass, e.toString());
+        }
+        return advice;
+    }
+
+    private static String getReasonNotToCopy(Class<?> adviceClass) {
+        if (adviceClass.getClassLoader() == null) {
+            return "it is loaded by the bootstrap class loader";
+        }
+        for (Class<?> c = adviceClass; c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers)) {
+                    return "field " + c.getName() + "." + field.getName() + " is not final";
+                }
+            }
+        }
+        // Without a static initializer, the static final fields of the class can only hold compile-time constants
+        for (Field field : adviceClass.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers)) {
+                return "static field " + adviceClass.getName() + "." + field.getName() + " is not a constant";
+            }
+        }
+        return null;
+    }
+
+    private static void warn(Class<?> adviceClass, String reason) {
+        if (warned.add(adviceClass.getName())) {
+            System.err.println("WARNING: Advices of class " + adviceClass.getName()
+                    + " are not specialized per method: " + reason);
+        }
+    }
+
+    private static byte[] readClassFile(Class<?> adviceClass) throws IOException {
+        InputStream in = adviceClass.getClassLoader().getResourceAsStream(adviceClass.getName().replace('.', '/')
+                + ".class");
+        if (in == null) {
+            throw new IOException("class file not found");
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Renames a class by adding the new name at the end of the constant pool, and pointing the class's own entry to
+     * it. As the fields and methods of the class refer to it through that entry, the copy refers to its own members.
+     * Descriptors naming the original class are left as they are.
+     **/
+    private static byte[] rename(byte[] classFile, String newName) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+        int count = in.readUnsignedShort();
+        // Offset of the name index of each Class entry
+        int[] classNameOffsets = new int[count];
+        String[] utf8 = new String[count];
+        for (int i = 1; i < count; i++) {
+            int offset = classFile.length - in.available();
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case CONSTANT_UTF8:
+                utf8[i] = in.readUTF();
+                break;
+            case CONSTANT_CLASS:
+                classNameOffsets[i] = offset + 1;
+                in.readUnsignedShort();
+                break;
+            case 3: // Integer
+            case 4: // Float
+            case 9: // Fieldref
+            case 10: // Methodref
+            case 11: // InterfaceMethodref
+            case 12: // NameAndType
+            case 17: // Dynamic
+            case 18: // InvokeDynamic
+                in.skipBytes(4);
+                break;
+            case 5: // Long
+            case 6: // Double
+                in.skipBytes(8);
+                i++;
+                break;
+            case 15: // MethodHandle
+                in.skipBytes(3);
+                break;
+            case 8: // String
+            case 16: // MethodType
+            case 19: // Module
+            case 20: // Package
+                in.skipBytes(2);
+                break;
+            default:
+                throw new IOException("unknown constant pool tag " + tag);
+            }
+        }
+        int constantPoolEnd = classFile.length - in.available();
+        in.readUnsignedShort(); // access flags
+        int thisClass = in.readUnsignedShort();
+        in.readUnsignedShort(); // super class
+        in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+        skipMembers(in, utf8); // fields
+        if (skipMembers(in, utf8)) {
+            throw new IOException("it has a static initializer");
+        }
+        int attributes = in.readUnsignedShort();
+        for (int i = 0; i < attributes; i++) {
+            String name = utf8[in.readUnsignedShort()];
+            if ("NestHost".equals(name) || "NestMembers".equals(name)) {
+                // The copy would not be a member of the nest, so it could not access the private members of the others
+                throw new IOException("it is a member of a nest");
+            }
+            in.skipBytes(in.readInt());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(classFile.length + newName.length() + 3);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(classFile, 0, 8);
+        out.writeShort(count + 1);
+        out.write(classFile, 10, constantPoolEnd - 10);
+        out.writeByte(CONSTANT_UTF8);
+        out.writeUTF(newName);
+        out.write(classFile, constantPoolEnd, classFile.length - constantPoolEnd);
+        byte[] renamed = bytes.toByteArray();
+
+        // The class entry is before the end of the constant pool, so its offset is the same in the copy
+        int offset = classNameOffsets[thisClass];
+        renamed[offset] = (byte) (count >>> 8);
+        renamed[offset + 1] = (byte) count;
+        return renamed;
+    }
+
+    /** Skips the fields or methods of a class file, returning true if one of them is a static initializer **/
+    private static boolean skipMembers(DataInputStream in, String[] utf8) throws IOException {
+        boolean clInit = false;
+        int members = in.readUnsignedShort();
+        for (int i = 0; i < members; i++) {
+            in.readUnsignedShort(); // access flags
+            clInit |= "<clinit>".equals(utf8[in.readUnsignedShort()]);
+            in.readUnsignedShort(); // descriptor
+            int attributes = in.readUnsignedShort();
+            for (int j = 0; j < attributes; j++) {
+                in.readUnsignedShort(); // name
+                in.skipBytes(in.readInt());
+            }
+        }
+        return clInit;
+    }
+
+    /**
+     * Defines the copy in the class loader and package of the advice class: on Java 9 and later through a private
+     * lookup, and on Java 8 through {@link ClassLoader}'s protected defineClass method.
+     **/
+    private static Class<?> defineClass(Class<?> adviceClass, byte[] classFile) throws Exception {
+        Method privateLookupIn;
+        try {
+            privateLookupIn =
+                    MethodHandles.class.getMethod("privateLookupIn", Class.class, MethodHandles.Lookup.class);
+        } catch (NoSuchMethodException e) {
+            Method defineClass =
+                    ClassLoader.class.getDeclaredMethod("defineClass", byte[].class, int.class, int.class);
+            defineClass.setAccessible(true);
+            return (Class<?>) invoke(defineClass, adviceClass.getClassLoader(), classFile, 0, classFile.length);
+        }
+        Object lookup = invoke(privateLookupIn, null, adviceClass, MethodHandles.lookup());
+        return (Class<?>) invoke(MethodHandles.Lookup.class.getMethod("defineClass", byte[].class), lookup, classFile);
+    }
+
+    /**
+     * Creates an instance of the copy without running any of its constructors, whose side effects already happened for
+     * the original advice, as serialization does.
+     **/
+    private static Object newInstance(Class<?> copyClass) throws Exception {
+        Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+        Object factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+        Constructor<?> constructor =
+                (Constructor<?>) invoke(factoryClass.getMethod("newConstructorForSerialization", Class.class,
+                        Constructor.class), factory, copyClass, Object.class.getDeclaredConstructor());
+        return constructor.newInstance();
+    }
+
+    private static void copyFields(Advice advice, Advice copy) throws IllegalAccessException, NoSuchFieldException {
+        for (Class<?> c = advice.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                // The copy declares the fields of the advice class itself, and inherits the others
+                Field copyField = c == advice.getClass() ? copy.getClass().getDeclaredField(field.getName()) : field;
+                field.setAccessible(true);
+                copyField.setAccessible(true);
+                copyField.set(copy, field.get(advice));
+            }
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws Exception {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+}